@@ -0,0 +1,469 @@
+package selenium;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Appends log lines to files from any number of sessions without opening the file for every line.
+ * 1. enqueue -> the calling thread only adds the line to a lock-free queue.
+ * 2. batch -> a single writer thread drains the queue and collects the lines per file, it sleeps until the batch size is
+ * reached or the flush interval elapsed.
+ * 3. write -> one open channel per file writes the whole batch; least recently used channels are closed past the open file
+ * limit.
+ * Lines of a file are written in the order they were queued, a line queued without append truncates the file first, as
+ * FileWriter(file, false) did. Files can be rotated by size and forced to disk on every flush.
+ *
+ * @author naveenc
+ *
+ */
+public class AsyncFileAppender {
+
+	private static final AsyncFileAppender onlyOne = new AsyncFileAppender();
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+	/**
+	 * When written data is forced to the disk
+	 */
+	public enum FsyncPolicy {
+		NEVER, ON_FLUSH
+	}
+
+	private final Logger log = LoggerFactory.getLogger(AsyncFileAppender.class);
+	private final Queue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+	private final AtomicLong queuedBytes = new AtomicLong();
+	private final Map<String, Target> targets = new LinkedHashMap<String, Target>(16, 0.75f, true);
+	private final Charset charset = Charset.defaultCharset();
+	private volatile Thread writer;
+
+	private volatile int batchBytes = 64 * 1024;
+	private volatile long flushIntervalInMilliSec = 200L;
+	private volatile int maxOpenFiles = 256;
+	private volatile long maxFileSize;
+	private volatile int maxBackups = 5;
+	private volatile FsyncPolicy fsyncPolicy = FsyncPolicy.NEVER;
+
+	private final AtomicLong queuedCount = new AtomicLong();
+	private final AtomicLong writtenCount = new AtomicLong();
+	private final AtomicLong flushCount = new AtomicLong();
+	private final AtomicLong rotationCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+
+	public static AsyncFileAppender getInstance() {
+
+		return onlyOne;
+	}
+
+	// singleton class
+	private AsyncFileAppender() {
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+
+				close();
+			}
+		}, "async-file-appender-shutdown"));
+	}
+
+	/**
+	 * Queues the message as one line of the file
+	 *
+	 * @param file
+	 * @param append
+	 *            - false truncates the file before the line is written
+	 * @param message
+	 */
+	public void append(File file, boolean append, String message) {
+
+		Entry entry = new Entry(file, append, (message + LINE_SEPARATOR).getBytes(charset));
+		queue.add(entry);
+		queuedCount.incrementAndGet();
+		if (queuedBytes.addAndGet(entry.bytes.length) >= batchBytes) {
+			LockSupport.unpark(startWriter());
+		} else {
+			startWriter();
+		}
+	}
+
+	/**
+	 * Blocks until every line queued before the call is written
+	 *
+	 * @return false if the writer didn't finish in time or the thread was interrupted
+	 */
+	public boolean flush() {
+
+		if (writer == null) {
+			return true;
+		}
+		Entry marker = new Entry(null, true, null);
+		queue.add(marker);
+		LockSupport.unpark(startWriter());
+		try {
+			return marker.written.await(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Flushes the queue and closes all files. Appending afterwards opens the files again
+	 */
+	public void close() {
+
+		flush();
+		synchronized (targets) {
+			for (Target target : targets.values()) {
+				target.close();
+			}
+			targets.clear();
+		}
+	}
+
+	/**
+	 * @param batchBytes
+	 *            - queued bytes that wake the writer before the flush interval
+	 * @param flushIntervalInMilliSec
+	 *            - longest time a line waits in the queue
+	 */
+	public void setBatching(int batchBytes, long flushIntervalInMilliSec) {
+
+		this.batchBytes = batchBytes;
+		this.flushIntervalInMilliSec = flushIntervalInMilliSec;
+	}
+
+	/**
+	 * @param maxOpenFiles
+	 *            - channels kept open, the least recently written is closed beyond it
+	 */
+	public void setMaxOpenFiles(int maxOpenFiles) {
+
+		this.maxOpenFiles = maxOpenFiles;
+	}
+
+	/**
+	 * Rotates a file to file.1 ... file.maxBackups when it grows beyond maxFileSize
+	 *
+	 * @param maxFileSize
+	 *            - 0 to never rotate
+	 * @param maxBackups
+	 */
+	public void setRotation(long maxFileSize, int maxBackups) {
+
+		this.maxFileSize = maxFileSize;
+		this.maxBackups = maxBackups;
+	}
+
+	public void setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+
+		this.fsyncPolicy = fsyncPolicy;
+	}
+
+	public long getQueuedCount() {
+
+		return queuedCount.get();
+	}
+
+	public long getWrittenCount() {
+
+		return writtenCount.get();
+	}
+
+	/**
+	 * @return number of batches written
+	 */
+	public long getFlushCount() {
+
+		return flushCount.get();
+	}
+
+	public long getRotationCount() {
+
+		return rotationCount.get();
+	}
+
+	/**
+	 * @return lines that couldn't be written
+	 */
+	public long getFailedCount() {
+
+		return failedCount.get();
+	}
+
+	private Thread startWriter() {
+
+		Thread current = writer;
+		if (current == null) {
+			synchronized (this) {
+				current = writer;
+				if (current == null) {
+					current = new Thread(new Runnable() {
+
+						@Override
+						public void run() {
+
+							writeLoop();
+						}
+					}, "async-file-appender");
+					current.setDaemon(true);
+					writer = current;
+					current.start();
+				}
+			}
+		}
+		return current;
+	}
+
+	private void writeLoop() {
+
+		while (true) {
+			try {
+				drain();
+			} catch (RuntimeException e) {
+				log.error("(!)Failed while writing log files: " + e.getMessage());
+			}
+			if (queue.isEmpty()) {
+				LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(flushIntervalInMilliSec));
+			}
+		}
+	}
+
+	/*
+	 * writes everything queued; only the writer thread gets here
+	 */
+	private void drain() {
+
+		List<Entry> markers = new ArrayList<Entry>();
+		synchronized (targets) {
+			Entry entry;
+			while ((entry = queue.poll()) != null) {
+				if (entry.file == null) {
+					markers.add(entry);
+					continue;
+				}
+				queuedBytes.addAndGet(-entry.bytes.length);
+				Target target = target(entry.file);
+				if (!entry.append) {
+					target.truncate();
+				}
+				target.add(entry.bytes);
+				if (target.pending.size() >= batchBytes) {
+					target.write();
+				}
+			}
+			for (Target target : targets.values()) {
+				target.write();
+			}
+		}
+		for (Entry marker : markers) {
+			marker.written.countDown();
+		}
+	}
+
+	private Target target(File file) {
+
+		String key = file.getAbsolutePath();
+		Target target = targets.get(key);
+		if (target == null) {
+			target = new Target(file.getAbsoluteFile());
+			targets.put(key, target);
+			if (targets.size() > maxOpenFiles) {
+				Iterator<Target> eldest = targets.values().iterator();
+				Target closing = eldest.next();
+				closing.write();
+				closing.close();
+				eldest.remove();
+			}
+		}
+		return target;
+	}
+
+	/*
+	 * one file, its channel and the lines not yet written
+	 */
+	private final class Target {
+
+		private final File file;
+		private final ByteArrayBuffer pending = new ByteArrayBuffer();
+		private FileChannel channel;
+		private int pendingLines;
+		private boolean truncate;
+
+		private Target(File file) {
+
+			this.file = file;
+		}
+
+		private void add(byte[] bytes) {
+
+			pending.write(bytes, 0, bytes.length);
+			pendingLines++;
+		}
+
+		/*
+		 * lines still pending would have been overwritten as well
+		 */
+		private void truncate() {
+
+			pending.reset();
+			pendingLines = 0;
+			truncate = true;
+		}
+
+		private void write() {
+
+			if (pendingLines == 0 && !truncate) {
+				return;
+			}
+			try {
+				FileChannel out = open();
+				if (truncate) {
+					out.truncate(0);
+					truncate = false;
+				}
+				if (maxFileSize > 0 && out.size() > 0 && out.size() + pending.size() > maxFileSize) {
+					out = rotate();
+				}
+				ByteBuffer buffer = pending.toByteBuffer();
+				while (buffer.hasRemaining()) {
+					out.write(buffer);
+				}
+				if (fsyncPolicy == FsyncPolicy.ON_FLUSH) {
+					out.force(false);
+				}
+				writtenCount.addAndGet(pendingLines);
+				flushCount.incrementAndGet();
+			} catch (IOException e) {
+				failedCount.addAndGet(pendingLines);
+				log.error("(!)Failed while writing to file " + file.getAbsolutePath());
+				close();
+			} finally {
+				pending.reset();
+				pendingLines = 0;
+			}
+		}
+
+		private FileChannel open() throws IOException {
+
+			if (channel != null && !file.exists()) {
+				// deleted or moved away by someone else, start a new file like FileWriter would
+				close();
+			}
+			if (channel == null) {
+				channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			}
+			return channel;
+		}
+
+		private FileChannel rotate() throws IOException {
+
+			close();
+			new File(file.getPath() + "." + maxBackups).delete();
+			for (int i = maxBackups - 1; i >= 1; i--) {
+				File backup = new File(file.getPath() + "." + i);
+				if (backup.exists()) {
+					SeleniumUtils.getInstance().moveAtomically(backup, new File(file.getPath() + "." + (i + 1)));
+				}
+			}
+			if (maxBackups > 0) {
+				SeleniumUtils.getInstance().moveAtomically(file, new File(file.getPath() + ".1"));
+			} else {
+				file.delete();
+			}
+			rotationCount.incrementAndGet();
+			log.debug("Rotated " + file.getAbsolutePath());
+			return open();
+		}
+
+		private void close() {
+
+			if (channel != null) {
+				try {
+					if (fsyncPolicy == FsyncPolicy.ON_FLUSH) {
+						channel.force(false);
+					}
+					channel.close();
+				} catch (IOException e) {
+					log.error("(!)Failed while closing file " + file.getAbsolutePath());
+				}
+				channel = null;
+			}
+		}
+	}
+
+	/*
+	 * ByteArrayOutputStream without synchronization and copies, only used by the writer thread
+	 */
+	private static final class ByteArrayBuffer {
+
+		private byte[] bytes = new byte[1024];
+		private int size;
+
+		private void write(byte[] data, int offset, int length) {
+
+			if (size + length > bytes.length) {
+				byte[] grown = new byte[Math.max(bytes.length * 2, size + length)];
+				System.arraycopy(bytes, 0, grown, 0, size);
+				bytes = grown;
+			}
+			System.arraycopy(data, offset, bytes, size, length);
+			size += length;
+		}
+
+		private int size() {
+
+			return size;
+		}
+
+		private void reset() {
+
+			size = 0;
+			if (bytes.length > 1024 * 1024) {
+				bytes = new byte[1024];
+			}
+		}
+
+		private ByteBuffer toByteBuffer() {
+
+			return ByteBuffer.wrap(bytes, 0, size);
+		}
+	}
+
+	private static final class Entry {
+
+		private final File file;
+		private final boolean append;
+		private final byte[] bytes;
+		private final CountDownLatch written;
+
+		/*
+		 * no file -> flush marker
+		 */
+		private Entry(File file, boolean append, byte[] bytes) {
+
+			this.file = file;
+			this.append = append;
+			this.bytes = bytes;
+			this.written = file == null ? new CountDownLatch(1) : null;
+		}
+	}
+}
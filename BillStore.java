@@ -0,0 +1,399 @@
+package selenium;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Content addressed store for downloaded bills. Every bill is kept once under its SHA-256, computed while the bill is
+ * streamed in, and an append-only index maps (site, account, bill date) to the hash. A bill already stored under another
+ * url or file name is linked to the existing copy instead of being written again.
+ * With early abort on, a download stops as soon as its first bytes match a bill already stored for the same account.
+ *
+ * @author naveenc
+ *
+ */
+public class BillStore {
+
+	private static final String INDEX_FILE = "index.tsv";
+	private static final String TAB = "\t";
+
+	private final Logger log = LoggerFactory.getLogger(BillStore.class);
+	private final File objectsDir;
+	private final File indexFile;
+	private final Map<String, String> index = new HashMap<String, String>();
+	private final Map<String, Set<String>> prefixIndex = new HashMap<String, Set<String>>();
+	private final Writer indexWriter;
+	private int prefixLength = 64 * 1024;
+	private volatile boolean earlyAbort;
+
+	private final AtomicLong storedCount = new AtomicLong();
+	private final AtomicLong duplicateCount = new AtomicLong();
+	private final AtomicLong earlyAbortCount = new AtomicLong();
+	private final AtomicLong bytesSaved = new AtomicLong();
+
+	/**
+	 * Opens the store and loads its index
+	 *
+	 * @param rootDir
+	 * @throws IOException
+	 */
+	public BillStore(File rootDir) throws IOException {
+
+		objectsDir = new File(rootDir, "objects");
+		if (!objectsDir.isDirectory() && !objectsDir.mkdirs()) {
+			throw new IOException("Failed creating bill store " + objectsDir.getAbsolutePath());
+		}
+		indexFile = new File(rootDir, INDEX_FILE);
+		loadIndex();
+		indexWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile, true), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Stop a download once its first bytes match a bill of the same account and its declared length matches that bill's
+	 * size. Bills of one template often share their first bytes, so downloads without a declared length are never stopped
+	 *
+	 * @param earlyAbort
+	 */
+	public void setEarlyAbort(boolean earlyAbort) {
+
+		this.earlyAbort = earlyAbort;
+	}
+
+	/**
+	 * Number of leading bytes compared for early abort. Only effective before the first bill is stored
+	 *
+	 * @param prefixLength
+	 */
+	public void setPrefixLength(int prefixLength) {
+
+		this.prefixLength = prefixLength;
+	}
+
+	/**
+	 * Streams the bill into the store and links the target file to the stored copy
+	 *
+	 * @param site
+	 * @param account
+	 * @param billDate
+	 * @param in
+	 *            - bill content, not closed
+	 * @param target
+	 *            - file to link to the stored bill, null to only keep the reference in the index
+	 * @return result with the hash and whether the bill was a duplicate
+	 * @throws IOException
+	 *             reading failed or a pdf bill is incomplete
+	 */
+	public Result store(String site, String account, String billDate, InputStream in, File target) throws IOException {
+
+		return store(site, account, billDate, in, -1L, target);
+	}
+
+	/**
+	 * Streams the bill into the store and links the target file to the stored copy
+	 *
+	 * @param site
+	 * @param account
+	 * @param billDate
+	 * @param in
+	 *            - bill content, not closed
+	 * @param declaredLength
+	 *            - Content-Length of the response, -1 if unknown
+	 * @param target
+	 *            - file to link to the stored bill, null to only keep the reference in the index
+	 * @return result with the hash and whether the bill was a duplicate
+	 * @throws IOException
+	 *             reading failed or a pdf bill is incomplete
+	 */
+	public Result store(String site, String account, String billDate, InputStream in, long declaredLength, File target) throws IOException {
+
+		MessageDigest full = sha256();
+		MessageDigest prefix = sha256();
+		File temp = File.createTempFile("bill", ".download", objectsDir);
+		String prefixHash = null;
+		String hash = null;
+		boolean aborted = false;
+		long size = 0;
+
+		OutputStream out = new FileOutputStream(temp);
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				full.update(buffer, 0, count);
+				if (prefixHash == null) {
+					int prefixPart = (int) Math.min(count, prefixLength - size);
+					prefix.update(buffer, 0, prefixPart);
+					if (size + prefixPart >= prefixLength) {
+						prefixHash = toHex(prefix.digest());
+						if (earlyAbort && declaredLength >= 0 && (hash = findByPrefix(site, account, prefixHash, declaredLength)) != null) {
+							aborted = true;
+							break;
+						}
+					}
+				}
+				out.write(buffer, 0, count);
+				size += count;
+			}
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+		if (prefixHash == null) {
+			// smaller than the prefix, the whole bill is the prefix
+			prefixHash = toHex(prefix.digest());
+		}
+
+		if (aborted) {
+			earlyAbortCount.incrementAndGet();
+			log.info("Bill of " + account + " " + billDate + " matches stored bill " + hash + " in its first " + prefixLength + " bytes and its length. Stopped download");
+		} else {
+			hash = toHex(full.digest());
+			if (isPdf(temp) && SeleniumUtils.getInstance().isPdfCorrupted(temp)) {
+				temp.delete();
+				throw new IOException("Incomplete pdf bill of " + account + " " + billDate);
+			}
+		}
+
+		File object = objectFile(hash);
+		boolean duplicate;
+		synchronized (this) {
+			duplicate = object.exists();
+			if (!duplicate) {
+				object.getParentFile().mkdirs();
+				SeleniumUtils.getInstance().moveAtomically(temp, object);
+				storedCount.incrementAndGet();
+			} else {
+				duplicateCount.incrementAndGet();
+				bytesSaved.addAndGet(object.length());
+			}
+			addToIndex(site, account, billDate, hash, prefixHash);
+		}
+		temp.delete();
+
+		if (target != null) {
+			link(object, target);
+		}
+		log.debug((duplicate ? "Duplicate bill " : "Stored bill ") + hash + " for " + account + " " + billDate);
+		return new Result(hash, object, duplicate, aborted);
+	}
+
+	/**
+	 * @param site
+	 * @param account
+	 * @param billDate
+	 * @return stored bill for the key, null if not stored yet
+	 */
+	public synchronized File lookup(String site, String account, String billDate) {
+
+		String hash = index.get(key(site, account, billDate));
+		return hash == null ? null : objectFile(hash);
+	}
+
+	public synchronized void close() {
+
+		IOUtils.closeQuietly(indexWriter);
+		log.info("Bill store closed. Stored: " + storedCount.get() + " Duplicates: " + duplicateCount.get() + " Early aborts: " + earlyAbortCount.get() + " Bytes saved: " + bytesSaved.get());
+	}
+
+	public long getStoredCount() {
+
+		return storedCount.get();
+	}
+
+	public long getDuplicateCount() {
+
+		return duplicateCount.get();
+	}
+
+	public long getEarlyAbortCount() {
+
+		return earlyAbortCount.get();
+	}
+
+	/**
+	 * @return bytes not written to disk because the bill was already stored
+	 */
+	public long getBytesSaved() {
+
+		return bytesSaved.get();
+	}
+
+	/*
+	 * hard link, so the target is a normal file for everyone reading it. Copies where links aren't supported
+	 */
+	private void link(File object, File target) throws IOException {
+
+		Files.deleteIfExists(target.toPath());
+		try {
+			Files.createLink(target.toPath(), object.toPath());
+		} catch (IOException e) {
+			log.debug("Hard link not possible for " + target.getAbsolutePath() + ", copying");
+			Files.copy(object.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (UnsupportedOperationException e) {
+			Files.copy(object.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/*
+	 * a stored bill with the same first bytes and the same size
+	 */
+	private synchronized String findByPrefix(String site, String account, String prefixHash, long length) {
+
+		Set<String> hashes = prefixIndex.get(clean(site) + TAB + clean(account) + TAB + prefixHash);
+		if (hashes != null) {
+			for (String hash : hashes) {
+				File object = objectFile(hash);
+				if (object.exists() && object.length() == length) {
+					return hash;
+				}
+			}
+		}
+		return null;
+	}
+
+	private void addToIndex(String site, String account, String billDate, String hash, String prefixHash) throws IOException {
+
+		putIndex(site, account, billDate, hash, prefixHash);
+		indexWriter.write(clean(site) + TAB + clean(account) + TAB + clean(billDate) + TAB + hash + TAB + prefixHash + "\n");
+		indexWriter.flush();
+	}
+
+	private void putIndex(String site, String account, String billDate, String hash, String prefixHash) {
+
+		index.put(key(site, account, billDate), hash);
+		String prefixKey = clean(site) + TAB + clean(account) + TAB + prefixHash;
+		Set<String> hashes = prefixIndex.get(prefixKey);
+		if (hashes == null) {
+			hashes = new HashSet<String>();
+			prefixIndex.put(prefixKey, hashes);
+		}
+		hashes.add(hash);
+	}
+
+	private void loadIndex() throws IOException {
+
+		if (!indexFile.exists()) {
+			return;
+		}
+		BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8);
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(TAB);
+				if (fields.length == 5) {
+					putIndex(fields[0], fields[1], fields[2], fields[3], fields[4]);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		log.debug("Loaded " + index.size() + " bill(s) from " + indexFile.getAbsolutePath());
+	}
+
+	private File objectFile(String hash) {
+
+		return new File(new File(objectsDir, hash.substring(0, 2)), hash);
+	}
+
+	private static boolean isPdf(File file) throws IOException {
+
+		byte[] head = new byte[StreamingDownloader.SNIFF_LENGTH];
+		InputStream in = Files.newInputStream(file.toPath());
+		try {
+			int length = in.read(head);
+			return length > 0 && StreamingDownloader.sniff(head, length) == StreamingDownloader.SniffedType.PDF;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String key(String site, String account, String billDate) {
+
+		return clean(site) + TAB + clean(account) + TAB + clean(billDate);
+	}
+
+	private static String clean(String value) {
+
+		return value == null ? "" : value.replaceAll("[\t\r\n]", " ");
+	}
+
+	private static MessageDigest sha256() {
+
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+
+	static String toHex(byte[] bytes) {
+
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Outcome of storing one bill
+	 */
+	public static final class Result {
+
+		private final String hash;
+		private final File object;
+		private final boolean duplicate;
+		private final boolean earlyAborted;
+
+		private Result(String hash, File object, boolean duplicate, boolean earlyAborted) {
+
+			this.hash = hash;
+			this.object = object;
+			this.duplicate = duplicate;
+			this.earlyAborted = earlyAborted;
+		}
+
+		public String getHash() {
+
+			return hash;
+		}
+
+		/**
+		 * @return stored copy of the bill
+		 */
+		public File getObject() {
+
+			return object;
+		}
+
+		public boolean isDuplicate() {
+
+			return duplicate;
+		}
+
+		public boolean isEarlyAborted() {
+
+			return earlyAborted;
+		}
+	}
+}
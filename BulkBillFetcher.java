@@ -0,0 +1,352 @@
+package selenium;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.openqa.selenium.Cookie;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Downloads the bills of a logged in session over plain HTTP, without walking the portal page by page.
+ * 1. session -> the cookies of the WebDriver are mapped like copyCookiesWebDriverToHtmlUnitWebClient and handed to the
+ * HttpClient HtmlUnit is built on; the user agent of the browser is sent along.
+ * 2. fetch -> the bill urls are requested concurrently over a pool of keep-alive connections, at most maxPerHost to one
+ * host, so a portal isn't hit harder than a few browsers would.
+ * 3. store -> each body is streamed to its file through {@link StreamingDownloader}, which checks the content type and
+ * renames the file into place.
+ * A portal answering with html instead of the bill usually means the session expired; such bills are reported failed.
+ *
+ * @author naveenc
+ *
+ */
+public class BulkBillFetcher {
+
+	private final Logger log = LoggerFactory.getLogger(BulkBillFetcher.class);
+	private final PoolingHttpClientConnectionManager connectionManager;
+	private final CloseableHttpClient httpClient;
+	private final StreamingDownloader streamingDownloader = new StreamingDownloader();
+	private final OperationMetrics metrics = OperationMetrics.getInstance();
+	private final int maxConnections;
+
+	private final AtomicLong fetchedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong fetchedBytes = new AtomicLong();
+
+	/**
+	 * Connect and read time outs of 30 seconds
+	 *
+	 * @param maxConnections
+	 *            - connections and fetching threads in total
+	 * @param maxPerHost
+	 *            - connections to one host
+	 */
+	public BulkBillFetcher(int maxConnections, int maxPerHost) {
+
+		this(maxConnections, maxPerHost, 30000);
+	}
+
+	/**
+	 * @param maxConnections
+	 *            - connections and fetching threads in total
+	 * @param maxPerHost
+	 *            - connections to one host
+	 * @param timeoutInMilliSec
+	 *            - connect and read time out
+	 */
+	public BulkBillFetcher(int maxConnections, int maxPerHost, int timeoutInMilliSec) {
+
+		if (maxConnections < 1 || maxPerHost < 1) {
+			throw new IllegalArgumentException("Invalid connection limits total: " + maxConnections + " per host: " + maxPerHost);
+		}
+		this.maxConnections = maxConnections;
+		connectionManager = new PoolingHttpClientConnectionManager(5, TimeUnit.MINUTES);
+		connectionManager.setMaxTotal(maxConnections);
+		connectionManager.setDefaultMaxPerRoute(maxPerHost);
+		connectionManager.setValidateAfterInactivity(2000);
+		RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(timeoutInMilliSec).setSocketTimeout(timeoutInMilliSec).setCookieSpec(CookieSpecs.STANDARD).build();
+		httpClient = HttpClients.custom().setConnectionManager(connectionManager).setDefaultRequestConfig(requestConfig).evictIdleConnections(30, TimeUnit.SECONDS).build();
+	}
+
+	/**
+	 * Fetches the bills with the session of the driver. Only the cookies of the domain the driver is on are visible to
+	 * it, so the driver should be on the portal, e.g. right after getLogin
+	 *
+	 * @param webDriver
+	 *            - logged in session
+	 * @param bills
+	 *            - bill url -> file to store it in
+	 * @param contentType
+	 *            - expected content type, e.g. application/pdf
+	 * @return result per url, in the order of the given map
+	 */
+	public Map<String, Result> fetch(WebDriver webDriver, Map<String, File> bills, String contentType) {
+
+		CookieStore cookieStore = toCookieStore(webDriver);
+		String userAgent = userAgentOf(webDriver);
+		return fetch(cookieStore, userAgent, bills, contentType);
+	}
+
+	/**
+	 * @param cookieStore
+	 *            - session cookies, shared by all requests
+	 * @param userAgent
+	 *            - null for the HttpClient default
+	 * @param bills
+	 *            - bill url -> file to store it in
+	 * @param contentType
+	 *            - expected content type
+	 * @return result per url, in the order of the given map
+	 */
+	public Map<String, Result> fetch(final CookieStore cookieStore, final String userAgent, Map<String, File> bills, final String contentType) {
+
+		Map<String, Result> results = new LinkedHashMap<String, Result>();
+		if (bills.isEmpty()) {
+			return results;
+		}
+		long start = System.currentTimeMillis();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(maxConnections, bills.size()));
+		try {
+			Map<String, Future<Result>> futures = new LinkedHashMap<String, Future<Result>>();
+			for (final Map.Entry<String, File> bill : bills.entrySet()) {
+				futures.put(bill.getKey(), executor.submit(new Callable<Result>() {
+
+					@Override
+					public Result call() {
+
+						return fetchOne(cookieStore, userAgent, bill.getKey(), bill.getValue(), contentType);
+					}
+				}));
+			}
+			for (Map.Entry<String, Future<Result>> future : futures.entrySet()) {
+				try {
+					results.put(future.getKey(), future.getValue().get());
+				} catch (ExecutionException e) {
+					results.put(future.getKey(), new Result(future.getKey(), bills.get(future.getKey()), false, -1, 0, 0, String.valueOf(e.getCause())));
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			log.error("Interrupted while fetching bills, " + results.size() + " of " + bills.size() + " done");
+		} finally {
+			executor.shutdownNow();
+		}
+
+		int stored = 0;
+		for (Result result : results.values()) {
+			if (result.isStored()) {
+				stored++;
+			}
+		}
+		log.info("Fetched " + stored + " of " + bills.size() + " bill(s) in " + (System.currentTimeMillis() - start) + " ms");
+		return results;
+	}
+
+	public long getFetchedCount() {
+
+		return fetchedCount.get();
+	}
+
+	public long getFailedCount() {
+
+		return failedCount.get();
+	}
+
+	public long getFetchedBytes() {
+
+		return fetchedBytes.get();
+	}
+
+	/**
+	 * Closes the pooled connections
+	 */
+	public void close() {
+
+		try {
+			httpClient.close();
+		} catch (IOException e) {
+			log.debug("HttpClient failed while closing: " + e.getMessage());
+		}
+		connectionManager.shutdown();
+	}
+
+	private Result fetchOne(CookieStore cookieStore, String userAgent, String url, File file, String contentType) {
+
+		long start = metrics.start();
+		long startTime = System.currentTimeMillis();
+		HttpGet get = new HttpGet(url);
+		if (userAgent != null) {
+			get.setHeader("User-Agent", userAgent);
+		}
+		HttpClientContext context = HttpClientContext.create();
+		context.setCookieStore(cookieStore);
+		Result result;
+		CloseableHttpResponse response = null;
+		try {
+			response = httpClient.execute(get, context);
+			int statusCode = response.getStatusLine().getStatusCode();
+			HttpEntity entity = response.getEntity();
+			if (statusCode >= 400 || entity == null) {
+				EntityUtils.consumeQuietly(entity);
+				result = new Result(url, file, false, statusCode, 0, System.currentTimeMillis() - startTime, "status code " + statusCode);
+			} else {
+				Header type = entity.getContentType();
+				String responseContentType = type == null ? null : type.getValue();
+				InputStream in = entity.getContent();
+				boolean stored;
+				try {
+					stored = streamingDownloader.store(in, responseContentType, contentType, file);
+				} finally {
+					in.close();
+				}
+				String error = null;
+				if (!stored) {
+					error = responseContentType != null && responseContentType.contains("html") ? "got html instead of " + contentType + ", session expired?" : "content type "
+							+ responseContentType + " isn't " + contentType;
+				}
+				result = new Result(url, file, stored, statusCode, stored ? file.length() : 0, System.currentTimeMillis() - startTime, error);
+			}
+		} catch (IOException e) {
+			get.abort();
+			result = new Result(url, file, false, -1, 0, System.currentTimeMillis() - startTime, e.getMessage());
+		} finally {
+			if (response != null) {
+				try {
+					response.close();
+				} catch (IOException e) {
+					log.debug("Failed closing response of " + url);
+				}
+			}
+		}
+
+		if (result.isStored()) {
+			fetchedCount.incrementAndGet();
+			fetchedBytes.addAndGet(result.getBytes());
+		} else {
+			failedCount.incrementAndGet();
+			log.error("Failed fetching " + url + ": " + result.getError());
+		}
+		metrics.record("fetchBill", start, result.isStored());
+		return result;
+	}
+
+	/**
+	 * @param webDriver
+	 * @return cookies of the driver's current domain, mapped through the HtmlUnit cookie like
+	 *         copyCookiesWebDriverToHtmlUnitWebClient
+	 */
+	public static CookieStore toCookieStore(WebDriver webDriver) {
+
+		CookieStore cookieStore = new BasicCookieStore();
+		for (Cookie cookie : webDriver.manage().getCookies()) {
+			cookieStore.addCookie(SeleniumUtils.getInstance().toHtmlUnitCookie(cookie).toHttpClient());
+		}
+		return cookieStore;
+	}
+
+	private String userAgentOf(WebDriver webDriver) {
+
+		if (!(webDriver instanceof JavascriptExecutor)) {
+			return null;
+		}
+		try {
+			Object userAgent = ((JavascriptExecutor) webDriver).executeScript("return navigator.userAgent;");
+			return userAgent instanceof String ? (String) userAgent : null;
+		} catch (WebDriverException e) {
+			log.debug("User agent not readable: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Outcome of one bill
+	 */
+	public static final class Result {
+
+		private final String url;
+		private final File file;
+		private final boolean stored;
+		private final int statusCode;
+		private final long bytes;
+		private final long elapsedInMilliSec;
+		private final String error;
+
+		private Result(String url, File file, boolean stored, int statusCode, long bytes, long elapsedInMilliSec, String error) {
+
+			this.url = url;
+			this.file = file;
+			this.stored = stored;
+			this.statusCode = statusCode;
+			this.bytes = bytes;
+			this.elapsedInMilliSec = elapsedInMilliSec;
+			this.error = error;
+		}
+
+		public String getUrl() {
+
+			return url;
+		}
+
+		public File getFile() {
+
+			return file;
+		}
+
+		public boolean isStored() {
+
+			return stored;
+		}
+
+		/**
+		 * @return http status, -1 if no response arrived
+		 */
+		public int getStatusCode() {
+
+			return statusCode;
+		}
+
+		public long getBytes() {
+
+			return bytes;
+		}
+
+		public long getElapsed() {
+
+			return elapsedInMilliSec;
+		}
+
+		/**
+		 * @return why the bill wasn't stored, null if it was
+		 */
+		public String getError() {
+
+			return error;
+		}
+	}
+}
@@ -0,0 +1,345 @@
+package selenium;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gargoylesoftware.htmlunit.HttpMethod;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebConnection;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.WebResponseData;
+import com.gargoylesoftware.htmlunit.util.NameValuePair;
+import com.gargoylesoftware.htmlunit.util.WebConnectionWrapper;
+
+/**
+ * Serves scripts, stylesheets, images and fonts of a HtmlUnit WebClient from a shared {@link HttpDiskCache}.
+ * 1. fresh -> the body is read from disk, the server isn't contacted.
+ * 2. stale -> the request is sent with If-None-Match / If-Modified-Since, a 304 serves the body from disk.
+ * 3. miss -> the response is stored when Cache-Control allows it: max-age, Expires, or a validator to revalidate with.
+ * Assets with a content hash in the file name, or marked immutable, are fresh for a year whatever the headers say.
+ * Only GET requests for static kinds are cached. Documents, pdf bodies, requests with an Authorization header and
+ * responses with Set-Cookie, Cache-Control private or no-store are never stored, so bills and pages of a logged in
+ * session don't end up on disk.
+ *
+ * @author naveenc
+ *
+ */
+public class CachingWebConnection extends WebConnectionWrapper {
+
+	private static final long IMMUTABLE_AGE_IN_MILLISEC = 365L * 24 * 60 * 60 * 1000;
+	private static final long MAX_ENTRY_SIZE = 8L * 1024 * 1024;
+	private static final Pattern HASHED_ASSET = Pattern.compile("[.\\-_~][0-9a-fA-F]{8,}(\\.min)?\\.(js|css|woff2?|ttf|png|jpe?g|gif|svg|webp)$");
+	private static final Pattern MAX_AGE = Pattern.compile("(?:^|[,\\s])(s-maxage|max-age)\\s*=\\s*\"?(\\d+)");
+
+	private final Logger log = LoggerFactory.getLogger(CachingWebConnection.class);
+	private volatile HttpDiskCache cache;
+
+	private CachingWebConnection(WebConnection webConnection, HttpDiskCache cache) {
+
+		super(webConnection);
+		this.cache = cache;
+	}
+
+	/**
+	 * Puts the cache on the client, once; a client that already has one switches to the given cache
+	 *
+	 * @param webClient
+	 * @param cache
+	 * @return the caching connection of the client
+	 */
+	public static CachingWebConnection install(WebClient webClient, HttpDiskCache cache) {
+
+		synchronized (webClient) {
+			WebConnection connection = webClient.getWebConnection();
+			while (connection instanceof WebConnectionWrapper) {
+				if (connection instanceof CachingWebConnection) {
+					((CachingWebConnection) connection).cache = cache;
+					return (CachingWebConnection) connection;
+				}
+				connection = ((WebConnectionWrapper) connection).getWrappedWebConnection();
+			}
+			CachingWebConnection caching = new CachingWebConnection(webClient.getWebConnection(), cache);
+			webClient.setWebConnection(caching);
+			return caching;
+		}
+	}
+
+	public HttpDiskCache getCache() {
+
+		return cache;
+	}
+
+	@Override
+	public WebResponse getResponse(WebRequest request) throws IOException {
+
+		HttpDiskCache current = cache;
+		URL url = request.getUrl();
+		if (!isCacheable(request)) {
+			return super.getResponse(request);
+		}
+		String key = url.toExternalForm();
+		HttpDiskCache.Entry entry = current.lookup(key);
+		if (entry != null && (entry.isFresh() || isImmutable(url, entry.getHeader("Cache-Control")))) {
+			byte[] body = current.readBody(entry);
+			if (body != null) {
+				current.recordHit(body.length);
+				return cached(request, entry, body);
+			}
+			entry = null;
+		}
+
+		boolean revalidating = false;
+		if (entry != null) {
+			// conditional headers are removed again, the request object belongs to the caller
+			revalidating = addValidators(request, entry);
+		}
+		WebResponse response;
+		try {
+			response = super.getResponse(request);
+		} finally {
+			if (revalidating) {
+				request.removeAdditionalHeader("If-None-Match");
+				request.removeAdditionalHeader("If-Modified-Since");
+			}
+		}
+
+		if (revalidating && response.getStatusCode() == 304) {
+			byte[] body = current.readBody(entry);
+			if (body != null) {
+				response.cleanUp();
+				current.recordRevalidated(body.length);
+				entry = current.refresh(entry, expiresAt(url, mergeHeaders(entry.getHeaders(), response.getResponseHeaders())));
+				return cached(request, entry, body);
+			}
+			// body evicted after the request went out, fetched again without validators
+			response.cleanUp();
+			current.recordMiss();
+			return super.getResponse(request);
+		}
+		current.recordMiss();
+		return store(current, request, response);
+	}
+
+	/*
+	 * the response is read once, stored if its headers allow it, and handed back from the bytes read
+	 */
+	private WebResponse store(HttpDiskCache current, WebRequest request, WebResponse response) {
+
+		URL url = request.getUrl();
+		if (response.getStatusCode() != 200 || !isStorable(response)) {
+			return response;
+		}
+		long expiresAt = expiresAt(url, response.getResponseHeaders());
+		boolean validator = response.getResponseHeaderValue("ETag") != null || response.getResponseHeaderValue("Last-Modified") != null;
+		if (expiresAt <= System.currentTimeMillis() && !validator) {
+			return response;
+		}
+
+		byte[] body;
+		try {
+			body = readBody(response);
+		} catch (IOException e) {
+			log.debug("Not caching " + url + ": " + e.getMessage());
+			return response;
+		}
+		if (body == null) {
+			return response;
+		}
+		List<NameValuePair> headers = replayedHeaders(response.getResponseHeaders());
+		try {
+			current.store(url.toExternalForm(), body, headers, expiresAt);
+		} catch (IOException e) {
+			log.error("Failed caching " + url + ": " + e.getMessage());
+		}
+		response.cleanUp();
+		return new WebResponse(new WebResponseData(body, 200, response.getStatusMessage(), withLength(headers, body.length)), request, response.getLoadTime());
+	}
+
+	private static boolean isCacheable(WebRequest request) {
+
+		if (request.getHttpMethod() != HttpMethod.GET || request.isAdditionalHeader("Authorization")) {
+			return false;
+		}
+		FilteringWebConnection.Kind kind = FilteringWebConnection.kindOfPath(request.getUrl().getPath());
+		return kind == FilteringWebConnection.Kind.SCRIPT || kind == FilteringWebConnection.Kind.STYLESHEET || kind == FilteringWebConnection.Kind.IMAGE
+				|| kind == FilteringWebConnection.Kind.FONT;
+	}
+
+	private static boolean isStorable(WebResponse response) {
+
+		if (response.getResponseHeaderValue("Set-Cookie") != null || response.getResponseHeaderValue("Vary") != null && response.getResponseHeaderValue("Vary").contains("*")) {
+			return false;
+		}
+		String cacheControl = lower(response.getResponseHeaderValue("Cache-Control"));
+		if (cacheControl.contains("no-store") || cacheControl.contains("private")) {
+			return false;
+		}
+		String contentType = lower(response.getContentType());
+		if (contentType.contains("pdf") || contentType.contains("octet-stream")) {
+			return false;
+		}
+		FilteringWebConnection.Kind kind = FilteringWebConnection.kindOfContentType(contentType, FilteringWebConnection.Kind.OTHER);
+		return kind != FilteringWebConnection.Kind.DOCUMENT && kind != FilteringWebConnection.Kind.OTHER;
+	}
+
+	private static boolean isImmutable(URL url, String cacheControl) {
+
+		return lower(cacheControl).contains("immutable") || HASHED_ASSET.matcher(url.getPath()).find();
+	}
+
+	/*
+	 * immutable -> a year; no-cache -> now, revalidated every time; max-age, then Expires; no freshness -> now
+	 */
+	private static long expiresAt(URL url, List<NameValuePair> headers) {
+
+		long now = System.currentTimeMillis();
+		String cacheControl = lower(header(headers, "Cache-Control"));
+		if (isImmutable(url, cacheControl)) {
+			return now + IMMUTABLE_AGE_IN_MILLISEC;
+		}
+		if (cacheControl.contains("no-cache")) {
+			return now;
+		}
+		Matcher matcher = MAX_AGE.matcher(cacheControl);
+		long maxAge = -1;
+		while (matcher.find()) {
+			// s-maxage wins over max-age, the cache is shared
+			if (maxAge == -1 || matcher.group(1).equals("s-maxage")) {
+				maxAge = Long.parseLong(matcher.group(2));
+			}
+		}
+		if (maxAge >= 0) {
+			return now + maxAge * 1000;
+		}
+		String expires = header(headers, "Expires");
+		if (expires != null) {
+			try {
+				return ZonedDateTime.parse(expires.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+			} catch (DateTimeParseException e) {
+				return now;
+			}
+		}
+		return now;
+	}
+
+	private static boolean addValidators(WebRequest request, HttpDiskCache.Entry entry) {
+
+		boolean added = false;
+		String etag = entry.getHeader("ETag");
+		if (etag != null && !request.isAdditionalHeader("If-None-Match")) {
+			request.setAdditionalHeader("If-None-Match", etag);
+			added = true;
+		}
+		String lastModified = entry.getHeader("Last-Modified");
+		if (lastModified != null && !request.isAdditionalHeader("If-Modified-Since")) {
+			request.setAdditionalHeader("If-Modified-Since", lastModified);
+			added = true;
+		}
+		return added;
+	}
+
+	/*
+	 * a 304 may update Cache-Control, Expires and ETag of the stored response
+	 */
+	private static List<NameValuePair> mergeHeaders(List<NameValuePair> stored, List<NameValuePair> updated) {
+
+		List<NameValuePair> merged = new ArrayList<NameValuePair>();
+		for (NameValuePair header : stored) {
+			if (header(updated, header.getName()) == null) {
+				merged.add(header);
+			}
+		}
+		for (NameValuePair header : updated) {
+			String name = header.getName();
+			if (name.equalsIgnoreCase("Cache-Control") || name.equalsIgnoreCase("Expires") || name.equalsIgnoreCase("ETag")) {
+				merged.add(header);
+			}
+		}
+		return merged;
+	}
+
+	/*
+	 * bodies are stored decoded, so length and encoding headers of the wire response are dropped
+	 */
+	private static List<NameValuePair> replayedHeaders(List<NameValuePair> headers) {
+
+		List<NameValuePair> replayed = new ArrayList<NameValuePair>();
+		for (NameValuePair header : headers) {
+			String name = header.getName();
+			if (!name.equalsIgnoreCase("Content-Length") && !name.equalsIgnoreCase("Content-Encoding") && !name.equalsIgnoreCase("Transfer-Encoding")
+					&& !name.equalsIgnoreCase("Set-Cookie") && !name.equalsIgnoreCase("Connection")) {
+				replayed.add(header);
+			}
+		}
+		return replayed;
+	}
+
+	private static List<NameValuePair> withLength(List<NameValuePair> headers, int length) {
+
+		List<NameValuePair> withLength = new ArrayList<NameValuePair>(headers);
+		withLength.add(new NameValuePair("Content-Length", String.valueOf(length)));
+		return withLength;
+	}
+
+	private static WebResponse cached(WebRequest request, HttpDiskCache.Entry entry, byte[] body) {
+
+		return new WebResponse(new WebResponseData(body, 200, "OK", withLength(entry.getHeaders(), body.length)), request, 0);
+	}
+
+	/*
+	 * null when the body is larger than an entry may be
+	 */
+	private static byte[] readBody(WebResponse response) throws IOException {
+
+		if (response.getContentLength() > MAX_ENTRY_SIZE) {
+			return null;
+		}
+		InputStream in = response.getContentAsStream();
+		if (in == null) {
+			return new byte[0];
+		}
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+				if (out.size() > MAX_ENTRY_SIZE) {
+					return null;
+				}
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String header(List<NameValuePair> headers, String name) {
+
+		for (NameValuePair header : headers) {
+			if (header.getName().equalsIgnoreCase(name)) {
+				return header.getValue();
+			}
+		}
+		return null;
+	}
+
+	private static String lower(String value) {
+
+		return value == null ? "" : value.toLowerCase(Locale.ROOT);
+	}
+}
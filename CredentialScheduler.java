@@ -0,0 +1,467 @@
+package selenium;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs credential and account jobs (getLogin, enumerate accounts, download bills) concurrently.
+ * 1. at most maxConcurrency jobs run at a time, and at most the site limit per site so that sites don't rate limit us.
+ * 2. within a site the job with the earliest deadline runs first.
+ * 3. sites take turns, unless a job is within the urgency window of its deadline.
+ * Each job returns the number of bills it downloaded, which gives the bills/minute per site and overall.
+ * A credential job can submit its account jobs to the same scheduler. Jobs label their {@link OperationMetrics} with the site.
+ *
+ * @author naveenc
+ *
+ */
+public class CredentialScheduler {
+
+	private final Logger log = LoggerFactory.getLogger(CredentialScheduler.class);
+
+	private final ExecutorService executor;
+	private final int maxConcurrency;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition finished = lock.newCondition();
+	private final Map<String, Site> sites = new LinkedHashMap<String, Site>();
+	private final Deque<Site> rotation = new ArrayDeque<Site>();
+	private final AtomicLong sequence = new AtomicLong();
+	private int defaultSiteLimit = 2;
+	private long urgencyWindowMillis = 60000L;
+	private int running;
+	private int pending;
+
+	private final SiteStats overall = new SiteStats();
+
+	/**
+	 * @param executor
+	 *            - runs the jobs, see {@link #newDefaultExecutor(int)}
+	 * @param maxConcurrency
+	 *            - jobs running at a time over all sites
+	 */
+	public CredentialScheduler(ExecutorService executor, int maxConcurrency) {
+
+		if (maxConcurrency < 1) {
+			throw new IllegalArgumentException("Invalid concurrency: " + maxConcurrency);
+		}
+		this.executor = executor;
+		this.maxConcurrency = maxConcurrency;
+	}
+
+	/**
+	 * Virtual thread per task executor when the JVM has one, otherwise a fixed pool of daemon threads
+	 *
+	 * @param threads
+	 *            - pool size used without virtual threads
+	 * @return executor
+	 */
+	public static ExecutorService newDefaultExecutor(int threads) {
+
+		try {
+			Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) virtual.invoke(null);
+		} catch (Exception e) {
+			final AtomicInteger count = new AtomicInteger();
+			return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+
+					Thread thread = new Thread(runnable, "credential-scheduler-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Jobs of one site running at a time
+	 *
+	 * @param site
+	 * @param limit
+	 *            - at least 1
+	 */
+	public void setSiteLimit(String site, int limit) {
+
+		if (limit < 1) {
+			throw new IllegalArgumentException("Invalid site limit for " + site + ": " + limit);
+		}
+		lock.lock();
+		try {
+			getSite(site).limit = limit;
+			dispatch();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Limit for the sites without an own limit
+	 *
+	 * @param defaultSiteLimit
+	 *            - at least 1
+	 */
+	public void setDefaultSiteLimit(int defaultSiteLimit) {
+
+		if (defaultSiteLimit < 1) {
+			throw new IllegalArgumentException("Invalid default site limit: " + defaultSiteLimit);
+		}
+		this.defaultSiteLimit = defaultSiteLimit;
+	}
+
+	/**
+	 * Jobs this close to their deadline are taken before the turn of their site comes
+	 *
+	 * @param urgencyWindowMillis
+	 */
+	public void setUrgencyWindow(long urgencyWindowMillis) {
+
+		this.urgencyWindowMillis = urgencyWindowMillis;
+	}
+
+	/**
+	 * Queues a job of the given site
+	 *
+	 * @param site
+	 * @param deadline
+	 *            - time in milliseconds the job should be done by
+	 * @param job
+	 *            - returns the number of bills downloaded
+	 * @return future of the bill count
+	 */
+	public Future<Integer> submit(String site, long deadline, Callable<Integer> job) {
+
+		lock.lock();
+		try {
+			Site target = getSite(site);
+			Job task = new Job(target, deadline, sequence.incrementAndGet(), job);
+			target.queue.add(task);
+			pending++;
+			dispatch();
+			return task;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until every submitted job, including jobs submitted by running jobs, is done
+	 *
+	 * @param timeoutInMilliSec
+	 * @return false if jobs are still running after the timeout
+	 * @throws InterruptedException
+	 */
+	public boolean awaitCompletion(long timeoutInMilliSec) throws InterruptedException {
+
+		long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutInMilliSec);
+		lock.lock();
+		try {
+			while (running > 0 || pending > 0) {
+				if (remaining <= 0) {
+					return false;
+				}
+				remaining = finished.awaitNanos(remaining);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void shutdown() {
+
+		executor.shutdown();
+		log.info("Scheduler finished " + overall.completed.get() + " job(s), " + overall.bills.get() + " bill(s) at " + String.format("%.2f", getBillsPerMinute()) + " bills/minute");
+	}
+
+	/**
+	 * @param site
+	 * @return bills per minute of the site from its first job start to its last job end
+	 */
+	public double getBillsPerMinute(String site) {
+
+		lock.lock();
+		try {
+			Site target = sites.get(site);
+			return target == null ? 0d : target.stats.getBillsPerMinute();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return bills per minute over all sites from the first job start to the last job end
+	 */
+	public double getBillsPerMinute() {
+
+		return overall.getBillsPerMinute();
+	}
+
+	/**
+	 * @return statistics of every site
+	 */
+	public Map<String, SiteStats> getSiteStats() {
+
+		lock.lock();
+		try {
+			Map<String, SiteStats> stats = new LinkedHashMap<String, SiteStats>();
+			for (Site site : sites.values()) {
+				stats.put(site.name, site.stats);
+			}
+			return stats;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public SiteStats getOverallStats() {
+
+		return overall;
+	}
+
+	private Site getSite(String name) {
+
+		Site site = sites.get(name);
+		if (site == null) {
+			site = new Site(name, defaultSiteLimit);
+			sites.put(name, site);
+			rotation.addLast(site);
+		}
+		return site;
+	}
+
+	/*
+	 * called with the lock held, starts as many jobs as the limits allow
+	 */
+	private void dispatch() {
+
+		while (running < maxConcurrency) {
+			Site next = nextSite();
+			if (next == null) {
+				return;
+			}
+			Job job = next.queue.poll();
+			pending--;
+			try {
+				executor.execute(job);
+			} catch (RejectedExecutionException e) {
+				// the job never runs, fail it so awaitCompletion doesn't wait for it
+				log.error("Executor rejected job of site " + next.name + ": " + e.getMessage());
+				job.reject(e);
+				next.stats.markRejected();
+				overall.markRejected();
+				if (running == 0 && pending == 0) {
+					finished.signalAll();
+				}
+				continue;
+			}
+			// the job can't finish before the lock is released, onFinished takes it
+			running++;
+			next.running++;
+			next.stats.markStarted();
+			overall.markStarted();
+		}
+	}
+
+	private Site nextSite() {
+
+		long urgentBefore = System.currentTimeMillis() + urgencyWindowMillis;
+		Site urgent = null;
+		for (Site site : rotation) {
+			if (site.isRunnable() && site.queue.peek().deadline <= urgentBefore && (urgent == null || site.queue.peek().deadline < urgent.queue.peek().deadline)) {
+				urgent = site;
+			}
+		}
+		if (urgent != null) {
+			return urgent;
+		}
+
+		// round robin over the sites
+		for (int i = 0; i < rotation.size(); i++) {
+			Site site = rotation.pollFirst();
+			rotation.addLast(site);
+			if (site.isRunnable()) {
+				return site;
+			}
+		}
+		return null;
+	}
+
+	private void onFinished(Job job) {
+
+		lock.lock();
+		try {
+			running--;
+			job.site.running--;
+			dispatch();
+			if (running == 0 && pending == 0) {
+				finished.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private final class Job extends FutureTask<Integer> {
+
+		private final Site site;
+		private final long deadline;
+		private final long sequence;
+
+		private Job(Site site, long deadline, long sequence, Callable<Integer> job) {
+
+			super(job);
+			this.site = site;
+			this.deadline = deadline;
+			this.sequence = sequence;
+		}
+
+		private void reject(RejectedExecutionException e) {
+
+			setException(e);
+		}
+
+		@Override
+		public void run() {
+
+			OperationMetrics.setSite(site.name);
+			try {
+				super.run();
+				Integer bills = get();
+				site.stats.record(bills == null ? 0 : bills, true);
+				overall.record(bills == null ? 0 : bills, true);
+			} catch (Exception e) {
+				log.error("Job of site " + site.name + " failed: " + e.getMessage());
+				site.stats.record(0, false);
+				overall.record(0, false);
+			} finally {
+				OperationMetrics.clearSite();
+				onFinished(this);
+			}
+		}
+	}
+
+	private static final Comparator<Job> BY_DEADLINE = new Comparator<Job>() {
+
+		@Override
+		public int compare(Job first, Job second) {
+
+			if (first.deadline != second.deadline) {
+				return first.deadline < second.deadline ? -1 : 1;
+			}
+			return first.sequence < second.sequence ? -1 : (first.sequence == second.sequence ? 0 : 1);
+		}
+	};
+
+	private static final class Site {
+
+		private final String name;
+		private final PriorityQueue<Job> queue = new PriorityQueue<Job>(16, BY_DEADLINE);
+		private final SiteStats stats = new SiteStats();
+		private int limit;
+		private int running;
+
+		private Site(String name, int limit) {
+
+			this.name = name;
+			this.limit = limit;
+		}
+
+		private boolean isRunnable() {
+
+			return !queue.isEmpty() && running < limit;
+		}
+	}
+
+	/**
+	 * Job and bill counts of a site, or of all sites
+	 */
+	public static final class SiteStats {
+
+		private final AtomicLong bills = new AtomicLong();
+		private final AtomicLong completed = new AtomicLong();
+		private final AtomicLong failed = new AtomicLong();
+		private final AtomicLong firstStart = new AtomicLong();
+		private final AtomicLong lastEnd = new AtomicLong();
+
+		private void markStarted() {
+
+			firstStart.compareAndSet(0L, System.currentTimeMillis());
+		}
+
+		/*
+		 * a job that never ran fails without ending the measured time span
+		 */
+		private void markRejected() {
+
+			failed.incrementAndGet();
+		}
+
+		private void record(int billCount, boolean success) {
+
+			bills.addAndGet(billCount);
+			(success ? completed : failed).incrementAndGet();
+			long now = System.currentTimeMillis();
+			long end;
+			do {
+				end = lastEnd.get();
+			} while (end < now && !lastEnd.compareAndSet(end, now));
+		}
+
+		public long getBills() {
+
+			return bills.get();
+		}
+
+		public long getCompleted() {
+
+			return completed.get();
+		}
+
+		public long getFailed() {
+
+			return failed.get();
+		}
+
+		/**
+		 * @return bills per minute between the first job start and the last job end, idle time after the last job
+		 *         doesn't count
+		 */
+		public double getBillsPerMinute() {
+
+			long start = firstStart.get();
+			long end = lastEnd.get();
+			if (start == 0L || end == 0L) {
+				return 0d;
+			}
+			long elapsed = Math.max(1L, end - start);
+			return bills.get() * 60000d / elapsed;
+		}
+
+		@Override
+		public String toString() {
+
+			return "bills=" + bills.get() + ", completed=" + completed.get() + ", failed=" + failed.get() + ", billsPerMinute=" + String.format("%.2f", getBillsPerMinute());
+		}
+	}
+}
@@ -0,0 +1,409 @@
+package selenium;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Follows browser downloads through a WatchService instead of polling the download directory.
+ * One tracker and one watcher thread serve a download directory for all sessions; each session registers the download
+ * it expects by a name fragment and its start time and gets a future which completes with the finished file.
+ * A download is stalled when its .part / .crdownload file stops growing for the stall time, and fails when it doesn't
+ * start within the start time. A tracker whose directory was removed or renamed is replaced by the next forDirectory with
+ * one on the directory now at that path, which takes over the downloads still expected. A stopped tracker fails the
+ * downloads it still waits for; release stops the tracker of a directory no longer downloaded to.
+ *
+ * @author naveenc
+ *
+ */
+public class DownloadTracker {
+
+	private static final Map<Path, DownloadTracker> trackers = new ConcurrentHashMap<Path, DownloadTracker>();
+	private static final String PART_SUFFIX = ".part|.crdownload";
+
+	private final Logger log = LoggerFactory.getLogger(DownloadTracker.class);
+	private final File downloadDir;
+	private final Path key;
+	private final WatchService watchService;
+	private final Object directoryKey;
+	private final List<Expected> expected = new CopyOnWriteArrayList<Expected>();
+	private long checkIntervalInMilliSec = 2000L;
+	private volatile boolean watching = true;
+
+	/**
+	 * @param downloadDir
+	 * @return the tracker of the directory, started on first use and again when the last one stopped watching
+	 * @throws IOException
+	 *             directory can't be watched
+	 */
+	public static DownloadTracker forDirectory(File downloadDir) throws IOException {
+
+		Path key = downloadDir.getAbsoluteFile().toPath().normalize();
+		DownloadTracker tracker = trackers.get(key);
+		if (tracker == null || !tracker.isWatching()) {
+			synchronized (trackers) {
+				tracker = trackers.get(key);
+				if (tracker == null || !tracker.isWatching()) {
+					DownloadTracker replaced = tracker;
+					tracker = new DownloadTracker(downloadDir, key);
+					trackers.put(key, tracker);
+					if (replaced != null) {
+						tracker.takeOver(replaced);
+						replaced.closeQuietly();
+					}
+				}
+			}
+		}
+		return tracker;
+	}
+
+	/**
+	 * Stops the tracker of the directory, e.g. once the session downloading to it is done. Downloads it still waits for
+	 * fail with an IOException
+	 *
+	 * @param downloadDir
+	 */
+	public static void release(File downloadDir) {
+
+		DownloadTracker tracker = trackers.remove(downloadDir.getAbsoluteFile().toPath().normalize());
+		if (tracker != null) {
+			tracker.closeQuietly();
+		}
+	}
+
+	private DownloadTracker(File downloadDir, Path key) throws IOException {
+
+		this.downloadDir = downloadDir;
+		this.key = key;
+		directoryKey = directoryKey(downloadDir);
+		watchService = FileSystems.getDefault().newWatchService();
+		downloadDir.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+
+		Thread watcher = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+
+				try {
+					watch();
+				} finally {
+					watching = false;
+					trackers.remove(key, DownloadTracker.this);
+					closeQuietly();
+				}
+			}
+		}, "download-tracker-" + downloadDir.getName());
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	/**
+	 * How often the size of running downloads is checked for progress
+	 *
+	 * @param checkIntervalInMilliSec
+	 */
+	public void setCheckInterval(long checkIntervalInMilliSec) {
+
+		this.checkIntervalInMilliSec = checkIntervalInMilliSec;
+	}
+
+	/**
+	 * Registers a download the caller is about to start
+	 *
+	 * @param nameContains
+	 *            - fragment of the downloaded file name, null or empty for any file
+	 * @param startTime
+	 *            - files last modified before it are not this download
+	 * @param startWaitInMilliSec
+	 *            - time for the download to start
+	 * @param stallTimeInMilliSec
+	 *            - time the partial file may go without growing
+	 * @return completes with the downloaded file, or exceptionally with TimeoutException when it didn't start or stalled
+	 */
+	public CompletableFuture<File> expect(String nameContains, long startTime, long startWaitInMilliSec, long stallTimeInMilliSec) {
+
+		final Expected download = new Expected(nameContains, startTime, startWaitInMilliSec, stallTimeInMilliSec);
+		download.checker = WaitManager.getInstance().scheduleAtFixedRate(new Runnable() {
+
+			@Override
+			public void run() {
+
+				checkProgress(download);
+			}
+		}, checkIntervalInMilliSec);
+		download.future.whenComplete(new BiConsumer<File, Throwable>() {
+
+			@Override
+			public void accept(File file, Throwable error) {
+
+				download.checker.cancel(false);
+			}
+		});
+		add(download);
+		return download.future;
+	}
+
+	/*
+	 * waits for the download in this tracker's directory, until it completes
+	 */
+	private void add(final Expected download) {
+
+		expected.add(download);
+		download.future.whenComplete(new BiConsumer<File, Throwable>() {
+
+			@Override
+			public void accept(File file, Throwable error) {
+
+				expected.remove(download);
+			}
+		});
+
+		// file may have appeared before registering
+		File[] files = downloadDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				onEvent(download, file);
+			}
+		}
+	}
+
+	/*
+	 * the downloads of a replaced tracker go on in the directory now at the path
+	 */
+	private void takeOver(DownloadTracker replaced) {
+
+		for (Expected download : replaced.expected) {
+			replaced.expected.remove(download);
+			add(download);
+		}
+	}
+
+	/**
+	 * @return number of downloads being waited for
+	 */
+	public int getPendingCount() {
+
+		return expected.size();
+	}
+
+	private void watch() {
+
+		while (true) {
+			WatchKey key;
+			try {
+				key = watchService.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ClosedWatchServiceException e) {
+				return;
+			}
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					rescan();
+					continue;
+				}
+				File file = new File(downloadDir, ((Path) event.context()).toString());
+				for (Expected download : expected) {
+					onEvent(download, file);
+				}
+			}
+			if (!key.reset()) {
+				log.error("Download directory is not watchable any more: " + downloadDir.getAbsolutePath());
+				for (Expected download : expected) {
+					download.future.completeExceptionally(new IOException("Download directory removed " + downloadDir.getAbsolutePath()));
+				}
+				return;
+			}
+		}
+	}
+
+	/*
+	 * a watch follows the directory it was registered on, which may have been renamed away from the path since
+	 */
+	private boolean isWatching() {
+
+		if (!watching) {
+			return false;
+		}
+		try {
+			return directoryKey == null || directoryKey.equals(directoryKey(downloadDir));
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static Object directoryKey(File directory) throws IOException {
+
+		return Files.readAttributes(directory.toPath(), BasicFileAttributes.class).fileKey();
+	}
+
+	private void closeQuietly() {
+
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			log.debug("Failed closing the watch service of " + downloadDir.getAbsolutePath() + ": " + e.getMessage());
+		}
+		// nothing completes them any more
+		for (Expected download : expected) {
+			download.future.completeExceptionally(new IOException("Download tracker of " + downloadDir.getAbsolutePath() + " stopped"));
+		}
+	}
+
+	private void rescan() {
+
+		File[] files = downloadDir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			for (Expected download : expected) {
+				onEvent(download, file);
+			}
+		}
+	}
+
+	/*
+	 * correlates a created, modified or renamed file to the expected download
+	 */
+	private void onEvent(Expected download, File file) {
+
+		String name = file.getName();
+		boolean partial = isPartial(name);
+		String finalName = name.replaceAll(PART_SUFFIX, "");
+		if (!download.matches(finalName)) {
+			return;
+		}
+
+		synchronized (download) {
+			if (partial) {
+				if (file.exists() && file.lastModified() >= download.startTime && download.partFile == null) {
+					log.debug("Download started " + file.getAbsolutePath());
+					download.partFile = file;
+					download.lastSize = file.length();
+					download.lastProgress = System.currentTimeMillis();
+				} else if (!file.exists() && file.equals(download.partFile)) {
+					// partial file renamed away, the download finished
+					complete(download, new File(downloadDir, finalName));
+				}
+				return;
+			}
+			complete(download, file);
+		}
+	}
+
+	/*
+	 * a finished file; done once no partial file of it remains. Browsers may create the empty final file up front
+	 */
+	private void complete(Expected download, File file) {
+
+		if (file.exists() && file.lastModified() >= download.startTime && !hasPartFile(file) && (file.length() > 0 || download.partFile != null)) {
+			download.future.complete(file);
+		}
+	}
+
+	private void checkProgress(Expected download) {
+
+		long now = System.currentTimeMillis();
+		synchronized (download) {
+			if (download.future.isDone()) {
+				return;
+			}
+			if (download.partFile == null) {
+				if (now - download.registered > download.startWait) {
+					download.future.completeExceptionally(new TimeoutException("Download did not start in " + download.startWait + " ms"));
+				}
+				return;
+			}
+			if (!download.partFile.exists()) {
+				// renamed to the final name, the watcher event completes it. Covers a lost event as well
+				complete(download, new File(download.partFile.getAbsolutePath().replaceAll(PART_SUFFIX, "")));
+				return;
+			}
+			long size = download.partFile.length();
+			if (size > download.lastSize) {
+				download.lastSize = size;
+				download.lastProgress = now;
+			} else if (now - download.lastProgress > download.stallTime) {
+				download.future.completeExceptionally(new DownloadStalledException(download.partFile, size));
+			}
+		}
+	}
+
+	private static boolean isPartial(String name) {
+
+		return name.endsWith(".part") || name.endsWith(".crdownload");
+	}
+
+	private static boolean hasPartFile(File file) {
+
+		return new File(file.getAbsolutePath() + ".part").exists() || new File(file.getAbsolutePath() + ".crdownload").exists();
+	}
+
+	/**
+	 * The partial file of a download stopped growing
+	 */
+	public static class DownloadStalledException extends TimeoutException {
+
+		private static final long serialVersionUID = 1L;
+		private final File partFile;
+
+		public DownloadStalledException(File partFile, long size) {
+
+			super("Download stalled at " + size + " bytes: " + partFile.getAbsolutePath());
+			this.partFile = partFile;
+		}
+
+		public File getPartFile() {
+
+			return partFile;
+		}
+	}
+
+	private static final class Expected {
+
+		private final String nameContains;
+		private final long startTime;
+		private final long startWait;
+		private final long stallTime;
+		private final long registered = System.currentTimeMillis();
+		private final CompletableFuture<File> future = new CompletableFuture<File>();
+		private volatile ScheduledFuture<?> checker;
+		private File partFile;
+		private long lastSize;
+		private long lastProgress;
+
+		private Expected(String nameContains, long startTime, long startWait, long stallTime) {
+
+			this.nameContains = nameContains;
+			this.startTime = startTime;
+			this.startWait = startWait;
+			this.stallTime = stallTime;
+		}
+
+		private boolean matches(String finalName) {
+
+			return nameContains == null || nameContains.isEmpty() || finalName.contains(nameContains);
+		}
+	}
+}
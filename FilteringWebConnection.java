@@ -0,0 +1,474 @@
+package selenium;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebConnection;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.WebResponseData;
+import com.gargoylesoftware.htmlunit.util.NameValuePair;
+import com.gargoylesoftware.htmlunit.util.WebConnectionWrapper;
+
+/**
+ * Blocks images, fonts, analytics beacons and ad scripts at the connection of a HtmlUnit WebClient.
+ * 1. request -> the rules of the site's {@link Profile} are matched on host, path and the resource kind guessed from
+ * the path; a denied request never leaves the client.
+ * 2. response -> rules are matched again with the kind from the Content-Type, a denied body is dropped before HtmlUnit
+ * parses or runs it.
+ * Blocked resources get a stub response of the same kind, an empty script or stylesheet, a transparent gif, so the page
+ * still loads. The url the caller asked for is never blocked. A filter installed for saving keeps images, fonts and
+ * media, the saved page needs them.
+ * Per site profiles are chosen by the host of that url; sites without a profile use the default profile. The filter is
+ * installed for one call and uninstalled after it, a client handed on to other code isn't filtered. Calls using one
+ * client at the same time each keep their own url, profile and saving flag; a request passes when any of them allows it.
+ *
+ * @author naveenc
+ *
+ */
+public class FilteringWebConnection extends WebConnectionWrapper {
+
+	private static final byte[] TRANSPARENT_GIF = { 0x47, 0x49, 0x46, 0x38, 0x39, 0x61, 0x01, 0x00, 0x01, 0x00, (byte) 0x80, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x21,
+			(byte) 0xF9, 0x04, 0x01, 0x00, 0x00, 0x00, 0x00, 0x2C, 0x00, 0x00, 0x00, 0x00, 0x01, 0x00, 0x01, 0x00, 0x00, 0x02, 0x02, 0x44, 0x01, 0x00, 0x3B };
+
+	private static final Map<String, Profile> profiles = new ConcurrentHashMap<String, Profile>();
+	private static volatile Profile defaultProfile = Profile.standard();
+
+	private static final AtomicLong allowedCount = new AtomicLong();
+	private static final AtomicLong blockedCount = new AtomicLong();
+	private static final AtomicLong bytesSaved = new AtomicLong();
+	private static final AtomicLong[] kindBytes = new AtomicLong[Kind.values().length];
+	private static final AtomicLong[] kindResponses = new AtomicLong[Kind.values().length];
+
+	static {
+		for (int i = 0; i < kindBytes.length; i++) {
+			kindBytes[i] = new AtomicLong();
+			kindResponses[i] = new AtomicLong();
+		}
+	}
+
+	/**
+	 * Kind of a resource, from its path or its content type
+	 */
+	public enum Kind {
+		DOCUMENT, SCRIPT, STYLESHEET, IMAGE, FONT, MEDIA, OTHER
+	}
+
+	private final Logger log = LoggerFactory.getLogger(FilteringWebConnection.class);
+	private final List<Call> calls = new CopyOnWriteArrayList<Call>();
+
+	private FilteringWebConnection(WebConnection webConnection) {
+
+		super(webConnection);
+	}
+
+	/**
+	 * Same as install(webClient, url, false)
+	 *
+	 * @param webClient
+	 * @param url
+	 *            - url the caller loads, never blocked
+	 * @return the call, to be handed to uninstall
+	 */
+	public static Call install(WebClient webClient, String url) {
+
+		return install(webClient, url, false);
+	}
+
+	/**
+	 * Puts the filter on the client, once, and starts a call with the profile of the url's site. Called before every
+	 * request a caller makes, so the profile follows the site the client is used for; {@link #uninstall(WebClient, Call)}
+	 * after it
+	 *
+	 * @param webClient
+	 * @param url
+	 *            - url the caller loads, never blocked
+	 * @param saving
+	 *            - true if the page is saved, images, fonts and media aren't blocked then
+	 * @return the call, to be handed to uninstall
+	 */
+	public static Call install(WebClient webClient, String url, boolean saving) {
+
+		synchronized (webClient) {
+			FilteringWebConnection filter = find(webClient.getWebConnection());
+			if (filter == null) {
+				filter = new FilteringWebConnection(webClient.getWebConnection());
+				webClient.setWebConnection(filter);
+			}
+			Call call = new Call(filter, url, profileOf(url), saving);
+			filter.calls.add(call);
+			return call;
+		}
+	}
+
+	/**
+	 * Ends the call. The filter is taken off the client when no other call uses it; a filter wrapped by another
+	 * connection since can't be taken out of the chain, it passes every request through until it is installed again
+	 *
+	 * @param webClient
+	 * @param call
+	 *            - returned by install, null is ignored
+	 */
+	public static void uninstall(WebClient webClient, Call call) {
+
+		if (call == null) {
+			return;
+		}
+		synchronized (webClient) {
+			FilteringWebConnection filter = call.filter;
+			filter.calls.remove(call);
+			if (filter.calls.isEmpty() && webClient.getWebConnection() == filter) {
+				webClient.setWebConnection(filter.getWrappedWebConnection());
+			}
+		}
+	}
+
+	/**
+	 * @param site
+	 *            - host name; subdomains use the profile too
+	 * @param profile
+	 */
+	public static void setProfile(String site, Profile profile) {
+
+		profiles.put(site.toLowerCase(Locale.ROOT), profile);
+	}
+
+	/**
+	 * @param profile
+	 *            - used for sites without their own profile
+	 */
+	public static void setDefaultProfile(Profile profile) {
+
+		defaultProfile = profile;
+	}
+
+	public static long getAllowedCount() {
+
+		return allowedCount.get();
+	}
+
+	public static long getBlockedCount() {
+
+		return blockedCount.get();
+	}
+
+	/**
+	 * @return bytes not downloaded; requests blocked before sending count with the average size of their kind, bodies
+	 *         dropped after the response were downloaded and don't count
+	 */
+	public static long getBytesSaved() {
+
+		return bytesSaved.get();
+	}
+
+	@Override
+	public WebResponse getResponse(WebRequest request) throws IOException {
+
+		Call[] active = calls.toArray(new Call[0]);
+		if (active.length == 0) {
+			return super.getResponse(request);
+		}
+		URL url = request.getUrl();
+		boolean target = isTarget(active, url.toExternalForm());
+		Kind kind = kindOfPath(url.getPath());
+		if (!target && !isAllowed(active, url, kind)) {
+			blockedCount.incrementAndGet();
+			bytesSaved.addAndGet(averageSize(kind));
+			log.debug("Blocked " + kind + " " + url);
+			return stub(request, kind);
+		}
+
+		WebResponse response = super.getResponse(request);
+		Kind contentKind = kindOfContentType(response.getContentType(), kind);
+		long length = Math.max(0, response.getContentLength());
+		kindBytes[contentKind.ordinal()].addAndGet(length);
+		kindResponses[contentKind.ordinal()].incrementAndGet();
+		if (!target && contentKind != kind && !isAllowed(active, url, contentKind)) {
+			// body is downloaded already, only parsing and running it is saved
+			blockedCount.incrementAndGet();
+			log.debug("Dropped " + contentKind + " " + url);
+			response.cleanUp();
+			return stub(request, contentKind);
+		}
+		allowedCount.incrementAndGet();
+		return response;
+	}
+
+	private static boolean isTarget(Call[] active, String url) {
+
+		for (Call call : active) {
+			if (url.equals(call.targetUrl)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * a request one of the calls needs isn't blocked for the others
+	 */
+	private static boolean isAllowed(Call[] active, URL url, Kind kind) {
+
+		for (Call call : active) {
+			if (call.isAllowed(url, kind)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static FilteringWebConnection find(WebConnection webConnection) {
+
+		WebConnection connection = webConnection;
+		while (connection instanceof WebConnectionWrapper) {
+			if (connection instanceof FilteringWebConnection) {
+				return (FilteringWebConnection) connection;
+			}
+			connection = ((WebConnectionWrapper) connection).getWrappedWebConnection();
+		}
+		return null;
+	}
+
+	private static Profile profileOf(String url) {
+
+		String host;
+		try {
+			host = new URL(url).getHost().toLowerCase(Locale.ROOT);
+		} catch (IOException e) {
+			return defaultProfile;
+		}
+		while (!host.isEmpty()) {
+			Profile site = profiles.get(host);
+			if (site != null) {
+				return site;
+			}
+			int dot = host.indexOf('.');
+			host = dot == -1 ? "" : host.substring(dot + 1);
+		}
+		return defaultProfile;
+	}
+
+	private static long averageSize(Kind kind) {
+
+		long responses = kindResponses[kind.ordinal()].get();
+		return responses == 0 ? 0 : kindBytes[kind.ordinal()].get() / responses;
+	}
+
+	private static WebResponse stub(WebRequest request, Kind kind) {
+
+		byte[] body;
+		String contentType;
+		switch (kind) {
+		case IMAGE:
+			body = TRANSPARENT_GIF;
+			contentType = "image/gif";
+			break;
+		case SCRIPT:
+			body = new byte[0];
+			contentType = "application/javascript";
+			break;
+		case STYLESHEET:
+			body = new byte[0];
+			contentType = "text/css";
+			break;
+		case DOCUMENT:
+			body = "<html><head></head><body></body></html>".getBytes(StandardCharsets.ISO_8859_1);
+			contentType = "text/html";
+			break;
+		default:
+			body = new byte[0];
+			contentType = "application/octet-stream";
+		}
+		List<NameValuePair> headers = new ArrayList<NameValuePair>();
+		headers.add(new NameValuePair("Content-Type", contentType));
+		headers.add(new NameValuePair("Content-Length", String.valueOf(body.length)));
+		return new WebResponse(new WebResponseData(body, 200, "OK", headers), request, 0);
+	}
+
+	static Kind kindOfPath(String path) {
+
+		String lower = path == null ? "" : path.toLowerCase(Locale.ROOT);
+		int dot = lower.lastIndexOf('.');
+		if (dot == -1 || dot < lower.lastIndexOf('/')) {
+			return Kind.DOCUMENT;
+		}
+		String extension = lower.substring(dot + 1);
+		if (extension.equals("js")) {
+			return Kind.SCRIPT;
+		} else if (extension.equals("css")) {
+			return Kind.STYLESHEET;
+		} else if (Arrays.asList("png", "jpg", "jpeg", "gif", "svg", "webp", "ico", "bmp").contains(extension)) {
+			return Kind.IMAGE;
+		} else if (Arrays.asList("woff", "woff2", "ttf", "otf", "eot").contains(extension)) {
+			return Kind.FONT;
+		} else if (Arrays.asList("mp4", "webm", "mp3", "ogg", "wav", "avi").contains(extension)) {
+			return Kind.MEDIA;
+		} else if (Arrays.asList("html", "htm", "jsp", "php", "asp", "aspx", "do").contains(extension)) {
+			return Kind.DOCUMENT;
+		}
+		return Kind.OTHER;
+	}
+
+	static Kind kindOfContentType(String contentType, Kind fallback) {
+
+		if (contentType == null || contentType.isEmpty()) {
+			return fallback;
+		}
+		String lower = contentType.toLowerCase(Locale.ROOT);
+		if (lower.contains("javascript") || lower.contains("ecmascript")) {
+			return Kind.SCRIPT;
+		} else if (lower.startsWith("text/css")) {
+			return Kind.STYLESHEET;
+		} else if (lower.startsWith("image/")) {
+			return Kind.IMAGE;
+		} else if (lower.startsWith("font/") || lower.contains("font-")) {
+			return Kind.FONT;
+		} else if (lower.startsWith("video/") || lower.startsWith("audio/")) {
+			return Kind.MEDIA;
+		} else if (lower.startsWith("text/html") || lower.contains("xhtml")) {
+			return Kind.DOCUMENT;
+		}
+		return Kind.OTHER;
+	}
+
+	/**
+	 * Url, profile and saving flag of one call, returned by install and handed back to uninstall
+	 */
+	public static final class Call {
+
+		private final FilteringWebConnection filter;
+		private final String targetUrl;
+		private final Profile profile;
+		private final boolean saving;
+
+		private Call(FilteringWebConnection filter, String targetUrl, Profile profile, boolean saving) {
+
+			this.filter = filter;
+			this.targetUrl = targetUrl;
+			this.profile = profile;
+			this.saving = saving;
+		}
+
+		private boolean isAllowed(URL url, Kind kind) {
+
+			if (saving && (kind == Kind.IMAGE || kind == Kind.FONT || kind == Kind.MEDIA)) {
+				return true;
+			}
+			return profile.isAllowed(url.getHost(), url.getPath(), kind);
+		}
+	}
+
+	/**
+	 * Ordered allow and deny rules, the first matching rule decides; nothing matched -> allowed
+	 */
+	public static class Profile {
+
+		private final List<Rule> rules = new ArrayList<Rule>();
+
+		/**
+		 * Denies known analytics and ad hosts, images, fonts and media
+		 *
+		 * @return new profile, more rules can be added in front with allow
+		 */
+		public static Profile standard() {
+
+			Profile profile = new Profile();
+			for (String host : Arrays.asList("google-analytics.com", "googletagmanager.com", "doubleclick.net", "googlesyndication.com", "googleadservices.com", "facebook.net",
+					"hotjar.com", "scorecardresearch.com", "quantserve.com", "newrelic.com", "nr-data.net", "omtrdc.net", "demdex.net", "adobedtm.com", "bat.bing.com",
+					"analytics.twitter.com", "ads.linkedin.com", "optimizely.com", "crazyegg.com")) {
+				profile.deny(host, null);
+			}
+			profile.deny(null, null, Kind.IMAGE, Kind.FONT, Kind.MEDIA);
+			return profile;
+		}
+
+		/**
+		 * Rule checked before the existing rules
+		 *
+		 * @param host
+		 *            - host or parent domain, null for any host
+		 * @param pathRegex
+		 *            - found in the path, null for any path
+		 * @param kinds
+		 *            - none for any kind
+		 * @return this profile
+		 */
+		public synchronized Profile allow(String host, String pathRegex, Kind... kinds) {
+
+			rules.add(0, new Rule(true, host, pathRegex, kinds));
+			return this;
+		}
+
+		/**
+		 * Rule checked after the existing rules
+		 *
+		 * @param host
+		 *            - host or parent domain, null for any host
+		 * @param pathRegex
+		 *            - found in the path, null for any path
+		 * @param kinds
+		 *            - none for any kind
+		 * @return this profile
+		 */
+		public synchronized Profile deny(String host, String pathRegex, Kind... kinds) {
+
+			rules.add(new Rule(false, host, pathRegex, kinds));
+			return this;
+		}
+
+		public synchronized boolean isAllowed(String host, String path, Kind kind) {
+
+			for (Rule rule : rules) {
+				if (rule.matches(host, path, kind)) {
+					return rule.allow;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static final class Rule {
+
+		private final boolean allow;
+		private final String host;
+		private final Pattern path;
+		private final List<Kind> kinds;
+
+		private Rule(boolean allow, String host, String pathRegex, Kind... kinds) {
+
+			this.allow = allow;
+			this.host = host == null ? null : host.toLowerCase(Locale.ROOT);
+			this.path = pathRegex == null ? null : Pattern.compile(pathRegex);
+			this.kinds = kinds.length == 0 ? Collections.<Kind> emptyList() : Arrays.asList(kinds);
+		}
+
+		private boolean matches(String requestHost, String requestPath, Kind kind) {
+
+			if (host != null) {
+				String lower = requestHost.toLowerCase(Locale.ROOT);
+				if (!lower.equals(host) && !lower.endsWith("." + host)) {
+					return false;
+				}
+			}
+			if (path != null && !path.matcher(requestPath).find()) {
+				return false;
+			}
+			return kinds.isEmpty() || kinds.contains(kind);
+		}
+	}
+}
@@ -0,0 +1,221 @@
+package selenium;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openqa.selenium.By;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.WebElement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers in which frame an xpath was found, so findFrameForGivenXpath can switch straight to it next time.
+ * Entries are keyed by URL pattern, frame-tree signature and xpath and kept in LRU order. A frame path is the list of
+ * indexes into "//frame | //frameset | //iframe" for each nesting level, empty for the default content.
+ * Every hit is validated by switching along the path and checking the xpath, a stale entry is dropped.
+ *
+ * @author naveenc
+ *
+ */
+public class FrameLocationCache {
+
+	public static final String FRAME_XPATH = "//frame | //frameset | //iframe";
+
+	/*
+	 * tag, id and name of every frame in the current document. One round trip instead of one per frame
+	 */
+	private static final String SIGNATURE_SCRIPT = "var nodes = document.evaluate(arguments[0], document, null, XPathResult.ORDERED_NODE_SNAPSHOT_TYPE, null), parts = [];"
+			+ "for (var i = 0; i < nodes.snapshotLength; i++) { var n = nodes.snapshotItem(i); parts.push(n.tagName + '#' + (n.id || '') + '@' + (n.getAttribute('name') || '')); }"
+			+ "return parts.join('|');";
+
+	private final Logger log = LoggerFactory.getLogger(FrameLocationCache.class);
+	private final Map<String, List<Integer>> entries;
+	private long validationTimeInMilliSec = 3000L;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * @param maxEntries
+	 *            - least recently used entries are evicted above this size
+	 */
+	public FrameLocationCache(final int maxEntries) {
+
+		entries = new LinkedHashMap<String, List<Integer>>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, List<Integer>> eldest) {
+
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * How long a hit waits for the xpath inside the cached frame before the entry is considered stale
+	 *
+	 * @param validationTimeInMilliSec
+	 */
+	public void setValidationTime(long validationTimeInMilliSec) {
+
+		this.validationTimeInMilliSec = validationTimeInMilliSec;
+	}
+
+	/**
+	 * Builds the cache key for the page the driver is on. Driver must be in the default content
+	 *
+	 * @param webDriver
+	 * @param xpath
+	 * @return key
+	 */
+	public String keyFor(final WebDriver webDriver, String xpath) {
+
+		return urlPattern(webDriver.getCurrentUrl()) + "\n" + frameSignature(webDriver) + "\n" + xpath;
+	}
+
+	/**
+	 * Looks up the frame path for the key and switches the driver to it
+	 *
+	 * @param webDriver
+	 * @param key
+	 * @param xpath
+	 * @return frame path the driver is switched to, or null on a miss (driver is back in the default content)
+	 */
+	public List<Integer> lookup(final WebDriver webDriver, String key, String xpath) {
+
+		List<Integer> path;
+		synchronized (entries) {
+			path = entries.get(key);
+		}
+		if (path == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+
+		if (switchToPath(webDriver, path) && SeleniumUtils.getInstance().waitForXPaths(webDriver, validationTimeInMilliSec, Arrays.asList(xpath), true)) {
+			hits.incrementAndGet();
+			return path;
+		}
+
+		log.debug("Cached frame path " + path + " is stale for " + xpath);
+		invalidations.incrementAndGet();
+		misses.incrementAndGet();
+		synchronized (entries) {
+			entries.remove(key);
+		}
+		webDriver.switchTo().defaultContent();
+		return null;
+	}
+
+	/**
+	 * Stores the frame path in which the xpath was found
+	 *
+	 * @param key
+	 * @param path
+	 */
+	public void record(String key, List<Integer> path) {
+
+		synchronized (entries) {
+			entries.put(key, Collections.unmodifiableList(new ArrayList<Integer>(path)));
+		}
+	}
+
+	/**
+	 * Switches from the default content along the given frame path
+	 *
+	 * @param webDriver
+	 * @param path
+	 * @return false if the page doesn't have such a frame any more
+	 */
+	public static boolean switchToPath(final WebDriver webDriver, List<Integer> path) {
+
+		webDriver.switchTo().defaultContent();
+		try {
+			for (Integer index : path) {
+				List<WebElement> frames = webDriver.findElements(By.xpath(FRAME_XPATH));
+				if (index >= frames.size()) {
+					webDriver.switchTo().defaultContent();
+					return false;
+				}
+				webDriver.switchTo().frame(frames.get(index));
+			}
+		} catch (WebDriverException e) {
+			webDriver.switchTo().defaultContent();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Normalizes the url so that pages which only differ by query, fragment, session id or numbers share one entry
+	 *
+	 * @param url
+	 * @return url pattern
+	 */
+	public static String urlPattern(String url) {
+
+		if (url == null) {
+			return "";
+		}
+		String pattern = url.replaceAll("[?#].*$", "").replaceAll(";jsessionid=[^/]*", "");
+		return pattern.toLowerCase().replaceAll("[0-9]+", "*");
+	}
+
+	private String frameSignature(final WebDriver webDriver) {
+
+		if (webDriver instanceof JavascriptExecutor) {
+			try {
+				return String.valueOf(((JavascriptExecutor) webDriver).executeScript(SIGNATURE_SCRIPT, FRAME_XPATH));
+			} catch (WebDriverException e) {
+				log.debug("Frame signature script failed, using frame count: " + e.getMessage());
+			}
+		}
+		return "count:" + webDriver.findElements(By.xpath(FRAME_XPATH)).size();
+	}
+
+	public void clear() {
+
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	public int size() {
+
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public long getHits() {
+
+		return hits.get();
+	}
+
+	public long getMisses() {
+
+		return misses.get();
+	}
+
+	public long getInvalidations() {
+
+		return invalidations.get();
+	}
+
+	public double getHitRatio() {
+
+		long total = hits.get() + misses.get();
+		return total == 0 ? 0d : (double) hits.get() / total;
+	}
+}
@@ -0,0 +1,493 @@
+package selenium;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Home page of saved pages which grows by appending, it is written again only when its links change.
+ * 1. append -> an index file ends with a fixed trailer; new entries are written over the trailer, followed by the
+ * trailer again, and the entry count in the fixed width header comment is updated in place.
+ * 2. shard -> a file holding the maximum entries gets a link to the next shard, name-2.html, name-3.html, ...; each
+ * shard links back to the one before it.
+ * 3. top level -> an index given a parent registers each of its shards in the parent once, so one index lists the home
+ * pages of all accounts; the parent is an index like any other and shards the same way.
+ * 4. write all -> the index is made to list exactly the given hrefs; it is appended to when it holds the first of them,
+ * in order, and written again otherwise. The hrefs of the index are kept in memory for the comparison.
+ * Each append costs the new entries, one header write and a trailer check, whatever the size of the index. A file
+ * without the trailer, e.g. from a crashed write, is cut back to its last complete entry. Before every write the last
+ * shard is checked to have the length this writer left it with; an index deleted or changed by someone else is read
+ * again from disk, or started again when it is gone. Writers are shared until closed or their index is removed.
+ *
+ * @author naveenc
+ *
+ */
+public class HomePageIndexWriter {
+
+	private static final String COUNT_MARKER = "<!--entries:";
+	private static final String COUNT_FORMAT = "%010d";
+	private static final String ENTRY_START = "<li><a ";
+	private static final String ENTRY_END = "</li>\n";
+	private static final byte[] TRAILER = "</ul>\n</body>\n</html>\n".getBytes(StandardCharsets.UTF_8);
+	private static final Pattern ENTRY_HREF = Pattern.compile(Pattern.quote(ENTRY_START) + "href=\"([^\"]*)\">");
+	private static final Map<String, HomePageIndexWriter> writers = new ConcurrentHashMap<String, HomePageIndexWriter>();
+
+	private final Logger log = LoggerFactory.getLogger(HomePageIndexWriter.class);
+	private final File indexFile;
+	private final String title;
+	private final int maxEntriesPerShard;
+	private final HomePageIndexWriter parent;
+	private final byte[] headerPrefix;
+	private final List<String> hrefs = new ArrayList<String>();
+	private int shardCount;
+	private int lastShardEntries;
+	private int entryCount;
+	private long lastShardLength = -1L;
+
+	/**
+	 * 1000 entries per shard, no parent
+	 *
+	 * @param indexFile
+	 * @param title
+	 * @return the writer of the file, shared by all callers
+	 * @throws IOException
+	 */
+	public static HomePageIndexWriter forFile(File indexFile, String title) throws IOException {
+
+		return forFile(indexFile, title, 1000, null);
+	}
+
+	/**
+	 * @param indexFile
+	 *            - first shard, the others are numbered next to it
+	 * @param title
+	 * @param maxEntriesPerShard
+	 * @param parent
+	 *            - index the shards are registered in, null for none
+	 * @return the writer of the file, shared by all callers; settings of the first call win
+	 * @throws IOException
+	 */
+	public static HomePageIndexWriter forFile(File indexFile, String title, int maxEntriesPerShard, HomePageIndexWriter parent) throws IOException {
+
+		String key = keyOf(indexFile);
+		HomePageIndexWriter writer = writers.get(key);
+		if (writer == null || writer.isRemoved()) {
+			synchronized (writers) {
+				writer = writers.get(key);
+				if (writer == null || writer.isRemoved()) {
+					writer = new HomePageIndexWriter(indexFile.getAbsoluteFile(), title, maxEntriesPerShard, parent);
+					writers.put(key, writer);
+				}
+			}
+		}
+		return writer;
+	}
+
+	/**
+	 * Drops the shared writer of the file, if any; the next forFile reads the index from disk again
+	 *
+	 * @param indexFile
+	 */
+	public static void close(File indexFile) {
+
+		writers.remove(keyOf(indexFile));
+	}
+
+	private HomePageIndexWriter(File indexFile, String title, int maxEntriesPerShard, HomePageIndexWriter parent) throws IOException {
+
+		if (maxEntriesPerShard < 1) {
+			throw new IllegalArgumentException("Invalid shard size " + maxEntriesPerShard);
+		}
+		this.indexFile = indexFile;
+		this.title = title;
+		this.maxEntriesPerShard = maxEntriesPerShard;
+		this.parent = parent;
+		String header = header(null);
+		headerPrefix = header.substring(0, header.indexOf(COUNT_MARKER) + COUNT_MARKER.length()).getBytes(StandardCharsets.UTF_8);
+		open();
+	}
+
+	/**
+	 * Appends links named like their targets
+	 *
+	 * @param hrefs
+	 * @throws IOException
+	 */
+	public synchronized void append(List<String> hrefs) throws IOException {
+
+		verify();
+		int next = 0;
+		while (next < hrefs.size()) {
+			if (shardCount == 0 || lastShardEntries == maxEntriesPerShard) {
+				newShard();
+			}
+			int count = Math.min(hrefs.size() - next, maxEntriesPerShard - lastShardEntries);
+			StringBuilder entries = new StringBuilder();
+			for (String href : hrefs.subList(next, next + count)) {
+				entries.append(entry(href, href));
+			}
+			write(shardCount, entries.toString(), lastShardEntries + count);
+			this.hrefs.addAll(hrefs.subList(next, next + count));
+			lastShardEntries += count;
+			entryCount += count;
+			next += count;
+		}
+	}
+
+	/**
+	 * @param href
+	 * @param text
+	 * @throws IOException
+	 */
+	public synchronized void append(String href, String text) throws IOException {
+
+		verify();
+		if (shardCount == 0 || lastShardEntries == maxEntriesPerShard) {
+			newShard();
+		}
+		write(shardCount, entry(href, text), lastShardEntries + 1);
+		hrefs.add(href);
+		lastShardEntries++;
+		entryCount++;
+	}
+
+	/**
+	 * Makes the index list exactly the given links, named like their targets. Only the new ones are appended when the
+	 * index lists the first of them in the same order, otherwise the index is written again
+	 *
+	 * @param hrefs
+	 * @throws IOException
+	 */
+	public synchronized void writeAll(List<String> hrefs) throws IOException {
+
+		verify();
+		if (hrefs.size() < entryCount || !this.hrefs.equals(hrefs.subList(0, entryCount))) {
+			log.debug("Index " + indexFile.getAbsolutePath() + " differs from the given links, writing it again");
+			reset();
+		}
+		append(hrefs.subList(entryCount, hrefs.size()));
+	}
+
+	/**
+	 * Empties the index; the first shard is written again, the others are deleted. Shards registered in the parent
+	 * stay listed there and aren't registered again
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void reset() throws IOException {
+
+		verify();
+		for (int shard = shardCount; shard > 1; shard--) {
+			shardFile(shard).delete();
+		}
+		shardCount = 0;
+		lastShardEntries = 0;
+		entryCount = 0;
+		hrefs.clear();
+		newShard();
+	}
+
+	/**
+	 * Drops this writer from the shared writers; it can still be used, forFile returns a new one
+	 */
+	public void close() {
+
+		writers.remove(keyOf(indexFile), this);
+	}
+
+	public synchronized int getEntryCount() {
+
+		return entryCount;
+	}
+
+	public synchronized int getShardCount() {
+
+		return shardCount;
+	}
+
+	/**
+	 * @param href
+	 * @return true if the index links the href
+	 */
+	public synchronized boolean contains(String href) throws IOException {
+
+		verify();
+		return hrefs.contains(href);
+	}
+
+	/**
+	 * @param shard
+	 *            - from 1
+	 * @return file of the shard
+	 */
+	public File getShard(int shard) {
+
+		return shardFile(shard);
+	}
+
+	/*
+	 * counts the entries of the existing shards from their headers, repairs the last one and reads the hrefs
+	 */
+	private void open() throws IOException {
+
+		int shard = 1;
+		while (shardFile(shard).isFile()) {
+			File file = shardFile(shard);
+			int count = readCount(file);
+			if (count < 0) {
+				if (shard == 1) {
+					// written by an earlier version of writeHomePage, started again
+					log.debug("Replacing home page " + file.getAbsolutePath() + " of an older format");
+					file.delete();
+				}
+				break;
+			}
+			shardCount = shard;
+			lastShardEntries = count;
+			entryCount += count;
+			shard++;
+		}
+		if (shardCount > 0) {
+			repair(shardFile(shardCount));
+		}
+		for (shard = 1; shard <= shardCount; shard++) {
+			readHrefs(shardFile(shard));
+		}
+		lastShardLength = shardCount > 0 ? shardFile(shardCount).length() : -1L;
+	}
+
+	/*
+	 * reads the index again when its files aren't the ones this writer left, e.g. deleted by cleanDir
+	 */
+	private void verify() throws IOException {
+
+		boolean changed = shardCount > 0 ? !indexFile.isFile() || shardFile(shardCount).length() != lastShardLength : indexFile.exists();
+		if (!changed) {
+			return;
+		}
+		log.debug("Index " + indexFile.getAbsolutePath() + " changed on disk, reading it again");
+		shardCount = 0;
+		lastShardEntries = 0;
+		entryCount = 0;
+		hrefs.clear();
+		lastShardLength = -1L;
+		open();
+	}
+
+	private synchronized boolean isRemoved() {
+
+		return shardCount > 0 && !indexFile.isFile();
+	}
+
+	private void newShard() throws IOException {
+
+		int shard = shardCount + 1;
+		File file = shardFile(shard);
+		if (shard > 1) {
+			write(shardCount, "<li class=\"next\"><a href=\"" + escape(file.getName()) + "\">next page</a>" + ENTRY_END, lastShardEntries);
+		}
+		file.getParentFile().mkdirs();
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			writeFully(channel, ByteBuffer.wrap(header(shard > 1 ? shardFile(shard - 1).getName() : null).getBytes(StandardCharsets.UTF_8)), 0);
+			writeFully(channel, ByteBuffer.wrap(TRAILER), channel.size());
+		} finally {
+			channel.close();
+		}
+		shardCount = shard;
+		lastShardEntries = 0;
+		lastShardLength = file.length();
+		if (parent != null) {
+			// the shared writer of the parent, the given one may have been closed since
+			HomePageIndexWriter registry = forFile(parent.indexFile, parent.title, parent.maxEntriesPerShard, parent.parent);
+			String href = relativePath(registry.indexFile.getParentFile(), file);
+			// listed already when written before a reset or by an earlier run
+			if (!registry.contains(href)) {
+				registry.append(href, shard == 1 ? title : title + " page " + shard);
+			}
+		}
+	}
+
+	/*
+	 * entries over the trailer, trailer after them, count in the header
+	 */
+	private void write(int shard, String entries, int count) throws IOException {
+
+		FileChannel channel = FileChannel.open(shardFile(shard).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			long position = channel.size() - TRAILER.length;
+			if (position < 0 || !Arrays.equals(read(channel, position, TRAILER.length), TRAILER)) {
+				throw new IOException("Index " + shardFile(shard).getAbsolutePath() + " doesn't end with the trailer");
+			}
+			byte[] bytes = entries.getBytes(StandardCharsets.UTF_8);
+			ByteBuffer buffer = ByteBuffer.allocate(bytes.length + TRAILER.length);
+			buffer.put(bytes).put(TRAILER).flip();
+			writeFully(channel, buffer, position);
+			writeFully(channel, ByteBuffer.wrap(String.format(COUNT_FORMAT, count).getBytes(StandardCharsets.US_ASCII)), headerPrefix.length);
+			if (shard == shardCount) {
+				lastShardLength = position + buffer.limit();
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	/*
+	 * cuts a shard without trailer back to its last complete entry and recounts it
+	 */
+	private void repair(File file) throws IOException {
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			long size = channel.size();
+			if (size >= TRAILER.length && Arrays.equals(read(channel, size - TRAILER.length, TRAILER.length), TRAILER)) {
+				return;
+			}
+			String content = new String(read(channel, 0, (int) size), StandardCharsets.UTF_8);
+			int end = content.lastIndexOf(ENTRY_END);
+			int listStart = content.indexOf("<ul>\n");
+			if (listStart == -1) {
+				// header cut off, the shard starts empty
+				String header = header(shardCount > 1 ? shardFile(shardCount - 1).getName() : null);
+				content = header;
+				listStart = header.length() - "<ul>\n".length();
+				end = -1;
+			}
+			int cut = end > listStart ? end + ENTRY_END.length() : listStart + "<ul>\n".length();
+			int count = 0;
+			for (int at = content.indexOf(ENTRY_START); at != -1 && at < cut; at = content.indexOf(ENTRY_START, at + 1)) {
+				count++;
+			}
+			byte[] kept = content.substring(0, cut).getBytes(StandardCharsets.UTF_8);
+			long position = kept.length;
+			channel.truncate(0);
+			writeFully(channel, ByteBuffer.wrap(kept), 0);
+			writeFully(channel, ByteBuffer.wrap(TRAILER), position);
+			writeFully(channel, ByteBuffer.wrap(String.format(COUNT_FORMAT, count).getBytes(StandardCharsets.US_ASCII)), headerPrefix.length);
+			entryCount += count - lastShardEntries;
+			lastShardEntries = count;
+			log.debug("Repaired index " + file.getAbsolutePath() + ", " + count + " entries");
+		} finally {
+			channel.close();
+		}
+	}
+
+	/*
+	 * hrefs of the entries of a shard, in order
+	 */
+	private void readHrefs(File file) throws IOException {
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			Matcher matcher = ENTRY_HREF.matcher(new String(read(channel, 0, (int) channel.size()), StandardCharsets.UTF_8));
+			while (matcher.find()) {
+				hrefs.add(unescape(matcher.group(1)));
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	/*
+	 * -1 if the file isn't an index of this title
+	 */
+	private int readCount(File file) throws IOException {
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			if (channel.size() < headerPrefix.length + 10) {
+				return -1;
+			}
+			if (!Arrays.equals(read(channel, 0, headerPrefix.length), headerPrefix)) {
+				return -1;
+			}
+			try {
+				return Integer.parseInt(new String(read(channel, headerPrefix.length, 10), StandardCharsets.US_ASCII));
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	private String header(String previous) {
+
+		StringBuilder header = new StringBuilder();
+		header.append("<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"UTF-8\">\n");
+		header.append("<title>").append(escape(title)).append("</title>\n</head>\n<body>\n");
+		header.append(COUNT_MARKER).append(String.format(COUNT_FORMAT, 0)).append("-->\n");
+		header.append("<h1>").append(escape(title)).append("</h1>\n");
+		if (previous != null) {
+			header.append("<p><a href=\"").append(escape(previous)).append("\">previous page</a></p>\n");
+		}
+		header.append("<ul>\n");
+		return header.toString();
+	}
+
+	private static String entry(String href, String text) {
+
+		return ENTRY_START + "href=\"" + escape(href) + "\">" + escape(text) + "</a>" + ENTRY_END;
+	}
+
+	private static String keyOf(File indexFile) {
+
+		return indexFile.getAbsoluteFile().toPath().normalize().toString();
+	}
+
+	private File shardFile(int shard) {
+
+		if (shard == 1) {
+			return indexFile;
+		}
+		String name = indexFile.getName();
+		int dot = name.lastIndexOf('.');
+		String shardName = dot == -1 ? name + "-" + shard : name.substring(0, dot) + "-" + shard + name.substring(dot);
+		return new File(indexFile.getParentFile(), shardName);
+	}
+
+	private static String relativePath(File from, File to) {
+
+		return from.toPath().normalize().relativize(to.toPath().normalize()).toString().replace(File.separatorChar, '/');
+	}
+
+	private static String escape(String text) {
+
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;").replace("'", "&#39;");
+	}
+
+	private static String unescape(String text) {
+
+		return text.replace("&#39;", "'").replace("&quot;", "\"").replace("&gt;", ">").replace("&lt;", "<").replace("&amp;", "&");
+	}
+
+	private static byte[] read(FileChannel channel, long position, int length) throws IOException {
+
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+			// fill the buffer
+		}
+		return buffer.array();
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+
+		long at = position;
+		while (buffer.hasRemaining()) {
+			at += channel.write(buffer, at);
+		}
+	}
+}
@@ -0,0 +1,515 @@
+package selenium;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Rewrites saved html pages, e.g. to strip session tokens, scripts and tracking pixels.
+ * 1. all rules are applied in one pass: regex rules through one combined pattern, plain strings through an Aho-Corasick matcher.
+ * Regexes with back references or named groups keep their own pattern, the group numbers of a combined pattern would shift.
+ * 2. the file is streamed through a large buffer; the last maxMatchLength characters are carried over to the next chunk
+ * so a match on a chunk boundary is not missed. The regexes run over the whole buffer within a region with transparent,
+ * non anchoring bounds, up to maxMatchLength characters already written stay in front as context, so '^' and lookbehinds
+ * see the text before the chunk.
+ * Regexes are compiled MULTILINE, '^' and '$' match at line boundaries as they did when pages were rewritten line by line.
+ * 3. the result is written to a temp file which replaces the source atomically, only when something was replaced.
+ * Directories are rewritten in parallel, one file per task.
+ * Replacements are literal unless they contain '$' or '\', then they are expanded like String.replaceAll, with the groups
+ * of the match in its page context.
+ *
+ * @author naveenc
+ *
+ */
+public class HtmlRewriter {
+
+	private final Logger log = LoggerFactory.getLogger(HtmlRewriter.class);
+
+	private final List<String> regexes = new ArrayList<String>();
+	private final List<String> regexReplacements = new ArrayList<String>();
+	private final List<String> literals = new ArrayList<String>();
+	private final List<String> literalReplacements = new ArrayList<String>();
+	private volatile Compiled compiled;
+	private Charset charset = StandardCharsets.ISO_8859_1;
+	private int bufferSize = 1024 * 1024;
+	private int maxMatchLength = 64 * 1024;
+
+	/**
+	 * @param regex
+	 * @param replaceWith
+	 * @return this rewriter
+	 */
+	public synchronized HtmlRewriter addRegex(String regex, String replaceWith) {
+
+		Pattern.compile(regex, Pattern.MULTILINE);
+		regexes.add(regex);
+		regexReplacements.add(replaceWith);
+		compiled = null;
+		return this;
+	}
+
+	/**
+	 * @param literal
+	 *            - plain text, no regex
+	 * @param replaceWith
+	 * @return this rewriter
+	 */
+	public synchronized HtmlRewriter addLiteral(String literal, String replaceWith) {
+
+		if (literal.isEmpty()) {
+			throw new IllegalArgumentException("Empty literal");
+		}
+		literals.add(literal);
+		literalReplacements.add(replaceWith);
+		compiled = null;
+		return this;
+	}
+
+	/**
+	 * Charset the pages are read and written with. Default ISO-8859-1 keeps every byte as it is
+	 *
+	 * @param charset
+	 */
+	public void setCharset(Charset charset) {
+
+		this.charset = charset;
+	}
+
+	/**
+	 * @param bufferSize
+	 *            - characters read per chunk
+	 * @param maxMatchLength
+	 *            - longest match expected across a chunk boundary
+	 */
+	public void setBufferSize(int bufferSize, int maxMatchLength) {
+
+		if (maxMatchLength < 1 || bufferSize < maxMatchLength) {
+			throw new IllegalArgumentException("Invalid buffer size " + bufferSize + " for max match length " + maxMatchLength);
+		}
+		this.bufferSize = bufferSize;
+		this.maxMatchLength = maxMatchLength;
+	}
+
+	/**
+	 * Applies all rules to the file
+	 *
+	 * @param htmlSource
+	 * @return number of replacements, the file is only replaced when it is above 0
+	 * @throws IOException
+	 */
+	public int rewrite(File htmlSource) throws IOException {
+
+		Compiled rules = getCompiled();
+		File temp = new File(htmlSource.getAbsoluteFile() + ".temp");
+		int matchCount;
+		Reader reader = Files.newBufferedReader(htmlSource.toPath(), charset);
+		try {
+			Writer writer = Files.newBufferedWriter(temp.toPath(), charset);
+			try {
+				matchCount = rewrite(rules, reader, writer);
+			} finally {
+				writer.close();
+			}
+		} catch (IOException e) {
+			temp.delete();
+			throw e;
+		} finally {
+			reader.close();
+		}
+
+		if (matchCount > 0) { // match found replace the original source with updated source
+			SeleniumUtils.getInstance().moveAtomically(temp, htmlSource);
+		} else {
+			temp.delete();
+		}
+		log.debug("Matched and replaced " + matchCount + " in " + htmlSource.getAbsolutePath());
+		return matchCount;
+	}
+
+	/**
+	 * Rewrites all files of the directory accepted by the filter, in parallel
+	 *
+	 * @param htmlSourceDir
+	 * @param filter
+	 * @param threads
+	 * @return number of files changed
+	 * @throws IOException
+	 *             directory can't be listed
+	 */
+	public int rewriteDir(File htmlSourceDir, FileFilter filter, int threads) throws IOException {
+
+		File[] sources = htmlSourceDir.listFiles(filter);
+		if (sources == null) {
+			throw new IOException("Failed listing directory " + htmlSourceDir.getAbsolutePath());
+		}
+		getCompiled();
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, sources.length)));
+		try {
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			for (final File source : sources) {
+				results.add(executor.submit(new Callable<Integer>() {
+
+					@Override
+					public Integer call() throws IOException {
+
+						return rewrite(source);
+					}
+				}));
+			}
+
+			int changed = 0;
+			for (int i = 0; i < results.size(); i++) {
+				try {
+					changed += results.get(i).get() > 0 ? 1 : 0;
+				} catch (ExecutionException e) {
+					log.error("Failed rewriting " + sources[i].getAbsolutePath() + ": " + e.getCause().getMessage());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while rewriting " + htmlSourceDir.getAbsolutePath());
+				}
+			}
+			log.info("Rewrote " + changed + " of " + sources.length + " file(s) in " + htmlSourceDir.getAbsolutePath());
+			return changed;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private int rewrite(Compiled rules, Reader reader, Writer writer) throws IOException {
+
+		// written context in front, then the pending carry-over, then a full chunk
+		char[] buffer = new char[bufferSize + 2 * maxMatchLength];
+		CharBuffer view = CharBuffer.wrap(buffer);
+		Matcher[] matchers = new Matcher[rules.scanners.length];
+		for (int i = 0; i < matchers.length; i++) {
+			matchers[i] = rules.scanners[i].matcher("");
+			matchers[i].useTransparentBounds(true);
+			matchers[i].useAnchoringBounds(false);
+		}
+		int[] regexStarts = new int[matchers.length];
+		int context = 0;
+		int length = 0;
+		int matchCount = 0;
+		boolean eof = false;
+
+		while (!eof || length > context) {
+			int count;
+			while (length < buffer.length && (count = reader.read(buffer, length, buffer.length - length)) != -1) {
+				length += count;
+			}
+			eof = length < buffer.length;
+
+			// matches starting after the safe limit wait for the next chunk, they may continue beyond the buffer
+			int safeLimit = eof ? length : length - maxMatchLength;
+			CharSequence text = view.subSequence(0, length);
+			for (int i = 0; i < matchers.length; i++) {
+				matchers[i].reset(text);
+				regexStarts[i] = -1;
+			}
+			int position = context;
+			int[] literal = null;
+			while (position < safeLimit) {
+				// leftmost regex match, the earlier rule wins a tie like in an alternation
+				int regexStart = Integer.MAX_VALUE;
+				int scanner = -1;
+				for (int i = 0; i < matchers.length; i++) {
+					if (regexStarts[i] < position) {
+						matchers[i].region(position, length);
+						regexStarts[i] = matchers[i].find() ? matchers[i].start() : Integer.MAX_VALUE;
+					}
+					if (regexStarts[i] < regexStart || (regexStarts[i] == regexStart && regexStart != Integer.MAX_VALUE && rules.ruleOf(i, matchers[i]) < rules.ruleOf(scanner, matchers[scanner]))) {
+						regexStart = regexStarts[i];
+						scanner = i;
+					}
+				}
+				if (rules.literals != null && (literal == null || literal[0] < position)) {
+					literal = rules.literals.find(buffer, position, length);
+					literal = literal == null ? new int[] { Integer.MAX_VALUE, 0, -1 } : literal;
+				}
+				int literalStart = literal == null ? Integer.MAX_VALUE : literal[0];
+				int start = Math.min(regexStart, literalStart);
+				if (start >= safeLimit) {
+					break;
+				}
+
+				int end;
+				String replacement;
+				if (regexStart == start) {
+					end = matchers[scanner].end();
+					replacement = rules.replacement(scanner, matchers[scanner]);
+				} else {
+					end = literal[1];
+					replacement = rules.literalReplacements[literal[2]];
+				}
+				writer.write(buffer, position, start - position);
+				if (end == start) {
+					// empty match, keep the character and move on
+					writer.write(buffer, start, 1);
+					position = start + 1;
+					continue;
+				}
+				writer.write(replacement);
+				matchCount++;
+				position = end;
+			}
+
+			int commit = Math.min(length, Math.max(position, safeLimit));
+			writer.write(buffer, position, commit - position);
+			// the written tail stays in front as context of the next chunk, at eof everything is committed
+			context = Math.min(commit, maxMatchLength);
+			System.arraycopy(buffer, commit - context, buffer, 0, length - commit + context);
+			length -= commit - context;
+		}
+		return matchCount;
+	}
+
+	private synchronized Compiled getCompiled() {
+
+		if (compiled == null) {
+			compiled = new Compiled(regexes, regexReplacements, literals, literalReplacements);
+		}
+		return compiled;
+	}
+
+	/*
+	 * immutable snapshot of the rules, shared by all threads of a directory run
+	 */
+	private static final class Compiled {
+
+		private static final Pattern NOT_COMBINABLE = Pattern.compile("\\\\[1-9]|\\\\k<|\\(\\?<[a-zA-Z]");
+
+		// combined pattern first if there is one, then the regexes with their own pattern
+		private final Pattern[] scanners;
+		private final int[][] scannerRules;
+		private final int[] groupStarts;
+		private final int[] groupCounts;
+		private final String[] replacements;
+		private final LiteralMatcher literals;
+		private final String[] literalReplacements;
+
+		private Compiled(List<String> regexes, List<String> regexReplacements, List<String> literalList, List<String> literalReplacementList) {
+
+			replacements = regexReplacements.toArray(new String[regexReplacements.size()]);
+			groupStarts = new int[regexes.size()];
+			groupCounts = new int[regexes.size()];
+			List<Pattern> scannerList = new ArrayList<Pattern>();
+			List<int[]> scannerRuleList = new ArrayList<int[]>();
+			List<Integer> combinedRules = new ArrayList<Integer>();
+			StringBuilder union = new StringBuilder();
+			int group = 1;
+			for (int i = 0; i < regexes.size(); i++) {
+				String regex = regexes.get(i);
+				groupCounts[i] = Pattern.compile(regex, Pattern.MULTILINE).matcher("").groupCount();
+				if (regexes.size() == 1 || NOT_COMBINABLE.matcher(regex).find()) {
+					scannerList.add(Pattern.compile(regex, Pattern.MULTILINE));
+					scannerRuleList.add(new int[] { i });
+					continue;
+				}
+				groupStarts[i] = group;
+				group += groupCounts[i] + 1;
+				union.append(combinedRules.isEmpty() ? "" : "|").append('(').append(regex).append(')');
+				combinedRules.add(i);
+			}
+			if (!combinedRules.isEmpty()) {
+				int[] rules = new int[combinedRules.size()];
+				for (int i = 0; i < rules.length; i++) {
+					rules[i] = combinedRules.get(i);
+				}
+				scannerList.add(0, Pattern.compile(union.toString(), Pattern.MULTILINE));
+				scannerRuleList.add(0, rules);
+			}
+			scanners = scannerList.toArray(new Pattern[scannerList.size()]);
+			scannerRules = scannerRuleList.toArray(new int[scannerRuleList.size()][]);
+			literals = literalList.isEmpty() ? null : new LiteralMatcher(literalList);
+			literalReplacements = literalReplacementList.toArray(new String[literalReplacementList.size()]);
+		}
+
+		/*
+		 * rule of the current match of the scanner
+		 */
+		private int ruleOf(int scanner, Matcher matcher) {
+
+			int[] rules = scannerRules[scanner];
+			if (rules.length == 1) {
+				return rules[0];
+			}
+			for (int rule : rules) {
+				if (matcher.start(groupStarts[rule]) != -1) {
+					return rule;
+				}
+			}
+			return -1;
+		}
+
+		private String replacement(int scanner, Matcher matcher) {
+
+			int rule = ruleOf(scanner, matcher);
+			String replacement = replacements[rule];
+			if (replacement.indexOf('$') == -1 && replacement.indexOf('\\') == -1) {
+				return replacement;
+			}
+			return expand(matcher, scannerRules[scanner].length == 1 ? 0 : groupStarts[rule], groupCounts[rule], replacement);
+		}
+
+		/*
+		 * same syntax as Matcher.appendReplacement, group n of the rule is group offset + n of the matcher
+		 */
+		private static String expand(Matcher matcher, int offset, int groupCount, String replacement) {
+
+			StringBuilder result = new StringBuilder();
+			for (int i = 0; i < replacement.length(); i++) {
+				char c = replacement.charAt(i);
+				if (c == '\\') {
+					if (++i == replacement.length()) {
+						throw new IllegalArgumentException("character to be escaped is missing");
+					}
+					result.append(replacement.charAt(i));
+				} else if (c != '$') {
+					result.append(c);
+				} else if (++i == replacement.length()) {
+					throw new IllegalArgumentException("Illegal group reference: group index is missing");
+				} else if (replacement.charAt(i) == '{') {
+					int close = replacement.indexOf('}', i);
+					if (close == -1 || offset != 0) {
+						throw new IllegalArgumentException("Illegal named group reference in " + replacement);
+					}
+					appendGroup(result, matcher.group(replacement.substring(i + 1, close)));
+					i = close;
+				} else {
+					int number = replacement.charAt(i) - '0';
+					if (number < 0 || number > 9) {
+						throw new IllegalArgumentException("Illegal group reference in " + replacement);
+					}
+					if (number > groupCount) {
+						throw new IndexOutOfBoundsException("No group " + number);
+					}
+					// take more digits while they still name a group, like Matcher does
+					while (i + 1 < replacement.length() && Character.isDigit(replacement.charAt(i + 1)) && number * 10 + (replacement.charAt(i + 1) - '0') <= groupCount) {
+						number = number * 10 + (replacement.charAt(++i) - '0');
+					}
+					appendGroup(result, matcher.group(offset + number));
+				}
+			}
+			return result.toString();
+		}
+
+		private static void appendGroup(StringBuilder result, String group) {
+
+			if (group != null) {
+				result.append(group);
+			}
+		}
+	}
+
+	/**
+	 * Aho-Corasick automaton over the plain string rules, finds the leftmost (then longest) match in one scan
+	 */
+	private static final class LiteralMatcher {
+
+		private final List<Map<Character, Integer>> transitions = new ArrayList<Map<Character, Integer>>();
+		private final List<Integer> failure = new ArrayList<Integer>();
+		private final List<List<Integer>> outputs = new ArrayList<List<Integer>>();
+		private final int[] lengths;
+		private final int maxLength;
+
+		private LiteralMatcher(List<String> literals) {
+
+			lengths = new int[literals.size()];
+			int longest = 0;
+			addNode();
+			for (int i = 0; i < literals.size(); i++) {
+				String literal = literals.get(i);
+				int node = 0;
+				for (char c : literal.toCharArray()) {
+					Integer next = transitions.get(node).get(c);
+					if (next == null) {
+						next = addNode();
+						transitions.get(node).put(c, next);
+					}
+					node = next;
+				}
+				outputs.get(node).add(i);
+				lengths[i] = literal.length();
+				longest = Math.max(longest, literal.length());
+			}
+			maxLength = longest;
+
+			// breadth first failure links
+			List<Integer> queue = new ArrayList<Integer>();
+			for (Integer child : transitions.get(0).values()) {
+				failure.set(child, 0);
+				queue.add(child);
+			}
+			for (int head = 0; head < queue.size(); head++) {
+				int node = queue.get(head);
+				for (Map.Entry<Character, Integer> edge : transitions.get(node).entrySet()) {
+					int child = edge.getValue();
+					int fallback = failure.get(node);
+					while (fallback != 0 && !transitions.get(fallback).containsKey(edge.getKey())) {
+						fallback = failure.get(fallback);
+					}
+					Integer target = transitions.get(fallback).get(edge.getKey());
+					failure.set(child, target == null || target == child ? 0 : target);
+					outputs.get(child).addAll(outputs.get(failure.get(child)));
+					queue.add(child);
+				}
+			}
+		}
+
+		private int addNode() {
+
+			transitions.add(new HashMap<Character, Integer>());
+			failure.add(0);
+			outputs.add(new ArrayList<Integer>());
+			return transitions.size() - 1;
+		}
+
+		/**
+		 * @return {start, end, literal index} of the leftmost match in text[from, to), null if none
+		 */
+		private int[] find(char[] text, int from, int to) {
+
+			int node = 0;
+			int[] best = null;
+			for (int i = from; i < to; i++) {
+				// a match starting later than the best one can't win any more
+				if (best != null && i - maxLength >= best[0]) {
+					break;
+				}
+				Integer next;
+				while ((next = transitions.get(node).get(text[i])) == null && node != 0) {
+					node = failure.get(node);
+				}
+				node = next == null ? 0 : next;
+				for (int literal : outputs.get(node)) {
+					int start = i + 1 - lengths[literal];
+					if (best == null || start < best[0] || (start == best[0] && i + 1 > best[1])) {
+						best = new int[] { start, i + 1, literal };
+					}
+				}
+			}
+			return best;
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package selenium;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.regex.Pattern;
+
+public class HtmlRewriterTest {
+
+	public static void main(String[] a) throws Exception {
+
+		File page = File.createTempFile("rewriter-", ".html");
+		try {
+			StringBuilder lines = new StringBuilder();
+			for (int i = 0; i < 40; i++) {
+				lines.append("line").append(i).append(" id=").append(1000 + i).append('\n');
+			}
+			String source = lines.toString();
+
+			//line anchors on every chunk
+			write(page, source);
+			HtmlRewriter rewriter = new HtmlRewriter().addRegex("^line", "X");
+			rewriter.setBufferSize(100, 20);
+			check("'^' matches every line start", rewriter.rewrite(page) == 40 && read(page).equals(source.replaceAll("(?m)^line", "X")));
+
+			//chunk boundaries at every offset of the pattern
+			boolean sameAsReplaceAll = true;
+			for (int bufferSize = 16; bufferSize < 40; bufferSize++) {
+				sameAsReplaceAll &= rewritesLikeReplaceAll(page, source, "(?<=id=)\\d+", "N", bufferSize);
+				sameAsReplaceAll &= rewritesLikeReplaceAll(page, source, "\\d$", "#", bufferSize);
+				sameAsReplaceAll &= rewritesLikeReplaceAll(page, source, "(?<!^)line(\\d)", "L$1", bufferSize);
+			}
+			check("lookbehinds and anchors across chunk boundaries", sameAsReplaceAll);
+
+			//match spanning a chunk boundary
+			write(page, source);
+			rewriter = new HtmlRewriter().addRegex("line9 id=1009\nline10", "joined");
+			rewriter.setBufferSize(100, 20);
+			check("match spanning a chunk boundary", rewriter.rewrite(page) == 1 && read(page).contains("joined id=1010"));
+		} finally {
+			page.delete();
+		}
+	}
+
+	private static boolean rewritesLikeReplaceAll(File page, String source, String regex, String replaceWith, int bufferSize) throws Exception {
+
+		write(page, source);
+		HtmlRewriter rewriter = new HtmlRewriter().addRegex(regex, replaceWith);
+		rewriter.setBufferSize(bufferSize, 12);
+		rewriter.rewrite(page);
+		return read(page).equals(Pattern.compile(regex, Pattern.MULTILINE).matcher(source).replaceAll(replaceWith));
+	}
+
+	private static void write(File page, String text) throws Exception {
+
+		Files.write(page.toPath(), text.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	private static String read(File page) throws Exception {
+
+		return new String(Files.readAllBytes(page.toPath()), StandardCharsets.ISO_8859_1);
+	}
+
+	private static void check(String name, boolean passed) {
+
+		System.out.println(name + ": " + (passed ? "passed" : "FAILED"));
+		if (!passed) {
+			throw new AssertionError(name);
+		}
+	}
+}
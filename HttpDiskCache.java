@@ -0,0 +1,472 @@
+package selenium;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gargoylesoftware.htmlunit.util.NameValuePair;
+
+/**
+ * Disk store of the {@link CachingWebConnection}, shared by all WebClients and by every process using the same directory.
+ * 1. bodies -> content addressed files under bodies/, written once through a temp file and an atomic move.
+ * 2. entries -> one properties file per url under entries/, replaced atomically, pointing at the body.
+ * 3. index -> all entries are held in memory; an entry another process wrote is picked up from disk on a miss.
+ * Entries are evicted least recently used first once the bodies exceed the size limit. Only one thread evicts at a time,
+ * and only one process, guarded by a lock on cache.lock; a body deleted while another process reads it stays readable
+ * until closed.
+ *
+ * @author naveenc
+ *
+ */
+public class HttpDiskCache {
+
+	private static final Map<String, HttpDiskCache> caches = new ConcurrentHashMap<String, HttpDiskCache>();
+
+	private final Logger log = LoggerFactory.getLogger(HttpDiskCache.class);
+	private final File entriesDir;
+	private final File bodiesDir;
+	private final File lockFile;
+	private final long maxBytes;
+	private final Map<String, Entry> index = new ConcurrentHashMap<String, Entry>();
+	private final AtomicLong totalBytes = new AtomicLong();
+	// file locks are held by the process, threads of one process have to be kept apart before
+	private final ReentrantLock evictLock = new ReentrantLock();
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong revalidatedCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong bytesSaved = new AtomicLong();
+	private final AtomicLong evictedCount = new AtomicLong();
+
+	/**
+	 * @param cacheDir
+	 * @param maxBytes
+	 *            - size limit of the bodies; the limit of the first call for a directory wins
+	 * @return the cache of the directory, loaded on first use
+	 * @throws IOException
+	 */
+	public static HttpDiskCache forDirectory(File cacheDir, long maxBytes) throws IOException {
+
+		String key = cacheDir.getAbsoluteFile().toPath().normalize().toString();
+		HttpDiskCache cache = caches.get(key);
+		if (cache == null) {
+			synchronized (caches) {
+				cache = caches.get(key);
+				if (cache == null) {
+					cache = new HttpDiskCache(cacheDir, maxBytes);
+					caches.put(key, cache);
+				}
+			}
+		}
+		return cache;
+	}
+
+	private HttpDiskCache(File cacheDir, long maxBytes) throws IOException {
+
+		this.maxBytes = maxBytes;
+		entriesDir = new File(cacheDir, "entries");
+		bodiesDir = new File(cacheDir, "bodies");
+		lockFile = new File(cacheDir, "cache.lock");
+		if (!(entriesDir.isDirectory() || entriesDir.mkdirs()) || !(bodiesDir.isDirectory() || bodiesDir.mkdirs())) {
+			throw new IOException("Failed creating http cache " + cacheDir.getAbsolutePath());
+		}
+		File[] files = entriesDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				Entry entry = readEntry(file);
+				if (entry != null) {
+					put(entry);
+				}
+			}
+		}
+		log.debug("Loaded " + index.size() + " cached response(s), " + totalBytes.get() + " bytes from " + cacheDir.getAbsolutePath());
+	}
+
+	/**
+	 * @param url
+	 * @return cached entry, fresh or stale, null if the url isn't cached
+	 */
+	public Entry lookup(String url) {
+
+		String key = keyOf(url);
+		File file = entryFile(key);
+		Entry entry = index.get(key);
+		if (entry == null || file.lastModified() > entry.written) {
+			// stored or refreshed by another process
+			entry = file.exists() ? readEntry(file) : null;
+			if (entry == null) {
+				return null;
+			}
+			put(entry);
+		}
+		entry.lastAccess = System.currentTimeMillis();
+		return entry;
+	}
+
+	/**
+	 * @param entry
+	 * @return body, null if it was evicted meanwhile
+	 */
+	public byte[] readBody(Entry entry) {
+
+		try {
+			return Files.readAllBytes(bodyFile(entry.bodyHash).toPath());
+		} catch (IOException e) {
+			remove(entry);
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the response of the url, replacing an older one
+	 *
+	 * @param url
+	 * @param body
+	 * @param headers
+	 *            - replayed with the cached body
+	 * @param expiresAt
+	 *            - fresh until, in milliseconds
+	 * @return stored entry
+	 * @throws IOException
+	 */
+	public Entry store(String url, byte[] body, List<NameValuePair> headers, long expiresAt) throws IOException {
+
+		String bodyHash = BillStore.toHex(sha256().digest(body));
+		File bodyFile = bodyFile(bodyHash);
+		if (!bodyFile.exists()) {
+			bodyFile.getParentFile().mkdirs();
+			File temp = File.createTempFile(bodyHash, ".temp", bodyFile.getParentFile());
+			try {
+				Files.write(temp.toPath(), body);
+				SeleniumUtils.getInstance().moveAtomically(temp, bodyFile);
+			} finally {
+				temp.delete();
+			}
+		}
+		Entry entry = new Entry(url, bodyHash, body.length, expiresAt, headers);
+		writeEntry(entry);
+		put(entry);
+		if (totalBytes.get() > maxBytes) {
+			evict();
+		}
+		return entry;
+	}
+
+	/**
+	 * Extends the freshness of an entry the server confirmed with 304
+	 *
+	 * @param entry
+	 * @param expiresAt
+	 * @return refreshed entry
+	 * @throws IOException
+	 */
+	public Entry refresh(Entry entry, long expiresAt) throws IOException {
+
+		Entry refreshed = new Entry(entry.url, entry.bodyHash, entry.size, expiresAt, entry.headers);
+		writeEntry(refreshed);
+		put(refreshed);
+		return refreshed;
+	}
+
+	void recordHit(long size) {
+
+		hitCount.incrementAndGet();
+		bytesSaved.addAndGet(size);
+	}
+
+	void recordRevalidated(long size) {
+
+		revalidatedCount.incrementAndGet();
+		bytesSaved.addAndGet(size);
+	}
+
+	void recordMiss() {
+
+		missCount.incrementAndGet();
+	}
+
+	/**
+	 * @return served from disk without contacting the server
+	 */
+	public long getHitCount() {
+
+		return hitCount.get();
+	}
+
+	/**
+	 * @return served from disk after a 304
+	 */
+	public long getRevalidatedCount() {
+
+		return revalidatedCount.get();
+	}
+
+	public long getMissCount() {
+
+		return missCount.get();
+	}
+
+	/**
+	 * @return hits and revalidations of all cacheable requests
+	 */
+	public double getHitRatio() {
+
+		long served = hitCount.get() + revalidatedCount.get();
+		long total = served + missCount.get();
+		return total == 0 ? 0d : (double) served / total;
+	}
+
+	/**
+	 * @return body bytes not downloaded
+	 */
+	public long getBytesSaved() {
+
+		return bytesSaved.get();
+	}
+
+	public long getEvictedCount() {
+
+		return evictedCount.get();
+	}
+
+	public long getSize() {
+
+		return totalBytes.get();
+	}
+
+	/*
+	 * least recently used first, down to 90% of the limit, by one thread and one process at a time; a thread finding
+	 * eviction running leaves it to that thread
+	 */
+	private void evict() {
+
+		if (!evictLock.tryLock()) {
+			return;
+		}
+		try {
+			FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			try {
+				FileLock lock;
+				try {
+					lock = channel.tryLock();
+				} catch (OverlappingFileLockException e) {
+					// held by another cache of this process on the same directory
+					return;
+				}
+				if (lock == null) {
+					return;
+				}
+				try {
+					List<Entry> entries = new ArrayList<Entry>(index.values());
+					Collections.sort(entries, new Comparator<Entry>() {
+
+						@Override
+						public int compare(Entry first, Entry second) {
+
+							return Long.compare(first.lastAccess, second.lastAccess);
+						}
+					});
+					long target = maxBytes * 9 / 10;
+					for (Entry entry : entries) {
+						if (totalBytes.get() <= target) {
+							break;
+						}
+						remove(entry);
+						entryFile(keyOf(entry.url)).delete();
+						if (!isBodyShared(entry.bodyHash)) {
+							bodyFile(entry.bodyHash).delete();
+						}
+						evictedCount.incrementAndGet();
+					}
+				} finally {
+					lock.release();
+				}
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			log.error("Failed evicting http cache: " + e.getMessage());
+		} finally {
+			evictLock.unlock();
+		}
+	}
+
+	private boolean isBodyShared(String bodyHash) {
+
+		for (Entry entry : index.values()) {
+			if (entry.bodyHash.equals(bodyHash)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void put(Entry entry) {
+
+		Entry previous = index.put(keyOf(entry.url), entry);
+		totalBytes.addAndGet(entry.size - (previous == null ? 0 : previous.size));
+	}
+
+	private void remove(Entry entry) {
+
+		if (index.remove(keyOf(entry.url), entry)) {
+			totalBytes.addAndGet(-entry.size);
+		}
+	}
+
+	private void writeEntry(Entry entry) throws IOException {
+
+		Properties properties = new Properties();
+		properties.setProperty("url", entry.url);
+		properties.setProperty("body", entry.bodyHash);
+		properties.setProperty("size", String.valueOf(entry.size));
+		properties.setProperty("expires", String.valueOf(entry.expiresAt));
+		for (int i = 0; i < entry.headers.size(); i++) {
+			properties.setProperty("header." + i, entry.headers.get(i).getName() + ": " + entry.headers.get(i).getValue());
+		}
+		File file = entryFile(keyOf(entry.url));
+		File temp = SeleniumUtils.getInstance().createTempFileFor(file, ".temp");
+		try {
+			OutputStream out = Files.newOutputStream(temp.toPath());
+			try {
+				properties.store(out, null);
+			} finally {
+				out.close();
+			}
+			SeleniumUtils.getInstance().moveAtomically(temp, file);
+			entry.written = file.lastModified();
+		} finally {
+			temp.delete();
+		}
+	}
+
+	private Entry readEntry(File file) {
+
+		if (!file.getName().endsWith(".properties")) {
+			return null;
+		}
+		Properties properties = new Properties();
+		try {
+			long written = file.lastModified();
+			InputStream in = Files.newInputStream(file.toPath());
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+			List<NameValuePair> headers = new ArrayList<NameValuePair>();
+			String header;
+			for (int i = 0; (header = properties.getProperty("header." + i)) != null; i++) {
+				int colon = header.indexOf(": ");
+				headers.add(new NameValuePair(header.substring(0, colon), header.substring(colon + 2)));
+			}
+			Entry entry = new Entry(properties.getProperty("url"), properties.getProperty("body"), Long.parseLong(properties.getProperty("size")), Long.parseLong(properties.getProperty("expires")),
+					headers);
+			entry.written = written;
+			entry.lastAccess = written;
+			return entry;
+		} catch (IOException e) {
+			log.debug("Unreadable cache entry " + file.getAbsolutePath());
+		} catch (RuntimeException e) {
+			log.debug("Broken cache entry " + file.getAbsolutePath());
+		}
+		return null;
+	}
+
+	private File entryFile(String key) {
+
+		return new File(entriesDir, key + ".properties");
+	}
+
+	private File bodyFile(String bodyHash) {
+
+		return new File(new File(bodiesDir, bodyHash.substring(0, 2)), bodyHash);
+	}
+
+	private static String keyOf(String url) {
+
+		return BillStore.toHex(sha256().digest(url.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static MessageDigest sha256() {
+
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+
+	/**
+	 * Cached response of one url
+	 */
+	public static final class Entry {
+
+		private final String url;
+		private final String bodyHash;
+		private final long size;
+		private final long expiresAt;
+		private final List<NameValuePair> headers;
+		private volatile long lastAccess = System.currentTimeMillis();
+		private volatile long written;
+
+		private Entry(String url, String bodyHash, long size, long expiresAt, List<NameValuePair> headers) {
+
+			this.url = url;
+			this.bodyHash = bodyHash;
+			this.size = size;
+			this.expiresAt = expiresAt;
+			this.headers = headers;
+		}
+
+		public boolean isFresh() {
+
+			return System.currentTimeMillis() < expiresAt;
+		}
+
+		public long getSize() {
+
+			return size;
+		}
+
+		public List<NameValuePair> getHeaders() {
+
+			return headers;
+		}
+
+		/**
+		 * @param name
+		 * @return first header of the name, case insensitive, null if none
+		 */
+		public String getHeader(String name) {
+
+			for (NameValuePair header : headers) {
+				if (header.getName().equalsIgnoreCase(name)) {
+					return header.getValue();
+				}
+			}
+			return null;
+		}
+	}
+}
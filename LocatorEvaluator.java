@@ -0,0 +1,375 @@
+package selenium;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openqa.selenium.By;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.WebElement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Evaluates several xpaths in one driver round trip and reports the result of each, where waitForXPaths only tells that
+ * one of them matched. Outcomes like logged in / error banner / captcha are settled by one evaluation.
+ * 1. evaluate -> one script runs document.evaluate for every xpath and returns the match count and first element of each.
+ * 2. await -> polls the evaluation until ANY, ALL or NONE of the xpaths match, with the interval growing like
+ * {@link XPathWaiter}; the last evaluation is returned either way. An xpath which can't be evaluated, e.g. invalid
+ * syntax, fails the wait at once instead of counting as no match.
+ * Falls back to findElements per xpath when the driver can't run scripts. Xpaths are evaluated in the current frame.
+ *
+ * @author naveenc
+ *
+ */
+public class LocatorEvaluator {
+
+	public enum Condition {
+		ANY, ALL, NONE
+	}
+
+	/*
+	 * arguments: xpaths. Returns { counts: [...], firsts: [element or null, ...], errors: [message or null, ...] }
+	 */
+	private static final String EVALUATE_SCRIPT = "var xpaths = arguments[0], counts = [], firsts = [], errors = [];"
+			+ "for (var i = 0; i < xpaths.length; i++) {"
+			+ "  try {"
+			+ "    var nodes = document.evaluate(xpaths[i], document, null, XPathResult.ORDERED_NODE_SNAPSHOT_TYPE, null);"
+			+ "    var first = nodes.snapshotLength > 0 ? nodes.snapshotItem(0) : null;"
+			+ "    counts.push(nodes.snapshotLength); firsts.push(first != null && first.nodeType == 1 ? first : null); errors.push(null);"
+			+ "  } catch (e) { counts.push(0); firsts.push(null); errors.push(String(e.message || e)); }"
+			+ "}"
+			+ "return { counts: counts, firsts: firsts, errors: errors };";
+
+	private final Logger log = LoggerFactory.getLogger(LocatorEvaluator.class);
+	private final long floorMillis;
+	private final long ceilingMillis;
+	private final double backoff;
+	private final boolean defaultIntervals;
+
+	private final AtomicLong totalEvaluations = new AtomicLong();
+	private final AtomicLong scriptEvaluations = new AtomicLong();
+
+	/**
+	 * Polls with the intervals of {@link XPathWaiter#getDefault()} at the time of each wait
+	 */
+	public LocatorEvaluator() {
+
+		floorMillis = 0L;
+		ceilingMillis = 0L;
+		backoff = 0d;
+		defaultIntervals = true;
+	}
+
+	/**
+	 * @param floorMillis
+	 *            - first (and smallest) interval between two evaluations of a wait
+	 * @param ceilingMillis
+	 *            - largest interval between two evaluations
+	 * @param backoff
+	 *            - factor the interval grows by after every unchanged evaluation
+	 */
+	public LocatorEvaluator(long floorMillis, long ceilingMillis, double backoff) {
+
+		if (floorMillis <= 0 || ceilingMillis < floorMillis || backoff < 1d) {
+			throw new IllegalArgumentException("Invalid polling interval floor: " + floorMillis + " ceiling: " + ceilingMillis + " backoff: " + backoff);
+		}
+		this.floorMillis = floorMillis;
+		this.ceilingMillis = ceilingMillis;
+		this.backoff = backoff;
+		defaultIntervals = false;
+	}
+
+	/**
+	 * Evaluates all xpaths once
+	 *
+	 * @param webDriver
+	 * @param XPathList
+	 * @return match count and first element of every xpath
+	 */
+	public Evaluation evaluate(final WebDriver webDriver, List<String> XPathList) {
+
+		long start = System.currentTimeMillis();
+		Evaluation evaluation = evaluateOnce(webDriver, XPathList);
+		evaluation.satisfied = evaluation.getFirstMatched() != -1;
+		evaluation.elapsedMillis = System.currentTimeMillis() - start;
+		return evaluation;
+	}
+
+	/**
+	 * Evaluates the xpaths until the condition holds or the time is up
+	 *
+	 * @param webDriver
+	 * @param timeInMilliSec
+	 * @param XPathList
+	 * @param condition
+	 *            => ANY - one xpath matches; ALL - every xpath matches; NONE - no xpath matches;
+	 * @return last evaluation, check isSatisfied; not satisfied if an xpath couldn't be evaluated
+	 */
+	public Evaluation await(final WebDriver webDriver, long timeInMilliSec, List<String> XPathList, Condition condition) {
+
+		XPathWaiter waiter = XPathWaiter.getDefault();
+		long floor = defaultIntervals ? waiter.getFloorMillis() : floorMillis;
+		long ceiling = defaultIntervals ? waiter.getCeilingMillis() : ceilingMillis;
+		double factor = defaultIntervals ? waiter.getBackoff() : backoff;
+		long start = System.currentTimeMillis();
+		long waitTime = start + timeInMilliSec;
+		long interval = floor;
+		int roundTrips = 0;
+		int[] lastCounts = null;
+		Evaluation evaluation;
+		while (true) {
+			evaluation = evaluateOnce(webDriver, XPathList);
+			roundTrips += evaluation.roundTrips;
+			int failed = evaluation.getFirstError();
+			if (failed != -1) {
+				// won't match however long we wait, and must not count as NONE matching
+				log.error("Can't evaluate xpath " + XPathList.get(failed) + ": " + evaluation.errors[failed]);
+				break;
+			}
+			if (evaluation.holds(condition)) {
+				evaluation.satisfied = true;
+				break;
+			}
+
+			long remaining = waitTime - System.currentTimeMillis();
+			if (remaining <= 0) {
+				break;
+			}
+			// page is still changing, keep evaluating fast
+			interval = (lastCounts != null && !Arrays.equals(lastCounts, evaluation.counts)) ? floor : interval;
+			lastCounts = evaluation.counts;
+			if (!WaitManager.getInstance().waitFor(Math.min(interval, remaining))) {
+				break;
+			}
+			interval = Math.min(ceiling, (long) (interval * factor));
+		}
+		evaluation.roundTrips = roundTrips;
+		evaluation.elapsedMillis = System.currentTimeMillis() - start;
+		log.debug("Waited " + evaluation.elapsedMillis + " ms with " + roundTrips + " round trip(s) for " + condition + " of " + XPathList + ": " + evaluation.satisfied);
+		return evaluation;
+	}
+
+	/**
+	 * @return evaluations done, one per xpath list
+	 */
+	public long getTotalEvaluations() {
+
+		return totalEvaluations.get();
+	}
+
+	/**
+	 * @return evaluations done by one script, the rest used findElements per xpath
+	 */
+	public long getScriptEvaluations() {
+
+		return scriptEvaluations.get();
+	}
+
+	private Evaluation evaluateOnce(final WebDriver webDriver, List<String> XPathList) {
+
+		totalEvaluations.incrementAndGet();
+		if (webDriver instanceof JavascriptExecutor) {
+			try {
+				Evaluation evaluation = evaluateByScript((JavascriptExecutor) webDriver, XPathList);
+				if (evaluation != null) {
+					scriptEvaluations.incrementAndGet();
+					return evaluation;
+				}
+			} catch (WebDriverException e) {
+				log.debug("Evaluation script failed, using findElements: " + e.getMessage());
+			}
+		}
+		return evaluateByFindElements(webDriver, XPathList);
+	}
+
+	@SuppressWarnings("unchecked")
+	private Evaluation evaluateByScript(JavascriptExecutor executor, List<String> XPathList) {
+
+		Object result = executor.executeScript(EVALUATE_SCRIPT, XPathList);
+		if (!(result instanceof Map)) {
+			return null;
+		}
+		Map<String, Object> scriptResult = (Map<String, Object>) result;
+		Object counts = scriptResult.get("counts");
+		Object firsts = scriptResult.get("firsts");
+		Object errors = scriptResult.get("errors");
+		if (!(counts instanceof List) || !(firsts instanceof List) || !(errors instanceof List) || ((List<Object>) counts).size() != XPathList.size()) {
+			return null;
+		}
+
+		Evaluation evaluation = new Evaluation(XPathList);
+		for (int i = 0; i < XPathList.size(); i++) {
+			Object count = ((List<Object>) counts).get(i);
+			Object first = ((List<Object>) firsts).get(i);
+			Object error = ((List<Object>) errors).get(i);
+			evaluation.counts[i] = count instanceof Number ? ((Number) count).intValue() : 0;
+			evaluation.firsts[i] = first instanceof WebElement ? (WebElement) first : null;
+			evaluation.errors[i] = error == null ? null : String.valueOf(error);
+		}
+		evaluation.roundTrips = 1;
+		return evaluation;
+	}
+
+	private Evaluation evaluateByFindElements(final WebDriver webDriver, List<String> XPathList) {
+
+		Evaluation evaluation = new Evaluation(XPathList);
+		for (int i = 0; i < XPathList.size(); i++) {
+			try {
+				List<WebElement> elements = webDriver.findElements(By.xpath(XPathList.get(i)));
+				evaluation.counts[i] = elements.size();
+				evaluation.firsts[i] = elements.isEmpty() ? null : elements.get(0);
+			} catch (WebDriverException e) {
+				evaluation.errors[i] = e.getMessage();
+			}
+			evaluation.roundTrips++;
+		}
+		return evaluation;
+	}
+
+	/**
+	 * Result of evaluating a list of xpaths, indexes follow the list
+	 */
+	public static final class Evaluation {
+
+		private final List<String> xpaths;
+		private final int[] counts;
+		private final WebElement[] firsts;
+		private final String[] errors;
+		private boolean satisfied;
+		private int roundTrips;
+		private long elapsedMillis;
+
+		private Evaluation(List<String> xpaths) {
+
+			this.xpaths = Collections.unmodifiableList(new ArrayList<String>(xpaths));
+			counts = new int[xpaths.size()];
+			firsts = new WebElement[xpaths.size()];
+			errors = new String[xpaths.size()];
+		}
+
+		private boolean holds(Condition condition) {
+
+			int matched = 0;
+			for (int count : counts) {
+				if (count > 0) {
+					matched++;
+				}
+			}
+			switch (condition) {
+			case ANY:
+				return matched > 0;
+			case ALL:
+				return matched == counts.length;
+			default:
+				return matched == 0;
+			}
+		}
+
+		public List<String> getXPaths() {
+
+			return xpaths;
+		}
+
+		/**
+		 * @param index
+		 * @return nodes the xpath matched
+		 */
+		public int getCount(int index) {
+
+			return counts[index];
+		}
+
+		public boolean isMatched(int index) {
+
+			return counts[index] > 0;
+		}
+
+		/**
+		 * @param index
+		 * @return first element the xpath matched, null if none or the first match isn't an element
+		 */
+		public WebElement getFirstElement(int index) {
+
+			return firsts[index];
+		}
+
+		/**
+		 * @param index
+		 * @return why the xpath couldn't be evaluated, e.g. invalid syntax; null if it was
+		 */
+		public String getError(int index) {
+
+			return errors[index];
+		}
+
+		/**
+		 * @return index of the first xpath in the list that couldn't be evaluated, -1 if all were
+		 */
+		public int getFirstError() {
+
+			for (int i = 0; i < errors.length; i++) {
+				if (errors[i] != null) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * @return index of the first xpath in the list that matched, -1 if none did
+		 */
+		public int getFirstMatched() {
+
+			for (int i = 0; i < counts.length; i++) {
+				if (counts[i] > 0) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * @return xpaths that matched, in list order
+		 */
+		public List<String> getMatchedXPaths() {
+
+			List<String> matched = new ArrayList<String>();
+			for (int i = 0; i < counts.length; i++) {
+				if (counts[i] > 0) {
+					matched.add(xpaths.get(i));
+				}
+			}
+			return matched;
+		}
+
+		/**
+		 * @return for await, whether the condition held; for evaluate, whether any xpath matched
+		 */
+		public boolean isSatisfied() {
+
+			return satisfied;
+		}
+
+		public int getRoundTrips() {
+
+			return roundTrips;
+		}
+
+		public long getElapsedMillis() {
+
+			return elapsedMillis;
+		}
+
+		@Override
+		public String toString() {
+
+			return "satisfied=" + satisfied + ", counts=" + Arrays.toString(counts) + ", roundTrips=" + roundTrips + ", elapsedMillis=" + elapsedMillis;
+		}
+	}
+}
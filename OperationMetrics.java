@@ -0,0 +1,504 @@
+package selenium;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Latency, count and failure count of every SeleniumUtils operation and XPath wait, per site.
+ * Latencies go into a log-linear histogram (HDR style, 16 buckets per power of two, about 6% error) on an AtomicLongArray,
+ * so recording is a few atomic increments without locks or allocation.
+ * The site is taken from the recording thread, set by {@link #setSite(String)}; CredentialScheduler sets it for its jobs.
+ * Snapshots are read through {@link #getSnapshots()} or written periodically as Prometheus text or JSON.
+ *
+ * @author naveenc
+ *
+ */
+public class OperationMetrics {
+
+	private static final OperationMetrics onlyOne = new OperationMetrics();
+	private static final String NO_SITE = "";
+	private static final ThreadLocal<String> site = new ThreadLocal<String>();
+
+	// log-linear histogram over microseconds: values below 32 have a bucket each, every power of two above is split in 16
+	private static final int SUB_BUCKETS = 16;
+	private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+	private static final int MAX_SHIFT = 36;
+	private static final int BUCKET_COUNT = LINEAR_LIMIT + MAX_SHIFT * SUB_BUCKETS;
+
+	/**
+	 * Snapshot file format
+	 */
+	public enum Format {
+		PROMETHEUS, JSON
+	}
+
+	private final Logger log = LoggerFactory.getLogger(OperationMetrics.class);
+	private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+	private volatile boolean enabled = true;
+
+	public static OperationMetrics getInstance() {
+
+		return onlyOne;
+	}
+
+	// singleton class
+	private OperationMetrics() {
+
+	}
+
+	/**
+	 * Labels the operations of the current thread with the site until cleared
+	 *
+	 * @param siteName
+	 *            - null clears the label
+	 */
+	public static void setSite(String siteName) {
+
+		if (siteName == null) {
+			site.remove();
+		} else {
+			site.set(siteName);
+		}
+	}
+
+	public static void clearSite() {
+
+		site.remove();
+	}
+
+	/**
+	 * @return site of the current thread, empty if not set
+	 */
+	public static String getSite() {
+
+		String siteName = site.get();
+		return siteName == null ? NO_SITE : siteName;
+	}
+
+	public void setEnabled(boolean enabled) {
+
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @return start time to pass to {@link #record(String, long, boolean)}
+	 */
+	public long start() {
+
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records an operation of the current thread's site
+	 *
+	 * @param operation
+	 * @param startNanos
+	 *            - from {@link #start()}
+	 * @param success
+	 *            - false counts a failure; the latency is recorded either way
+	 */
+	public void record(String operation, long startNanos, boolean success) {
+
+		if (!enabled) {
+			return;
+		}
+		long elapsed = System.nanoTime() - startNanos;
+		String siteName = getSite();
+		String key = operation + '\t' + siteName;
+		Timer timer = timers.get(key);
+		if (timer == null) {
+			Timer created = new Timer(operation, siteName);
+			timer = timers.putIfAbsent(key, created);
+			if (timer == null) {
+				timer = created;
+			}
+		}
+		timer.record(elapsed, success);
+	}
+
+	/**
+	 * Starts timing an operation. The body reports its outcome through {@link Timing#result(boolean)} and the timing is
+	 * stopped in a finally block, so an exception counts as a failure:
+	 *
+	 * <pre>
+	 * Timing timing = metrics.time("getLogin");
+	 * try {
+	 * 	...
+	 * 	return timing.result(status);
+	 * } finally {
+	 * 	timing.stop();
+	 * }
+	 * </pre>
+	 *
+	 * @param operation
+	 * @return running timing
+	 */
+	public Timing time(String operation) {
+
+		return new Timing(this, operation);
+	}
+
+	/**
+	 * @return snapshot of every operation and site, slowest total time first
+	 */
+	public List<Snapshot> getSnapshots() {
+
+		List<Snapshot> snapshots = new ArrayList<Snapshot>();
+		for (Timer timer : timers.values()) {
+			snapshots.add(timer.snapshot());
+		}
+		Collections.sort(snapshots, new Comparator<Snapshot>() {
+
+			@Override
+			public int compare(Snapshot first, Snapshot second) {
+
+				return Long.compare(second.totalNanos, first.totalNanos);
+			}
+		});
+		return snapshots;
+	}
+
+	/**
+	 * @param operation
+	 * @param siteName
+	 * @return snapshot, null if the operation didn't run for the site
+	 */
+	public Snapshot getSnapshot(String operation, String siteName) {
+
+		Timer timer = timers.get(operation + '\t' + (siteName == null ? NO_SITE : siteName));
+		return timer == null ? null : timer.snapshot();
+	}
+
+	public void reset() {
+
+		timers.clear();
+	}
+
+	/**
+	 * Writes a snapshot to the file, replacing it atomically
+	 *
+	 * @param file
+	 * @param format
+	 * @throws IOException
+	 */
+	public void writeSnapshot(File file, Format format) throws IOException {
+
+		List<Snapshot> snapshots = getSnapshots();
+		File temp = SeleniumUtils.getInstance().createTempFileFor(file, ".temp");
+		try {
+			Writer writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8);
+			try {
+				if (format == Format.PROMETHEUS) {
+					writePrometheus(writer, snapshots);
+				} else {
+					writeJson(writer, snapshots);
+				}
+			} finally {
+				writer.close();
+			}
+			SeleniumUtils.getInstance().moveAtomically(temp, file);
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Writes a snapshot to the file at a fixed rate on the WaitManager scheduler
+	 *
+	 * @param file
+	 * @param format
+	 * @param periodInMilliSec
+	 * @return cancel it to stop the export
+	 */
+	public ScheduledFuture<?> exportPeriodically(final File file, final Format format, long periodInMilliSec) {
+
+		return WaitManager.getInstance().scheduleAtFixedRate(new Runnable() {
+
+			@Override
+			public void run() {
+
+				try {
+					writeSnapshot(file, format);
+				} catch (IOException e) {
+					log.error("Failed writing metrics to " + file.getAbsolutePath() + ": " + e.getMessage());
+				}
+			}
+		}, periodInMilliSec);
+	}
+
+	private void writePrometheus(Writer writer, List<Snapshot> snapshots) throws IOException {
+
+		writer.write("# TYPE selenium_operation_seconds summary\n");
+		for (Snapshot snapshot : snapshots) {
+			String labels = "operation=\"" + escape(snapshot.operation) + "\",site=\"" + escape(snapshot.site) + "\"";
+			for (double quantile : new double[] { 0.5, 0.9, 0.99 }) {
+				writer.write("selenium_operation_seconds{" + labels + ",quantile=\"" + quantile + "\"} " + seconds(snapshot.getPercentileNanos(quantile * 100)) + "\n");
+			}
+			writer.write("selenium_operation_seconds_sum{" + labels + "} " + seconds(snapshot.totalNanos) + "\n");
+			writer.write("selenium_operation_seconds_count{" + labels + "} " + snapshot.count + "\n");
+		}
+		writer.write("# TYPE selenium_operation_failures_total counter\n");
+		for (Snapshot snapshot : snapshots) {
+			writer.write("selenium_operation_failures_total{operation=\"" + escape(snapshot.operation) + "\",site=\"" + escape(snapshot.site) + "\"} " + snapshot.failures + "\n");
+		}
+	}
+
+	private void writeJson(Writer writer, List<Snapshot> snapshots) throws IOException {
+
+		writer.write("[");
+		for (int i = 0; i < snapshots.size(); i++) {
+			Snapshot snapshot = snapshots.get(i);
+			writer.write(i == 0 ? "\n" : ",\n");
+			writer.write("{\"operation\":\"" + escape(snapshot.operation) + "\",\"site\":\"" + escape(snapshot.site) + "\",\"count\":" + snapshot.count + ",\"failures\":" + snapshot.failures
+					+ ",\"totalMillis\":" + millis(snapshot.totalNanos) + ",\"meanMillis\":" + millis(snapshot.getMeanNanos()) + ",\"p50Millis\":" + millis(snapshot.getPercentileNanos(50))
+					+ ",\"p90Millis\":" + millis(snapshot.getPercentileNanos(90)) + ",\"p99Millis\":" + millis(snapshot.getPercentileNanos(99)) + ",\"maxMillis\":" + millis(snapshot.maxNanos) + "}");
+		}
+		writer.write("\n]\n");
+	}
+
+	private static String seconds(long nanos) {
+
+		return String.format(Locale.ROOT, "%.6f", nanos / 1e9);
+	}
+
+	private static String millis(long nanos) {
+
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+	}
+
+	private static String escape(String value) {
+
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	/*
+	 * bucket of a latency in microseconds
+	 */
+	static int bucketOf(long micros) {
+
+		if (micros < LINEAR_LIMIT) {
+			return (int) Math.max(0, micros);
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(micros) - 4;
+		if (shift > MAX_SHIFT) {
+			return BUCKET_COUNT - 1;
+		}
+		int top = (int) (micros >>> shift);
+		return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + (top - SUB_BUCKETS);
+	}
+
+	/*
+	 * middle of the bucket, in microseconds
+	 */
+	static long valueOf(int bucket) {
+
+		if (bucket < LINEAR_LIMIT) {
+			return bucket;
+		}
+		int shift = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+		long top = SUB_BUCKETS + (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+		return (top << shift) + (1L << (shift - 1));
+	}
+
+	private static final class Timer {
+
+		private final String operation;
+		private final String site;
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder failures = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		private Timer(String operation, String site) {
+
+			this.operation = operation;
+			this.site = site;
+		}
+
+		private void record(long nanos, boolean success) {
+
+			buckets.incrementAndGet(bucketOf(nanos / 1000));
+			count.increment();
+			totalNanos.add(nanos);
+			if (!success) {
+				failures.increment();
+			}
+			long max;
+			while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+				;
+			}
+		}
+
+		private Snapshot snapshot() {
+
+			long[] counts = new long[BUCKET_COUNT];
+			for (int i = 0; i < BUCKET_COUNT; i++) {
+				counts[i] = buckets.get(i);
+			}
+			return new Snapshot(operation, site, count.sum(), failures.sum(), totalNanos.sum(), maxNanos.get(), counts);
+		}
+	}
+
+	/**
+	 * One running operation, see {@link OperationMetrics#time(String)}
+	 */
+	public static final class Timing {
+
+		private final OperationMetrics metrics;
+		private final String operation;
+		private final long startNanos;
+		private boolean success;
+		private boolean stopped;
+
+		private Timing(OperationMetrics metrics, String operation) {
+
+			this.metrics = metrics;
+			this.operation = operation;
+			this.startNanos = metrics.start();
+		}
+
+		/**
+		 * @param status
+		 *            - false counts a failure
+		 * @return the status, to return it from the operation
+		 */
+		public boolean result(boolean status) {
+
+			success = status;
+			return status;
+		}
+
+		/**
+		 * @param value
+		 * @param status
+		 *            - false counts a failure
+		 * @return the value, to return it from the operation
+		 */
+		public <T> T result(T value, boolean status) {
+
+			success = status;
+			return value;
+		}
+
+		/**
+		 * Records the operation once, with the last reported outcome; failed if none was reported
+		 */
+		public void stop() {
+
+			if (!stopped) {
+				stopped = true;
+				metrics.record(operation, startNanos, success);
+			}
+		}
+	}
+
+	/**
+	 * Values of one operation and site at the time of the snapshot
+	 */
+	public static final class Snapshot {
+
+		private final String operation;
+		private final String site;
+		private final long count;
+		private final long failures;
+		private final long totalNanos;
+		private final long maxNanos;
+		private final long[] buckets;
+
+		private Snapshot(String operation, String site, long count, long failures, long totalNanos, long maxNanos, long[] buckets) {
+
+			this.operation = operation;
+			this.site = site;
+			this.count = count;
+			this.failures = failures;
+			this.totalNanos = totalNanos;
+			this.maxNanos = maxNanos;
+			this.buckets = buckets;
+		}
+
+		public String getOperation() {
+
+			return operation;
+		}
+
+		public String getSite() {
+
+			return site;
+		}
+
+		public long getCount() {
+
+			return count;
+		}
+
+		public long getFailures() {
+
+			return failures;
+		}
+
+		public long getTotalNanos() {
+
+			return totalNanos;
+		}
+
+		public long getMaxNanos() {
+
+			return maxNanos;
+		}
+
+		public long getMeanNanos() {
+
+			return count == 0 ? 0 : totalNanos / count;
+		}
+
+		/**
+		 * @param percentile
+		 *            - 0 to 100
+		 * @return latency at the percentile, within the bucket precision
+		 */
+		public long getPercentileNanos(double percentile) {
+
+			long total = 0;
+			for (long bucket : buckets) {
+				total += bucket;
+			}
+			if (total == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+			long seen = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				seen += buckets[i];
+				if (seen >= rank) {
+					return Math.min(valueOf(i) * 1000, maxNanos);
+				}
+			}
+			return maxNanos;
+		}
+
+		@Override
+		public String toString() {
+
+			return operation + (site.isEmpty() ? "" : "@" + site) + " count=" + count + " failures=" + failures + " mean=" + millis(getMeanNanos()) + "ms p99=" + millis(getPercentileNanos(99)) + "ms max="
+					+ millis(maxNanos) + "ms";
+		}
+	}
+}
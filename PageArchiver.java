@@ -0,0 +1,542 @@
+package selenium;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.openqa.selenium.Cookie;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gargoylesoftware.htmlunit.Page;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.html.DomAttr;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+
+/**
+ * Saves many pages at once, the bulk counterpart of savePageSource.
+ * 1. fetch -> pages are loaded on a pool of fetching threads with WebClients borrowed from a {@link SessionPool}.
+ * 2. resources -> stylesheets, scripts and images are downloaded once per url and stored once per content, as
+ * hash.extension in the shared resource directory; the page references them there instead of in a directory of its own.
+ * 3. write -> the rewritten page is handed to the writing threads while the fetching thread moves on to the next page.
+ * The hand over queue is bounded, a full queue makes the fetching thread write itself. A page fetched after close gave
+ * up waiting is not written, its future completes with false.
+ * 4. zip -> optionally the pages of an account go into one compressed archive, which carries its own copy of each
+ * resource once.
+ *
+ * @author naveenc
+ *
+ */
+public class PageArchiver {
+
+	private static final String RESOURCE_XPATH = "//link[@rel='stylesheet' or @rel='icon']/@href | //script/@src | //img/@src | //input[@type='image']/@src";
+	private static final String ZIP_RESOURCE_DIR = "resources/";
+
+	private final Logger log = LoggerFactory.getLogger(PageArchiver.class);
+	private final SessionPool<WebClient> sessions;
+	private final File resourceDir;
+	private final ExecutorService fetchers;
+	private final ThreadPoolExecutor writers;
+	private final Map<String, String> resourceNames = new ConcurrentHashMap<String, String>();
+	private final Map<String, Zip> zips = new ConcurrentHashMap<String, Zip>();
+	private volatile Set<Cookie> cookies = new HashSet<Cookie>();
+	private volatile long borrowTimeoutInMilliSec = 60000L;
+	// set while a fetching thread runs a write the writers refused after close
+	private final ThreadLocal<Boolean> refusedWrite = new ThreadLocal<Boolean>();
+
+	private final AtomicLong archivedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong storedResources = new AtomicLong();
+	private final AtomicLong reusedResources = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong bytesSaved = new AtomicLong();
+
+	/**
+	 * @param sessions
+	 *            - WebClients the pages are loaded with, not shut down by this archiver
+	 * @param resourceDir
+	 *            - shared store of stylesheets, scripts and images
+	 * @param fetchThreads
+	 *            - pages loaded at a time, at most the pool size is useful
+	 * @param writerThreads
+	 *            - pages written at a time
+	 * @throws IOException
+	 */
+	public PageArchiver(SessionPool<WebClient> sessions, File resourceDir, int fetchThreads, int writerThreads) throws IOException {
+
+		if (!(resourceDir.isDirectory() || resourceDir.mkdirs())) {
+			throw new IOException("Failed creating resource directory " + resourceDir.getAbsolutePath());
+		}
+		this.sessions = sessions;
+		this.resourceDir = resourceDir.getAbsoluteFile();
+		fetchers = Executors.newFixedThreadPool(fetchThreads);
+		writers = new ThreadPoolExecutor(writerThreads, writerThreads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(writerThreads * 4), new RejectedExecutionHandler() {
+
+			@Override
+			public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+
+				// queue full, the fetching thread writes; shut down by close, the task still runs so the future completes
+				if (!executor.isShutdown()) {
+					task.run();
+					return;
+				}
+				refusedWrite.set(Boolean.TRUE);
+				try {
+					task.run();
+				} finally {
+					refusedWrite.remove();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Cookies added to every borrowed WebClient, e.g. of the logged in WebDriver, since the pool clears them on release
+	 *
+	 * @param cookies
+	 */
+	public void setCookies(Set<Cookie> cookies) {
+
+		this.cookies = new HashSet<Cookie>(cookies);
+	}
+
+	/**
+	 * @param borrowTimeoutInMilliSec
+	 *            - wait for a free WebClient, default a minute
+	 */
+	public void setBorrowTimeout(long borrowTimeoutInMilliSec) {
+
+		this.borrowTimeoutInMilliSec = borrowTimeoutInMilliSec;
+	}
+
+	/**
+	 * Saves the page into the file, its resources into the resource directory
+	 *
+	 * @param url
+	 * @param file
+	 * @return completes with true once the page is written, false if it failed
+	 */
+	public CompletableFuture<Boolean> save(final String url, final File file) {
+
+		final String prefix = relativePath(file.getAbsoluteFile().getParentFile(), resourceDir);
+		return pipeline(url, prefix, new Function<String, Boolean>() {
+
+			@Override
+			public Boolean apply(String html) {
+
+				return writeFile(url, html, file);
+			}
+		});
+	}
+
+	/**
+	 * Saves the page as an entry of the zip; pages of one account should share a zip
+	 *
+	 * @param url
+	 * @param zipFile
+	 *            - written on close
+	 * @param entryName
+	 *            - path of the page in the zip, '/' separated
+	 * @return completes with true once the page is written, false if it failed
+	 */
+	public CompletableFuture<Boolean> saveToZip(final String url, final File zipFile, final String entryName) {
+
+		StringBuilder prefix = new StringBuilder();
+		for (int i = entryName.indexOf('/'); i != -1; i = entryName.indexOf('/', i + 1)) {
+			prefix.append("../");
+		}
+		prefix.append(ZIP_RESOURCE_DIR);
+		return pipeline(url, prefix.toString(), new Function<String, Boolean>() {
+
+			@Override
+			public Boolean apply(String html) {
+
+				return writeZipEntry(url, html, zipFile, entryName);
+			}
+		});
+	}
+
+	/**
+	 * Waits for the submitted pages and finishes the zips
+	 *
+	 * @param timeoutInMilliSec
+	 * @return false if pages were still pending or a zip couldn't be finished
+	 */
+	public boolean close(long timeoutInMilliSec) {
+
+		boolean done = true;
+		long deadline = System.currentTimeMillis() + timeoutInMilliSec;
+		fetchers.shutdown();
+		try {
+			done = fetchers.awaitTermination(timeoutInMilliSec, TimeUnit.MILLISECONDS);
+			writers.shutdown();
+			done = writers.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS) && done;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			done = false;
+		}
+		for (Zip zip : zips.values()) {
+			done = zip.finish() && done;
+		}
+		zips.clear();
+		log.info("Archived " + archivedCount.get() + " page(s), " + failedCount.get() + " failed, resources stored: " + storedResources.get() + " reused: " + reusedResources.get());
+		return done;
+	}
+
+	public long getArchivedCount() {
+
+		return archivedCount.get();
+	}
+
+	public long getFailedCount() {
+
+		return failedCount.get();
+	}
+
+	/**
+	 * @return resources written to the resource directory
+	 */
+	public long getStoredResources() {
+
+		return storedResources.get();
+	}
+
+	/**
+	 * @return resource references served by a resource already stored
+	 */
+	public long getReusedResources() {
+
+		return reusedResources.get();
+	}
+
+	public long getBytesWritten() {
+
+		return bytesWritten.get();
+	}
+
+	/**
+	 * @return resource bytes not written again
+	 */
+	public long getBytesSaved() {
+
+		return bytesSaved.get();
+	}
+
+	private CompletableFuture<Boolean> pipeline(final String url, final String resourcePrefix, final Function<String, Boolean> writer) {
+
+		return CompletableFuture.supplyAsync(new Supplier<String>() {
+
+			@Override
+			public String get() {
+
+				return fetch(url, resourcePrefix);
+			}
+		}, fetchers).thenApplyAsync(new Function<String, Boolean>() {
+
+			@Override
+			public Boolean apply(String html) {
+
+				if (Boolean.TRUE.equals(refusedWrite.get())) {
+					// fetched after close gave up waiting, the zips are finished
+					log.error("Archiver closed before " + url + " was fetched, not written");
+					failedCount.incrementAndGet();
+					return false;
+				}
+				boolean written = html != null && writer.apply(html);
+				(written ? archivedCount : failedCount).incrementAndGet();
+				return written;
+			}
+		}, writers);
+	}
+
+	/*
+	 * loads the page, stores its resources and returns the rewritten html, null on failure
+	 */
+	private String fetch(String url, String resourcePrefix) {
+
+		long start = System.currentTimeMillis();
+		PooledSession<WebClient> session;
+		try {
+			session = sessions.borrow(borrowTimeoutInMilliSec);
+		} catch (Exception e) {
+			log.error("No WebClient for " + url + ": " + e.getMessage());
+			return null;
+		}
+		WebClient webClient = session.get();
+		// pooled client, handed back with its own setting
+		boolean throwOnFailingStatusCode = webClient.getOptions().isThrowExceptionOnFailingStatusCode();
+		try {
+			for (Cookie cookie : cookies) {
+				webClient.getCookieManager().addCookie(SeleniumUtils.getInstance().toHtmlUnitCookie(cookie));
+			}
+			webClient.getOptions().setThrowExceptionOnFailingStatusCode(false);
+			Page page = webClient.getPage(url);
+			if (!(page instanceof HtmlPage)) {
+				log.error("Not a html page " + url);
+				return null;
+			}
+			HtmlPage htmlPage = (HtmlPage) page;
+			if (htmlPage.getWebResponse().getStatusCode() >= 400) {
+				log.error("Failed with status code: " + htmlPage.getWebResponse().getStatusCode() + " for " + url);
+				return null;
+			}
+
+			int resources = 0;
+			for (Object node : htmlPage.getByXPath(RESOURCE_XPATH)) {
+				DomAttr attribute = (DomAttr) node;
+				String value = attribute.getValue().trim();
+				if (value.isEmpty() || value.startsWith("data:") || value.startsWith("javascript:")) {
+					continue;
+				}
+				URL resourceUrl = htmlPage.getFullyQualifiedUrl(value);
+				String name = storeResource(webClient, resourceUrl);
+				// a resource which can't be stored stays on the site
+				attribute.setValue(name == null ? resourceUrl.toExternalForm() : resourcePrefix + name);
+				resources++;
+			}
+			String html = htmlPage.asXml();
+			log.debug("Fetched " + url + " with " + resources + " resource(s) in " + (System.currentTimeMillis() - start) + " ms");
+			return html;
+		} catch (IOException e) {
+			log.error("Failed loading " + url + ": " + e.getMessage());
+			return null;
+		} catch (RuntimeException e) {
+			log.error("Failed archiving " + url + ": " + e.getMessage());
+			session.markBroken();
+			return null;
+		} finally {
+			webClient.getOptions().setThrowExceptionOnFailingStatusCode(throwOnFailingStatusCode);
+			session.close();
+		}
+	}
+
+	/*
+	 * hash.extension of the stored resource, null if it couldn't be loaded
+	 */
+	private String storeResource(WebClient webClient, URL url) {
+
+		String key = url.toExternalForm();
+		String name = resourceNames.get(key);
+		if (name != null) {
+			reusedResources.incrementAndGet();
+			bytesSaved.addAndGet(new File(resourceDir, name).length());
+			return name;
+		}
+
+		WebResponse response = null;
+		try {
+			response = webClient.loadWebResponse(new WebRequest(url));
+			if (response.getStatusCode() >= 400) {
+				log.debug("Resource " + url + " failed with status code: " + response.getStatusCode());
+				return null;
+			}
+			byte[] body;
+			InputStream in = response.getContentAsStream();
+			try {
+				body = IOUtils.toByteArray(in);
+			} finally {
+				IOUtils.closeQuietly(in);
+			}
+			name = BillStore.toHex(sha256().digest(body)) + "." + extensionOf(url.getPath(), response.getContentType());
+			File file = new File(resourceDir, name);
+			if (file.exists()) {
+				reusedResources.incrementAndGet();
+				bytesSaved.addAndGet(body.length);
+			} else {
+				File temp = File.createTempFile(name, ".temp", resourceDir);
+				try {
+					Files.write(temp.toPath(), body);
+					SeleniumUtils.getInstance().moveAtomically(temp, file);
+				} finally {
+					temp.delete();
+				}
+				storedResources.incrementAndGet();
+				bytesWritten.addAndGet(body.length);
+			}
+			resourceNames.put(key, name);
+			return name;
+		} catch (IOException e) {
+			log.debug("Resource " + url + " not stored: " + e.getMessage());
+			return null;
+		} finally {
+			if (response != null) {
+				response.cleanUp();
+			}
+		}
+	}
+
+	private boolean writeFile(String url, String html, File file) {
+
+		byte[] content = html.getBytes(StandardCharsets.UTF_8);
+		try {
+			file.getAbsoluteFile().getParentFile().mkdirs();
+			File temp = SeleniumUtils.getInstance().createTempFileFor(file, ".temp");
+			try {
+				Files.write(temp.toPath(), content);
+				SeleniumUtils.getInstance().moveAtomically(temp, file);
+			} finally {
+				temp.delete();
+			}
+		} catch (IOException e) {
+			log.error("Failed while saving page " + url + " to " + file.getAbsolutePath());
+			return false;
+		}
+		bytesWritten.addAndGet(content.length);
+		log.info("Page saved in " + file.getAbsolutePath());
+		return true;
+	}
+
+	private boolean writeZipEntry(String url, String html, File zipFile, String entryName) {
+
+		String key = zipFile.getAbsolutePath();
+		Zip zip;
+		synchronized (zips) {
+			zip = zips.get(key);
+			if (zip == null) {
+				try {
+					zip = new Zip(zipFile.getAbsoluteFile());
+				} catch (IOException e) {
+					log.error("Failed creating " + zipFile.getAbsolutePath() + ": " + e.getMessage());
+					return false;
+				}
+				zips.put(key, zip);
+			}
+		}
+		try {
+			zip.add(html, entryName);
+		} catch (IOException e) {
+			log.error("Failed while saving page " + url + " to " + zipFile.getAbsolutePath() + "!" + entryName + ": " + e.getMessage());
+			return false;
+		}
+		log.info("Page saved in " + zipFile.getAbsolutePath() + "!" + entryName);
+		return true;
+	}
+
+	private static String extensionOf(String path, String contentType) {
+
+		String lower = path == null ? "" : path.toLowerCase();
+		int dot = lower.lastIndexOf('.');
+		if (dot != -1 && dot > lower.lastIndexOf('/') && lower.length() - dot <= 6 && lower.substring(dot + 1).matches("[a-z0-9]+")) {
+			return lower.substring(dot + 1);
+		}
+		switch (FilteringWebConnection.kindOfContentType(contentType, FilteringWebConnection.Kind.OTHER)) {
+		case SCRIPT:
+			return "js";
+		case STYLESHEET:
+			return "css";
+		case IMAGE:
+			return contentType.substring(contentType.indexOf('/') + 1).replaceAll("[^a-z0-9].*", "");
+		default:
+			return "bin";
+		}
+	}
+
+	/*
+	 * '/' separated path from the directory to the target, ending with '/'
+	 */
+	private static String relativePath(File from, File to) {
+
+		String relative = from.toPath().normalize().relativize(to.toPath().normalize()).toString().replace(File.separatorChar, '/');
+		return relative.isEmpty() ? "" : relative + "/";
+	}
+
+	private static MessageDigest sha256() {
+
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+
+	/**
+	 * Archive of one account, written to a temp file and moved into place when finished
+	 */
+	private final class Zip {
+
+		private final File zipFile;
+		private final File temp;
+		private final ZipOutputStream out;
+		private final Set<String> entries = new HashSet<String>();
+
+		private Zip(File zipFile) throws IOException {
+
+			this.zipFile = zipFile;
+			zipFile.getParentFile().mkdirs();
+			temp = SeleniumUtils.getInstance().createTempFileFor(zipFile, ".temp");
+			out = new ZipOutputStream(Files.newOutputStream(temp.toPath()));
+		}
+
+		/*
+		 * the page and every resource it references which isn't in the zip yet
+		 */
+		private synchronized void add(String html, String entryName) throws IOException {
+
+			List<String> names = new ArrayList<String>();
+			int at = 0;
+			while ((at = html.indexOf(ZIP_RESOURCE_DIR, at)) != -1) {
+				int end = at + ZIP_RESOURCE_DIR.length();
+				while (end < html.length() && (Character.isLetterOrDigit(html.charAt(end)) || html.charAt(end) == '.')) {
+					end++;
+				}
+				names.add(html.substring(at + ZIP_RESOURCE_DIR.length(), end));
+				at = end;
+			}
+			for (String name : names) {
+				File resource = new File(resourceDir, name);
+				if (!name.isEmpty() && resource.isFile() && entries.add(ZIP_RESOURCE_DIR + name)) {
+					out.putNextEntry(new ZipEntry(ZIP_RESOURCE_DIR + name));
+					Files.copy(resource.toPath(), out);
+					out.closeEntry();
+				}
+			}
+			if (!entries.add(entryName)) {
+				throw new IOException("Duplicate entry " + entryName);
+			}
+			byte[] content = html.getBytes(StandardCharsets.UTF_8);
+			out.putNextEntry(new ZipEntry(entryName));
+			out.write(content);
+			out.closeEntry();
+			bytesWritten.addAndGet(content.length);
+		}
+
+		private synchronized boolean finish() {
+
+			try {
+				out.close();
+				SeleniumUtils.getInstance().moveAtomically(temp, zipFile);
+				return true;
+			} catch (IOException e) {
+				log.error("Failed finishing " + zipFile.getAbsolutePath() + ": " + e.getMessage());
+				temp.delete();
+				return false;
+			}
+		}
+	}
+}
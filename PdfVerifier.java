@@ -0,0 +1,485 @@
+package selenium;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks stored pdf bills for truncation and damage.
+ * 1. header -> %PDF- within the first 1024 bytes.
+ * 2. trailer -> %%EOF within the configurable trailer window, so whitespace written after it is accepted.
+ * 3. optionally startxref -> the offset points at an xref table or xref stream, and every in-use xref entry points at its object.
+ * Files are read in pages, so only the pages holding header, trailer and objects are read and nothing is left mapped; small files are read in one go.
+ * Directory trees are verified in parallel on a fork-join pool, the files of one directory in batches, and summed up in a compact report.
+ *
+ * @author naveenc
+ *
+ */
+public class PdfVerifier {
+
+	private static final int HEADER_WINDOW = 1024;
+	private static final int PAGE_SIZE = 64 * 1024;
+	private static final int BATCH_SIZE = 16;
+	private static final byte[] HEADER = ascii("%PDF-");
+	private static final byte[] EOF = ascii("%%EOF");
+	private static final byte[] STARTXREF = ascii("startxref");
+	private static final byte[] XREF = ascii("xref");
+	private static final byte[] OBJ = ascii("obj");
+
+	private final Logger log = LoggerFactory.getLogger(PdfVerifier.class);
+	private final int trailerWindow;
+	private final boolean validateXref;
+
+	/**
+	 * @param trailerWindow
+	 *            - number of bytes at the file end searched for %%EOF
+	 * @param validateXref
+	 *            - also checks startxref and the xref offsets
+	 */
+	public PdfVerifier(int trailerWindow, boolean validateXref) {
+
+		this.trailerWindow = trailerWindow;
+		this.validateXref = validateXref;
+	}
+
+	/**
+	 * Same check as SeleniumUtils.isPdfCorrupted
+	 *
+	 * @param file
+	 * @return true if the file is not a complete pdf
+	 */
+	public boolean isCorrupted(File file) {
+
+		return verify(file) != null;
+	}
+
+	/**
+	 * @param file
+	 * @return null for a good pdf, otherwise the reason it is corrupted
+	 */
+	public String verify(File file) {
+
+		try {
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			try {
+				long size = channel.size();
+				if (size < HEADER.length + EOF.length) {
+					return "too small: " + size + " bytes";
+				}
+				if (size > Integer.MAX_VALUE) {
+					return "too large to verify: " + size + " bytes";
+				}
+				return verify(new Content(channel, (int) size));
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			return "can't read: " + e.getMessage();
+		} catch (UncheckedIOException e) {
+			return "can't read: " + e.getCause().getMessage();
+		}
+	}
+
+	/**
+	 * Verifies all files below the directory in parallel. Extensions are not checked because they vary for different sites
+	 *
+	 * @param rootDir
+	 * @param filter
+	 *            - files to verify, null for all files
+	 * @return report of the corrupted files
+	 */
+	public Report verifyTree(File rootDir, FileFilter filter) {
+
+		Report report = new Report();
+		long start = System.currentTimeMillis();
+		ForkJoinPool.commonPool().invoke(new VerifyDirectory(rootDir, filter, report));
+		report.elapsedMillis = System.currentTimeMillis() - start;
+		log.info("Verified " + report.getFileCount() + " file(s) in " + rootDir.getAbsolutePath() + ", corrupted: " + report.getCorruptedCount() + " in " + report.elapsedMillis + " ms");
+		return report;
+	}
+
+	private String verify(Content content) {
+
+		int size = content.limit();
+		if (indexOf(content, HEADER, 0, Math.min(HEADER_WINDOW, size)) == -1) {
+			return "no %PDF- header";
+		}
+		int windowStart = Math.max(0, size - trailerWindow);
+		int eof = lastIndexOf(content, EOF, windowStart, size);
+		if (eof == -1) {
+			return "no %%EOF in the last " + trailerWindow + " bytes";
+		}
+		return validateXref ? verifyXref(content, eof) : null;
+	}
+
+	private String verifyXref(Content content, int eof) {
+
+		int startxref = lastIndexOf(content, STARTXREF, Math.max(0, eof - 1024), eof);
+		if (startxref == -1) {
+			return "no startxref before %%EOF";
+		}
+		int[] position = { skipWhitespace(content, startxref + STARTXREF.length) };
+		long offset = readNumber(content, position);
+		if (offset < 0 || offset >= startxref) {
+			return "startxref offset " + offset + " out of range";
+		}
+
+		int xref = skipWhitespace(content, (int) offset);
+		if (startsWith(content, xref, XREF)) {
+			return verifyXrefTable(content, xref + XREF.length, startxref);
+		}
+		// cross reference stream: "n g obj"
+		position[0] = xref;
+		if (readObjectHeader(content, position) < 0) {
+			return "startxref offset " + offset + " points at neither xref table nor xref stream";
+		}
+		return null;
+	}
+
+	/*
+	 * subsections of "start count" followed by count entries "offset generation n|f"
+	 */
+	private String verifyXrefTable(Content content, int from, int end) {
+
+		int[] position = { from };
+		while (true) {
+			position[0] = skipWhitespace(content, position[0]);
+			if (position[0] >= end || !isDigit(content.get(position[0]))) {
+				// "trailer" keyword ends the table
+				return null;
+			}
+			long first = readNumber(content, position);
+			position[0] = skipWhitespace(content, position[0]);
+			long count = readNumber(content, position);
+			if (first < 0 || count < 0) {
+				return "malformed xref subsection at " + position[0];
+			}
+			for (long i = 0; i < count; i++) {
+				position[0] = skipWhitespace(content, position[0]);
+				long objectOffset = readNumber(content, position);
+				position[0] = skipWhitespace(content, position[0]);
+				long generation = readNumber(content, position);
+				position[0] = skipWhitespace(content, position[0]);
+				if (objectOffset < 0 || generation < 0 || position[0] >= end) {
+					return "malformed xref entry " + (first + i);
+				}
+				byte type = content.get(position[0]++);
+				if (type == 'n' && objectOffset > 0) {
+					int[] objectPosition = { (int) Math.min(objectOffset, content.limit() - 1) };
+					if (objectOffset >= content.limit() || readObjectHeader(content, objectPosition) != first + i) {
+						return "xref entry " + (first + i) + " offset " + objectOffset + " doesn't point at its object";
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * reads "n g obj" and returns n, -1 if not an object header
+	 */
+	private static long readObjectHeader(Content content, int[] position) {
+
+		position[0] = skipWhitespace(content, position[0]);
+		long number = readNumber(content, position);
+		position[0] = skipWhitespace(content, position[0]);
+		long generation = readNumber(content, position);
+		position[0] = skipWhitespace(content, position[0]);
+		if (number < 0 || generation < 0 || !startsWith(content, position[0], OBJ)) {
+			return -1;
+		}
+		return number;
+	}
+
+	private static long readNumber(Content content, int[] position) {
+
+		int index = position[0];
+		long number = 0;
+		int digits = 0;
+		while (index < content.limit() && isDigit(content.get(index)) && digits < 18) {
+			number = number * 10 + (content.get(index++) - '0');
+			digits++;
+		}
+		position[0] = index;
+		return digits == 0 ? -1 : number;
+	}
+
+	private static int skipWhitespace(Content content, int index) {
+
+		while (index < content.limit() && isWhitespace(content.get(index))) {
+			index++;
+		}
+		return index;
+	}
+
+	private static boolean isWhitespace(byte b) {
+
+		return b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == '\f' || b == 0;
+	}
+
+	private static boolean isDigit(byte b) {
+
+		return b >= '0' && b <= '9';
+	}
+
+	private static boolean startsWith(Content content, int index, byte[] pattern) {
+
+		if (index < 0 || index + pattern.length > content.limit()) {
+			return false;
+		}
+		for (int i = 0; i < pattern.length; i++) {
+			if (content.get(index + i) != pattern[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int indexOf(Content content, byte[] pattern, int from, int to) {
+
+		for (int i = from; i <= to - pattern.length; i++) {
+			if (startsWith(content, i, pattern)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int lastIndexOf(Content content, byte[] pattern, int from, int to) {
+
+		for (int i = to - pattern.length; i >= from; i--) {
+			if (startsWith(content, i, pattern)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static byte[] ascii(String text) {
+
+		return text.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private final class VerifyDirectory extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+		private final File directory;
+		private final FileFilter filter;
+		private final Report report;
+
+		private VerifyDirectory(File directory, FileFilter filter, Report report) {
+
+			this.directory = directory;
+			this.filter = filter;
+			this.report = report;
+		}
+
+		@Override
+		protected void compute() {
+
+			File[] files = directory.listFiles();
+			if (files == null) {
+				report.add(directory, "can't list directory");
+				return;
+			}
+			List<VerifyDirectory> subDirectories = new ArrayList<VerifyDirectory>();
+			List<File> pdfs = new ArrayList<File>();
+			for (File file : files) {
+				if (file.isDirectory()) {
+					subDirectories.add(new VerifyDirectory(file, filter, report));
+				} else if (filter == null || filter.accept(file)) {
+					pdfs.add(file);
+				}
+			}
+			invokeAll(new VerifyFiles(pdfs, 0, pdfs.size(), report), new VerifyDirectories(subDirectories));
+		}
+	}
+
+	/*
+	 * a flat directory of bills is the common layout, so its files are split over the pool as well
+	 */
+	private final class VerifyFiles extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+		private final List<File> files;
+		private final int from;
+		private final int to;
+		private final Report report;
+
+		private VerifyFiles(List<File> files, int from, int to, Report report) {
+
+			this.files = files;
+			this.from = from;
+			this.to = to;
+			this.report = report;
+		}
+
+		@Override
+		protected void compute() {
+
+			if (to - from > BATCH_SIZE) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new VerifyFiles(files, from, middle, report), new VerifyFiles(files, middle, to, report));
+				return;
+			}
+			for (int i = from; i < to; i++) {
+				File file = files.get(i);
+				report.fileCount.incrementAndGet();
+				report.byteCount.addAndGet(file.length());
+				String reason = verify(file);
+				if (reason != null) {
+					report.add(file, reason);
+				}
+			}
+		}
+	}
+
+	private static final class VerifyDirectories extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+		private final List<VerifyDirectory> directories;
+
+		private VerifyDirectories(List<VerifyDirectory> directories) {
+
+			this.directories = directories;
+		}
+
+		@Override
+		protected void compute() {
+
+			invokeAll(directories);
+		}
+	}
+
+	/**
+	 * Bytes of a pdf read a page at a time on demand, the last page read is kept
+	 */
+	private static final class Content {
+
+		private final FileChannel channel;
+		private final int size;
+		private final ByteBuffer page;
+		private long pageStart = -1;
+		private int pageLength;
+
+		private Content(FileChannel channel, int size) {
+
+			this.channel = channel;
+			this.size = size;
+			page = ByteBuffer.allocate(Math.min(size, PAGE_SIZE));
+		}
+
+		private int limit() {
+
+			return size;
+		}
+
+		private byte get(int index) {
+
+			if (index < pageStart || index >= pageStart + pageLength) {
+				load(index);
+			}
+			return page.get((int) (index - pageStart));
+		}
+
+		private void load(int index) {
+
+			pageStart = (long) index / page.capacity() * page.capacity();
+			page.clear();
+			try {
+				int count;
+				while (page.hasRemaining() && (count = channel.read(page, pageStart + page.position())) != -1) {
+					if (count == 0 && pageStart + page.position() >= size) {
+						break;
+					}
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			pageLength = page.position();
+			if (index >= pageStart + pageLength) {
+				throw new UncheckedIOException(new IOException("file shrank below " + size + " bytes"));
+			}
+		}
+	}
+
+	/**
+	 * Result of a tree verification, only the corrupted files are listed
+	 */
+	public static final class Report {
+
+		private final AtomicLong fileCount = new AtomicLong();
+		private final AtomicLong byteCount = new AtomicLong();
+		private final Queue<String> corrupted = new ConcurrentLinkedQueue<String>();
+		private long elapsedMillis;
+
+		private void add(File file, String reason) {
+
+			corrupted.add(file.getAbsolutePath() + "\t" + reason);
+		}
+
+		public long getFileCount() {
+
+			return fileCount.get();
+		}
+
+		public long getByteCount() {
+
+			return byteCount.get();
+		}
+
+		public int getCorruptedCount() {
+
+			return corrupted.size();
+		}
+
+		/**
+		 * @return "path TAB reason" of every corrupted file
+		 */
+		public List<String> getCorrupted() {
+
+			return new ArrayList<String>(corrupted);
+		}
+
+		public long getElapsedMillis() {
+
+			return elapsedMillis;
+		}
+
+		/**
+		 * Writes a summary line followed by one "path TAB reason" line per corrupted file
+		 *
+		 * @param reportFile
+		 * @throws IOException
+		 */
+		public void writeTo(File reportFile) throws IOException {
+
+			Writer writer = Files.newBufferedWriter(reportFile.toPath(), StandardCharsets.UTF_8);
+			try {
+				writer.write("# files=" + fileCount.get() + " bytes=" + byteCount.get() + " corrupted=" + corrupted.size() + " elapsedMillis=" + elapsedMillis + "\n");
+				for (String line : corrupted) {
+					writer.write(line);
+					writer.write("\n");
+				}
+			} finally {
+				writer.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package selenium;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A session borrowed from a {@link SessionPool}. Closing it gives it back to the pool
+ * 
+ * @author naveenc
+ * 
+ * @param <T>
+ */
+public final class PooledSession<T> implements AutoCloseable {
+
+	private final SessionPool<T> pool;
+	private final T session;
+	private final long createdTime = System.currentTimeMillis();
+	private int useCount;
+	private volatile boolean broken;
+	private final AtomicBoolean borrowed = new AtomicBoolean();
+
+	PooledSession(SessionPool<T> pool, T session) {
+
+		this.pool = pool;
+		this.session = session;
+	}
+
+	public T get() {
+
+		return session;
+	}
+
+	/**
+	 * Marks the session as unusable, it is destroyed instead of being returned to the pool
+	 */
+	public void markBroken() {
+
+		broken = true;
+	}
+
+	public int getUseCount() {
+
+		return useCount;
+	}
+
+	public long getCreatedTime() {
+
+		return createdTime;
+	}
+
+	boolean isBroken() {
+
+		return broken;
+	}
+
+	void markBorrowed() {
+
+		borrowed.set(true);
+		useCount++;
+	}
+
+	/**
+	 * @return false if the session was already returned
+	 */
+	boolean markReturned() {
+
+		return borrowed.compareAndSet(true, false);
+	}
+
+	@Override
+	public void close() {
+
+		pool.release(this);
+	}
+}
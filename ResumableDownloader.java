@@ -0,0 +1,706 @@
+package selenium;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.openqa.selenium.WebDriver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Downloads large files so that a broken transfer continues where it stopped instead of starting over.
+ * 1. partial -> the body is written to file.resume, next to it file.resume.properties holds the url, ETag,
+ * Last-Modified, length and the offset reached; both survive failed attempts and restarts of the run.
+ * 2. resume -> the next attempt asks for the missing bytes with Range and If-Range; a 206 is appended, a 200 means the
+ * server ignored the range or the file changed, and the transfer starts over.
+ * 3. segments -> optionally, a file above the threshold whose server accepts ranges is split into parallel ranged
+ * segments, each resumed on its own.
+ * 4. verify -> the size must match Content-Length and a pdf must pass {@link PdfVerifier}; then the partial file is
+ * renamed to the target atomically.
+ * Failed attempts are retried with a doubling back off. An html answer where a bill was expected is rejected without
+ * retrying and the partial file is kept, so the transfer can continue with a fresh session.
+ *
+ * @author naveenc
+ *
+ */
+public class ResumableDownloader {
+
+	private static final String PARTIAL_SUFFIX = ".resume";
+	private static final String SIDECAR_SUFFIX = ".resume.properties";
+	private static final long SIDECAR_INTERVAL = 4L * 1024 * 1024;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)");
+
+	/**
+	 * Outcome of one request of a segment
+	 */
+	private enum Status {
+		DONE, RESTART, REJECTED
+	}
+
+	private final Logger log = LoggerFactory.getLogger(ResumableDownloader.class);
+	private final PoolingHttpClientConnectionManager connectionManager;
+	private final CloseableHttpClient httpClient;
+	private final StreamingDownloader streamingDownloader = new StreamingDownloader();
+	private final PdfVerifier pdfVerifier = new PdfVerifier(1024, false);
+	private final OperationMetrics metrics = OperationMetrics.getInstance();
+	private volatile int maxAttempts = 5;
+	private volatile long backoffInMilliSec = 2000L;
+	private volatile long segmentThreshold = Long.MAX_VALUE;
+	private volatile int segmentCount = 1;
+
+	private final AtomicLong resumedCount = new AtomicLong();
+	private final AtomicLong resumedBytes = new AtomicLong();
+	private final AtomicLong restartedCount = new AtomicLong();
+	private final AtomicLong segmentedCount = new AtomicLong();
+
+	/**
+	 * @param maxConnections
+	 *            - connections in total, segments of all downloads included
+	 * @param maxPerHost
+	 *            - connections to one host
+	 * @param timeoutInMilliSec
+	 *            - connect and read time out
+	 */
+	public ResumableDownloader(int maxConnections, int maxPerHost, int timeoutInMilliSec) {
+
+		if (maxConnections < 1 || maxPerHost < 1) {
+			throw new IllegalArgumentException("Invalid connection limits total: " + maxConnections + " per host: " + maxPerHost);
+		}
+		connectionManager = new PoolingHttpClientConnectionManager(5, TimeUnit.MINUTES);
+		connectionManager.setMaxTotal(maxConnections);
+		connectionManager.setDefaultMaxPerRoute(maxPerHost);
+		RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(timeoutInMilliSec).setSocketTimeout(timeoutInMilliSec).setCookieSpec(CookieSpecs.STANDARD).build();
+		// ranges address the body as sent, so the body must not be decompressed on the way
+		httpClient = HttpClients.custom().setConnectionManager(connectionManager).setDefaultRequestConfig(requestConfig).disableContentCompression()
+				.evictIdleConnections(30, TimeUnit.SECONDS).build();
+	}
+
+	/**
+	 * @param maxAttempts
+	 *            - attempts per download, default 5
+	 * @param backoffInMilliSec
+	 *            - wait before the second attempt, doubled after each further one
+	 */
+	public void setRetries(int maxAttempts, long backoffInMilliSec) {
+
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.backoffInMilliSec = backoffInMilliSec;
+	}
+
+	/**
+	 * Splits files of at least the given size into parallel ranged segments, off by default
+	 *
+	 * @param segmentThreshold
+	 *            - bytes
+	 * @param segmentCount
+	 *            - segments per file, 1 switches segmenting off
+	 */
+	public void setSegments(long segmentThreshold, int segmentCount) {
+
+		this.segmentThreshold = segmentCount > 1 ? segmentThreshold : Long.MAX_VALUE;
+		this.segmentCount = Math.max(1, segmentCount);
+	}
+
+	/**
+	 * Downloads with the session of the driver, see {@link BulkBillFetcher#toCookieStore(WebDriver)}
+	 *
+	 * @param webDriver
+	 * @param url
+	 * @param file
+	 * @param contentType
+	 *            - expected content type
+	 * @return true if the file is complete
+	 */
+	public boolean download(WebDriver webDriver, String url, File file, String contentType) {
+
+		return download(BulkBillFetcher.toCookieStore(webDriver), null, url, file, contentType);
+	}
+
+	/**
+	 * Downloads the url into the file, continuing a transfer an earlier attempt or run left behind
+	 *
+	 * @param cookieStore
+	 *            - session cookies, null for none
+	 * @param userAgent
+	 *            - null for the HttpClient default
+	 * @param url
+	 * @param file
+	 * @param contentType
+	 *            - expected content type
+	 * @return true if the file is complete; false keeps the partial file unless it was found corrupted
+	 */
+	public boolean download(CookieStore cookieStore, String userAgent, String url, File file, String contentType) {
+
+		long start = metrics.start();
+		boolean complete = false;
+		try {
+			complete = transfer(cookieStore, userAgent, url, file, contentType);
+			return complete;
+		} finally {
+			metrics.record("resumableDownload", start, complete);
+		}
+	}
+
+	/**
+	 * @return downloads continued from a partial file
+	 */
+	public long getResumedCount() {
+
+		return resumedCount.get();
+	}
+
+	/**
+	 * @return bytes of partial files which weren't downloaded again
+	 */
+	public long getResumedBytes() {
+
+		return resumedBytes.get();
+	}
+
+	/**
+	 * @return partial files thrown away because the server sent the whole file again
+	 */
+	public long getRestartedCount() {
+
+		return restartedCount.get();
+	}
+
+	public long getSegmentedCount() {
+
+		return segmentedCount.get();
+	}
+
+	/**
+	 * Closes the pooled connections
+	 */
+	public void close() {
+
+		try {
+			httpClient.close();
+		} catch (IOException e) {
+			log.debug("HttpClient failed while closing: " + e.getMessage());
+		}
+		connectionManager.shutdown();
+	}
+
+	private boolean transfer(CookieStore cookieStore, String userAgent, String url, File file, String contentType) {
+
+		File partial = new File(file.getAbsolutePath() + PARTIAL_SUFFIX);
+		File sidecar = new File(file.getAbsolutePath() + SIDECAR_SUFFIX);
+		Transfer transfer = Transfer.load(sidecar, url, partial);
+		if (transfer == null) {
+			partial.delete();
+			transfer = new Transfer(url);
+		} else {
+			resumedCount.incrementAndGet();
+			resumedBytes.addAndGet(transfer.getDone());
+			log.debug("Resuming " + url + " at " + transfer.getDone() + " bytes");
+		}
+		HttpClientContext context = HttpClientContext.create();
+		if (cookieStore != null) {
+			context.setCookieStore(cookieStore);
+		}
+
+		boolean done = false;
+		boolean restarted = false;
+		for (int attempt = 1; attempt <= maxAttempts && !done; attempt++) {
+			if (attempt > 1 && !WaitManager.getInstance().waitFor(backoffInMilliSec << Math.min(attempt - 2, 10))) {
+				break;
+			}
+			try {
+				if (transfer.segments.isEmpty()) {
+					plan(context, userAgent, transfer);
+					save(transfer, sidecar);
+				}
+				Status status = transferSegments(context, userAgent, transfer, partial, sidecar, contentType);
+				save(transfer, sidecar);
+				if (status == Status.REJECTED) {
+					return false;
+				} else if (status == Status.RESTART) {
+					// ranges not honoured, one plain request from the start, without using up an attempt the first time
+					restartedCount.incrementAndGet();
+					transfer.reset();
+					transfer.segments.add(new Segment(0, -1, 0));
+					if (!restarted) {
+						restarted = true;
+						attempt--;
+					}
+					continue;
+				}
+				done = true;
+			} catch (IOException e) {
+				save(transfer, sidecar);
+				log.error("Attempt " + attempt + " of " + maxAttempts + " failed for " + url + " at " + transfer.getDone() + " bytes: " + e.getMessage());
+			}
+		}
+		if (!done) {
+			return false;
+		}
+
+		String reason = verify(transfer, partial, contentType);
+		if (reason != null) {
+			log.error("Downloaded " + url + " is corrupted, " + reason + ". Removing the partial file");
+			partial.delete();
+			sidecar.delete();
+			return false;
+		}
+		try {
+			SeleniumUtils.getInstance().moveAtomically(partial, file);
+		} catch (IOException e) {
+			log.error("Failed moving " + partial.getAbsolutePath() + " to " + file.getAbsolutePath());
+			return false;
+		}
+		sidecar.delete();
+		log.debug("Stored " + file.length() + " bytes in " + file.getAbsolutePath());
+		return true;
+	}
+
+	/*
+	 * one open segment, or equal segments when the server tells the length and accepts ranges
+	 */
+	private void plan(HttpClientContext context, String userAgent, Transfer transfer) {
+
+		if (segmentThreshold != Long.MAX_VALUE) {
+			HttpHead head = new HttpHead(transfer.url);
+			if (userAgent != null) {
+				head.setHeader("User-Agent", userAgent);
+			}
+			CloseableHttpResponse response = null;
+			try {
+				response = httpClient.execute(head, context);
+				Header acceptRanges = response.getFirstHeader("Accept-Ranges");
+				if (response.getStatusLine().getStatusCode() == 200 && acceptRanges != null && acceptRanges.getValue().contains("bytes")) {
+					transfer.length = lengthOf(response);
+					transfer.validators(response);
+				}
+			} catch (IOException e) {
+				log.debug("HEAD failed for " + transfer.url + ", not segmenting: " + e.getMessage());
+			} finally {
+				closeQuietly(response);
+			}
+		}
+		int count = segmentCount;
+		if (transfer.length >= segmentThreshold && count > 1) {
+			long size = (transfer.length + count - 1) / count;
+			for (long start = 0; start < transfer.length; start += size) {
+				transfer.segments.add(new Segment(start, Math.min(start + size, transfer.length) - 1, start));
+			}
+			segmentedCount.incrementAndGet();
+			log.debug("Downloading " + transfer.url + " in " + transfer.segments.size() + " segments of " + size + " bytes");
+		} else {
+			transfer.segments.add(new Segment(0, -1, 0));
+		}
+	}
+
+	private Status transferSegments(final HttpClientContext context, final String userAgent, final Transfer transfer, File partial, final File sidecar, final String contentType)
+			throws IOException {
+
+		final FileChannel channel = FileChannel.open(partial.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try {
+			List<Segment> pending = new ArrayList<Segment>();
+			for (Segment segment : transfer.segments) {
+				if (!segment.isDone()) {
+					pending.add(segment);
+				}
+			}
+			if (pending.size() == 1) {
+				return transferSegment(context, userAgent, transfer, pending.get(0), channel, sidecar, contentType);
+			}
+
+			ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, pending.size()));
+			try {
+				List<Future<Status>> futures = new ArrayList<Future<Status>>();
+				for (final Segment segment : pending) {
+					futures.add(executor.submit(new Callable<Status>() {
+
+						@Override
+						public Status call() throws IOException {
+
+							return transferSegment(context, userAgent, transfer, segment, channel, sidecar, contentType);
+						}
+					}));
+				}
+				Status status = Status.DONE;
+				IOException failure = null;
+				for (Future<Status> future : futures) {
+					try {
+						Status segmentStatus = future.get();
+						if (segmentStatus.compareTo(status) > 0) {
+							status = segmentStatus;
+						}
+					} catch (ExecutionException e) {
+						failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+					}
+				}
+				if (failure != null && status == Status.DONE) {
+					throw failure;
+				}
+				return status;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while downloading " + transfer.url);
+			} finally {
+				executor.shutdownNow();
+			}
+		} finally {
+			if (transfer.getDone() == 0 || transfer.segments.size() == 1) {
+				// a restarted single stream may have left a longer file behind
+				channel.truncate(transfer.getDone());
+			}
+			channel.force(false);
+			channel.close();
+		}
+	}
+
+	private Status transferSegment(HttpClientContext context, String userAgent, Transfer transfer, Segment segment, FileChannel channel, File sidecar, String contentType)
+			throws IOException {
+
+		HttpGet get = new HttpGet(transfer.url);
+		if (userAgent != null) {
+			get.setHeader("User-Agent", userAgent);
+		}
+		long position = segment.position.get();
+		boolean ranged = position > 0 || segment.end != -1;
+		if (ranged) {
+			get.setHeader("Range", "bytes=" + position + "-" + (segment.end == -1 ? "" : String.valueOf(segment.end)));
+			String validator = transfer.getIfRange();
+			if (validator != null) {
+				get.setHeader("If-Range", validator);
+			}
+		}
+
+		CloseableHttpResponse response = httpClient.execute(get, context);
+		try {
+			int statusCode = response.getStatusLine().getStatusCode();
+			HttpEntity entity = response.getEntity();
+			if (statusCode == 206) {
+				Header contentRange = response.getFirstHeader("Content-Range");
+				Matcher matcher = contentRange == null ? null : CONTENT_RANGE.matcher(contentRange.getValue());
+				if (matcher == null || !matcher.find() || Long.parseLong(matcher.group(1)) != position) {
+					EntityUtils.consumeQuietly(entity);
+					throw new IOException("Unexpected Content-Range " + (contentRange == null ? null : contentRange.getValue()) + " for offset " + position);
+				}
+				if (transfer.length == -1 && !"*".equals(matcher.group(3))) {
+					transfer.length = Long.parseLong(matcher.group(3));
+				}
+			} else if (statusCode == 200) {
+				if (transfer.segments.size() > 1 || segment.start != 0) {
+					EntityUtils.consumeQuietly(entity);
+					return Status.RESTART;
+				}
+				if (position > 0) {
+					log.debug("Server sent " + transfer.url + " from the start, " + position + " bytes downloaded again");
+					restartedCount.incrementAndGet();
+					segment.position.set(0);
+					channel.truncate(0);
+				}
+				transfer.validators(response);
+				transfer.length = lengthOf(response);
+			} else if (statusCode == 416) {
+				EntityUtils.consumeQuietly(entity);
+				if (transfer.length != -1 && segment.end == -1 && position == transfer.length) {
+					return Status.DONE;
+				}
+				return Status.RESTART;
+			} else if (statusCode >= 500 || statusCode == 408 || statusCode == 429) {
+				EntityUtils.consumeQuietly(entity);
+				throw new IOException("status code " + statusCode);
+			} else {
+				EntityUtils.consumeQuietly(entity);
+				log.error("Failed with status code: " + statusCode + ". Stopped download of " + transfer.url);
+				return Status.REJECTED;
+			}
+			if (entity == null) {
+				throw new IOException("No body for " + transfer.url);
+			}
+
+			InputStream in = entity.getContent();
+			try {
+				return copy(in, entity, transfer, segment, channel, sidecar, contentType);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			get.abort();
+			throw e;
+		} finally {
+			closeQuietly(response);
+		}
+	}
+
+	private Status copy(InputStream in, HttpEntity entity, Transfer transfer, Segment segment, FileChannel channel, File sidecar, String contentType) throws IOException {
+
+		ReadableByteChannel source = Channels.newChannel(in);
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		if (segment.start == 0 && segment.position.get() == 0) {
+			// the head decides whether this is the expected file at all, e.g. not a login page
+			while (buffer.position() < StreamingDownloader.SNIFF_LENGTH && source.read(buffer) != -1) {
+				// fill the head
+			}
+			Header type = entity.getContentType();
+			StreamingDownloader.SniffedType sniffed = StreamingDownloader.sniff(buffer.array(), buffer.position());
+			if (!streamingDownloader.isExpected(type == null ? null : type.getValue(), contentType, sniffed)) {
+				return Status.REJECTED;
+			}
+			buffer.flip();
+			write(buffer, segment, channel);
+			buffer.clear();
+		}
+
+		long saved = segment.position.get();
+		while (source.read(buffer) != -1) {
+			buffer.flip();
+			write(buffer, segment, channel);
+			buffer.clear();
+			if (segment.position.get() - saved >= SIDECAR_INTERVAL) {
+				channel.force(false);
+				save(transfer, sidecar);
+				saved = segment.position.get();
+			}
+		}
+
+		long expectedEnd = segment.end != -1 ? segment.end + 1 : transfer.length;
+		if (expectedEnd != -1 && segment.position.get() != expectedEnd) {
+			throw new IOException("Body ended at " + segment.position.get() + " of " + expectedEnd + " bytes");
+		}
+		segment.done = true;
+		return Status.DONE;
+	}
+
+	private void write(ByteBuffer buffer, Segment segment, FileChannel channel) throws IOException {
+
+		while (buffer.hasRemaining()) {
+			segment.position.addAndGet(channel.write(buffer, segment.position.get()));
+		}
+	}
+
+	private String verify(Transfer transfer, File partial, String contentType) {
+
+		if (transfer.length != -1 && partial.length() != transfer.length) {
+			return "size " + partial.length() + " of " + transfer.length + " bytes";
+		}
+		if (contentType.contains("pdf")) {
+			return pdfVerifier.verify(partial);
+		}
+		return null;
+	}
+
+	/*
+	 * replaced atomically, a crash leaves the previous offsets which are behind the written bytes, never ahead
+	 */
+	private void save(Transfer transfer, File sidecar) {
+
+		try {
+			transfer.save(sidecar);
+		} catch (IOException e) {
+			log.error("Failed saving " + sidecar.getAbsolutePath() + ": " + e.getMessage());
+		}
+	}
+
+	/*
+	 * -1 when missing or invalid
+	 */
+	private static long lengthOf(HttpResponse response) {
+
+		Header length = response.getFirstHeader("Content-Length");
+		try {
+			return length == null ? -1 : Long.parseLong(length.getValue().trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private void closeQuietly(CloseableHttpResponse response) {
+
+		if (response != null) {
+			try {
+				response.close();
+			} catch (IOException e) {
+				log.debug("Failed closing response: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * State of one download, as kept in the sidecar file
+	 */
+	private static final class Transfer {
+
+		private final String url;
+		private String etag;
+		private String lastModified;
+		private long length = -1;
+		private final List<Segment> segments = new ArrayList<Segment>();
+
+		private Transfer(String url) {
+
+			this.url = url;
+		}
+
+		/*
+		 * null if there is nothing to resume for the url
+		 */
+		private static Transfer load(File sidecar, String url, File partial) {
+
+			if (!sidecar.exists() || !partial.exists()) {
+				return null;
+			}
+			Properties properties = new Properties();
+			try {
+				InputStream in = Files.newInputStream(sidecar.toPath());
+				try {
+					properties.load(in);
+				} finally {
+					in.close();
+				}
+				if (!url.equals(properties.getProperty("url"))) {
+					return null;
+				}
+				Transfer transfer = new Transfer(url);
+				transfer.etag = properties.getProperty("etag");
+				transfer.lastModified = properties.getProperty("lastModified");
+				transfer.length = Long.parseLong(properties.getProperty("length", "-1"));
+				int count = Integer.parseInt(properties.getProperty("segments", "0"));
+				for (int i = 0; i < count; i++) {
+					String[] values = properties.getProperty("segment." + i).split(",");
+					transfer.segments.add(new Segment(Long.parseLong(values[0]), Long.parseLong(values[1]), Long.parseLong(values[2])));
+				}
+				if (count == 1 && transfer.segments.get(0).end == -1) {
+					// a single stream can't be ahead of the file
+					Segment segment = transfer.segments.get(0);
+					segment.position.set(Math.min(segment.position.get(), partial.length()));
+				}
+				return transfer;
+			} catch (IOException e) {
+				return null;
+			} catch (RuntimeException e) {
+				return null;
+			}
+		}
+
+		private synchronized void save(File sidecar) throws IOException {
+
+			Properties properties = new Properties();
+			properties.setProperty("url", url);
+			if (etag != null) {
+				properties.setProperty("etag", etag);
+			}
+			if (lastModified != null) {
+				properties.setProperty("lastModified", lastModified);
+			}
+			properties.setProperty("length", String.valueOf(length));
+			properties.setProperty("segments", String.valueOf(segments.size()));
+			for (int i = 0; i < segments.size(); i++) {
+				Segment segment = segments.get(i);
+				properties.setProperty("segment." + i, segment.start + "," + segment.end + "," + segment.position.get());
+			}
+			File temp = SeleniumUtils.getInstance().createTempFileFor(sidecar, ".temp");
+			try {
+				OutputStream out = Files.newOutputStream(temp.toPath());
+				try {
+					properties.store(out, "partial download of ResumableDownloader");
+				} finally {
+					out.close();
+				}
+				SeleniumUtils.getInstance().moveAtomically(temp, sidecar);
+			} finally {
+				temp.delete();
+			}
+		}
+
+		private void validators(HttpResponse response) {
+
+			Header etagHeader = response.getFirstHeader("ETag");
+			Header lastModifiedHeader = response.getFirstHeader("Last-Modified");
+			etag = etagHeader == null ? null : etagHeader.getValue();
+			lastModified = lastModifiedHeader == null ? null : lastModifiedHeader.getValue();
+		}
+
+		/*
+		 * a weak ETag can't be used with If-Range
+		 */
+		private String getIfRange() {
+
+			if (etag != null && !etag.startsWith("W/")) {
+				return etag;
+			}
+			return lastModified;
+		}
+
+		private long getDone() {
+
+			long done = 0;
+			for (Segment segment : segments) {
+				done += segment.position.get() - segment.start;
+			}
+			return done;
+		}
+
+		private void reset() {
+
+			segments.clear();
+			etag = null;
+			lastModified = null;
+			length = -1;
+		}
+	}
+
+	/**
+	 * Byte range of a download, end inclusive, -1 for up to the end of the body
+	 */
+	private static final class Segment {
+
+		private final long start;
+		private final long end;
+		private final AtomicLong position;
+		private volatile boolean done;
+
+		private Segment(long start, long end, long position) {
+
+			this.start = start;
+			this.end = end;
+			this.position = new AtomicLong(position);
+			this.done = end != -1 && position > end;
+		}
+
+		private boolean isDone() {
+
+			return done;
+		}
+	}
+}
@@ -0,0 +1,505 @@
+package selenium;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bill counts of a run per site, credential and account, updated by all sessions at once.
+ * 1. counters -> one LongAdder per count and scope, so concurrent sessions don't contend on a lock or a shared counter.
+ * 2. bills -> the latest bills are kept in a fixed size ring, older ones are counted as dropped.
+ * 3. snapshot -> can be taken while the run goes on, or written periodically as JSON or CSV for a dashboard.
+ * Site counts add up the account and bill records of the site; credential counts are the ones given by the credential
+ * summaries. The site is the one of the recording thread, see {@link OperationMetrics#setSite(String)}.
+ *
+ * @author naveenc
+ *
+ */
+public class RunStatistics {
+
+	private static final RunStatistics onlyOne = new RunStatistics();
+	private static final int DEFAULT_BILL_CAPACITY = 10000;
+
+	/**
+	 * Counts kept for every scope
+	 */
+	public enum Count {
+		ACCOUNTS, AVAILABLE, SKIPPED, NEW, DOWNLOADED, FAILED
+	}
+
+	/**
+	 * What happened to a bill
+	 */
+	public enum Outcome {
+		SKIPPED, DOWNLOADED, FAILED
+	}
+
+	/**
+	 * Report file format
+	 */
+	public enum Format {
+		JSON, CSV
+	}
+
+	private final Logger log = LoggerFactory.getLogger(RunStatistics.class);
+	private final ConcurrentMap<String, Counters> sites = new ConcurrentHashMap<String, Counters>();
+	private final ConcurrentMap<String, Counters> credentials = new ConcurrentHashMap<String, Counters>();
+	private final ConcurrentMap<String, Counters> accounts = new ConcurrentHashMap<String, Counters>();
+	private volatile AtomicReferenceArray<Bill> bills = new AtomicReferenceArray<Bill>(DEFAULT_BILL_CAPACITY);
+	private final AtomicLong billSequence = new AtomicLong();
+	private volatile long startTime = System.currentTimeMillis();
+
+	public static RunStatistics getInstance() {
+
+		return onlyOne;
+	}
+
+	// singleton class
+	private RunStatistics() {
+
+	}
+
+	/**
+	 * Bills kept for the report, the latest ones win; clears the kept bills
+	 *
+	 * @param capacity
+	 */
+	public void setBillCapacity(int capacity) {
+
+		bills = new AtomicReferenceArray<Bill>(Math.max(1, capacity));
+		billSequence.set(0);
+	}
+
+	/**
+	 * Starts a new run, all counts and bills are cleared
+	 */
+	public void reset() {
+
+		sites.clear();
+		credentials.clear();
+		accounts.clear();
+		bills = new AtomicReferenceArray<Bill>(bills.length());
+		billSequence.set(0);
+		startTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * @param account
+	 * @param available
+	 *            - bills the site shows for the account
+	 */
+	public void recordAccount(String account, int available) {
+
+		String site = OperationMetrics.getSite();
+		Counters siteCounters = counters(sites, site);
+		Counters accountCounters = counters(accounts, site + "\t" + account);
+		if (accountCounters.counted.compareAndSet(false, true)) {
+			accountCounters.add(Count.ACCOUNTS, 1);
+			siteCounters.add(Count.ACCOUNTS, 1);
+		}
+		accountCounters.add(Count.AVAILABLE, available);
+		siteCounters.add(Count.AVAILABLE, available);
+	}
+
+	/**
+	 * @param account
+	 * @param bill
+	 *            - file or name of the bill
+	 * @param outcome
+	 */
+	public void recordBill(String account, String bill, Outcome outcome) {
+
+		String site = OperationMetrics.getSite();
+		Count count = outcome == Outcome.SKIPPED ? Count.SKIPPED : outcome == Outcome.DOWNLOADED ? Count.DOWNLOADED : Count.FAILED;
+		for (Counters counters : new Counters[] { counters(sites, site), counters(accounts, site + "\t" + account) }) {
+			counters.add(count, 1);
+			if (outcome != Outcome.SKIPPED) {
+				counters.add(Count.NEW, 1);
+			}
+		}
+		AtomicReferenceArray<Bill> ring = bills;
+		long sequence = billSequence.getAndIncrement();
+		ring.set((int) (sequence % ring.length()), new Bill(System.currentTimeMillis(), site, account, bill, outcome));
+	}
+
+	/**
+	 * @param credential
+	 *            - user name
+	 * @param accountCount
+	 * @param available
+	 * @param newBills
+	 * @param skipped
+	 * @param downloaded
+	 * @param failed
+	 */
+	public void recordCredential(String credential, int accountCount, int available, int newBills, int skipped, int downloaded, int failed) {
+
+		Counters counters = counters(credentials, OperationMetrics.getSite() + "\t" + credential);
+		counters.add(Count.ACCOUNTS, accountCount);
+		counters.add(Count.AVAILABLE, available);
+		counters.add(Count.NEW, newBills);
+		counters.add(Count.SKIPPED, skipped);
+		counters.add(Count.DOWNLOADED, downloaded);
+		counters.add(Count.FAILED, failed);
+	}
+
+	/**
+	 * @return counts and kept bills at this moment; counts recorded meanwhile may be partly included
+	 */
+	public Snapshot getSnapshot() {
+
+		List<ScopeSnapshot> scopes = new ArrayList<ScopeSnapshot>();
+		addScopes(scopes, "site", sites);
+		addScopes(scopes, "credential", credentials);
+		addScopes(scopes, "account", accounts);
+
+		AtomicReferenceArray<Bill> ring = bills;
+		long sequence = billSequence.get();
+		List<Bill> kept = new ArrayList<Bill>();
+		for (long i = Math.max(0, sequence - ring.length()); i < sequence; i++) {
+			Bill bill = ring.get((int) (i % ring.length()));
+			if (bill != null) {
+				kept.add(bill);
+			}
+		}
+		return new Snapshot(startTime, System.currentTimeMillis(), scopes, kept, Math.max(0, sequence - ring.length()));
+	}
+
+	/**
+	 * Writes a snapshot to the file, replacing it atomically
+	 *
+	 * @param file
+	 * @param format
+	 * @throws IOException
+	 */
+	public void writeReport(File file, Format format) throws IOException {
+
+		Snapshot snapshot = getSnapshot();
+		File temp = SeleniumUtils.getInstance().createTempFileFor(file, ".temp");
+		try {
+			Writer writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8);
+			try {
+				if (format == Format.JSON) {
+					writeJson(writer, snapshot);
+				} else {
+					writeCsv(writer, snapshot);
+				}
+			} finally {
+				writer.close();
+			}
+			SeleniumUtils.getInstance().moveAtomically(temp, file);
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Writes the report at a fixed rate on the WaitManager scheduler, so progress can be followed during the run
+	 *
+	 * @param file
+	 * @param format
+	 * @param periodInMilliSec
+	 * @return cancel it to stop the export
+	 */
+	public ScheduledFuture<?> exportPeriodically(final File file, final Format format, long periodInMilliSec) {
+
+		return WaitManager.getInstance().scheduleAtFixedRate(new Runnable() {
+
+			@Override
+			public void run() {
+
+				try {
+					writeReport(file, format);
+				} catch (IOException e) {
+					log.error("Failed writing run statistics to " + file.getAbsolutePath() + ": " + e.getMessage());
+				}
+			}
+		}, periodInMilliSec);
+	}
+
+	private static Counters counters(ConcurrentMap<String, Counters> scope, String key) {
+
+		Counters counters = scope.get(key);
+		if (counters == null) {
+			Counters created = new Counters();
+			counters = scope.putIfAbsent(key, created);
+			if (counters == null) {
+				counters = created;
+			}
+		}
+		return counters;
+	}
+
+	private static void addScopes(List<ScopeSnapshot> scopes, String scope, Map<String, Counters> counters) {
+
+		List<ScopeSnapshot> added = new ArrayList<ScopeSnapshot>();
+		for (Map.Entry<String, Counters> entry : counters.entrySet()) {
+			String key = entry.getKey();
+			int tab = key.indexOf('\t');
+			String site = tab == -1 ? key : key.substring(0, tab);
+			String name = tab == -1 ? key : key.substring(tab + 1);
+			long[] values = new long[Count.values().length];
+			for (Count count : Count.values()) {
+				values[count.ordinal()] = entry.getValue().get(count);
+			}
+			added.add(new ScopeSnapshot(scope, site, name, values));
+		}
+		Collections.sort(added, new Comparator<ScopeSnapshot>() {
+
+			@Override
+			public int compare(ScopeSnapshot first, ScopeSnapshot second) {
+
+				int bySite = first.site.compareTo(second.site);
+				return bySite != 0 ? bySite : first.name.compareTo(second.name);
+			}
+		});
+		scopes.addAll(added);
+	}
+
+	private void writeJson(Writer writer, Snapshot snapshot) throws IOException {
+
+		writer.write("{\"startTime\":" + snapshot.startTime + ",\"time\":" + snapshot.time + ",\"droppedBills\":" + snapshot.droppedBills + ",\n\"scopes\":[");
+		for (int i = 0; i < snapshot.scopes.size(); i++) {
+			ScopeSnapshot scope = snapshot.scopes.get(i);
+			writer.write(i == 0 ? "\n" : ",\n");
+			writer.write("{\"scope\":\"" + scope.scope + "\",\"site\":\"" + escape(scope.site) + "\",\"name\":\"" + escape(scope.name) + "\"");
+			for (Count count : Count.values()) {
+				writer.write(",\"" + count.name().toLowerCase() + "\":" + scope.get(count));
+			}
+			writer.write("}");
+		}
+		writer.write("\n],\n\"bills\":[");
+		for (int i = 0; i < snapshot.bills.size(); i++) {
+			Bill bill = snapshot.bills.get(i);
+			writer.write(i == 0 ? "\n" : ",\n");
+			writer.write("{\"time\":" + bill.time + ",\"site\":\"" + escape(bill.site) + "\",\"account\":\"" + escape(bill.account) + "\",\"bill\":\"" + escape(bill.bill) + "\",\"outcome\":\""
+					+ bill.outcome + "\"}");
+		}
+		writer.write("\n]}\n");
+	}
+
+	/*
+	 * one table, scope rows first, then one row per kept bill
+	 */
+	private void writeCsv(Writer writer, Snapshot snapshot) throws IOException {
+
+		writer.write("scope,site,name,bill,outcome");
+		for (Count count : Count.values()) {
+			writer.write("," + count.name().toLowerCase());
+		}
+		writer.write("\n");
+		for (ScopeSnapshot scope : snapshot.scopes) {
+			writer.write(scope.scope + "," + csv(scope.site) + "," + csv(scope.name) + ",,");
+			for (Count count : Count.values()) {
+				writer.write("," + scope.get(count));
+			}
+			writer.write("\n");
+		}
+		for (Bill bill : snapshot.bills) {
+			writer.write("bill," + csv(bill.site) + "," + csv(bill.account) + "," + csv(bill.bill) + "," + bill.outcome);
+			for (int i = 0; i < Count.values().length; i++) {
+				writer.write(",");
+			}
+			writer.write("\n");
+		}
+	}
+
+	private static String escape(String value) {
+
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static String csv(String value) {
+
+		if (value.indexOf(',') == -1 && value.indexOf('"') == -1 && value.indexOf('\n') == -1) {
+			return value;
+		}
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+	private static final class Counters {
+
+		private final LongAdder[] adders = new LongAdder[Count.values().length];
+		private final AtomicBoolean counted = new AtomicBoolean();
+
+		private Counters() {
+
+			for (int i = 0; i < adders.length; i++) {
+				adders[i] = new LongAdder();
+			}
+		}
+
+		private void add(Count count, long value) {
+
+			adders[count.ordinal()].add(value);
+		}
+
+		private long get(Count count) {
+
+			return adders[count.ordinal()].sum();
+		}
+	}
+
+	/**
+	 * A kept bill
+	 */
+	public static final class Bill {
+
+		private final long time;
+		private final String site;
+		private final String account;
+		private final String bill;
+		private final Outcome outcome;
+
+		private Bill(long time, String site, String account, String bill, Outcome outcome) {
+
+			this.time = time;
+			this.site = site;
+			this.account = account;
+			this.bill = bill;
+			this.outcome = outcome;
+		}
+
+		public long getTime() {
+
+			return time;
+		}
+
+		public String getSite() {
+
+			return site;
+		}
+
+		public String getAccount() {
+
+			return account;
+		}
+
+		public String getBill() {
+
+			return bill;
+		}
+
+		public Outcome getOutcome() {
+
+			return outcome;
+		}
+	}
+
+	/**
+	 * Counts of one site, credential or account
+	 */
+	public static final class ScopeSnapshot {
+
+		private final String scope;
+		private final String site;
+		private final String name;
+		private final long[] values;
+
+		private ScopeSnapshot(String scope, String site, String name, long[] values) {
+
+			this.scope = scope;
+			this.site = site;
+			this.name = name;
+			this.values = values;
+		}
+
+		/**
+		 * @return site, credential or account
+		 */
+		public String getScope() {
+
+			return scope;
+		}
+
+		public String getSite() {
+
+			return site;
+		}
+
+		/**
+		 * @return site, user name or account number
+		 */
+		public String getName() {
+
+			return name;
+		}
+
+		public long get(Count count) {
+
+			return values[count.ordinal()];
+		}
+	}
+
+	/**
+	 * Statistics of the run at one moment
+	 */
+	public static final class Snapshot {
+
+		private final long startTime;
+		private final long time;
+		private final List<ScopeSnapshot> scopes;
+		private final List<Bill> bills;
+		private final long droppedBills;
+
+		private Snapshot(long startTime, long time, List<ScopeSnapshot> scopes, List<Bill> bills, long droppedBills) {
+
+			this.startTime = startTime;
+			this.time = time;
+			this.scopes = Collections.unmodifiableList(scopes);
+			this.bills = Collections.unmodifiableList(bills);
+			this.droppedBills = droppedBills;
+		}
+
+		public long getStartTime() {
+
+			return startTime;
+		}
+
+		public long getTime() {
+
+			return time;
+		}
+
+		/**
+		 * @return sites, then credentials, then accounts, each sorted by site and name
+		 */
+		public List<ScopeSnapshot> getScopes() {
+
+			return scopes;
+		}
+
+		/**
+		 * @return kept bills, oldest first
+		 */
+		public List<Bill> getBills() {
+
+			return bills;
+		}
+
+		/**
+		 * @return bills recorded but no longer kept
+		 */
+		public long getDroppedBills() {
+
+			return droppedBills;
+		}
+	}
+}
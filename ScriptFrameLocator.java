@@ -0,0 +1,109 @@
+package selenium;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds the frame containing an xpath with one injected script instead of switching frame by frame. The script walks all
+ * same-origin frames to any depth and returns the index path (see {@link FrameLocationCache}) of the first match.
+ * Cross-origin frames can't be read from the parent, so the driver switches into them and the script runs again there.
+ *
+ * @author naveenc
+ *
+ */
+public class ScriptFrameLocator {
+
+	/*
+	 * arguments: xpath, frame xpath. Returns { found: [index path] or null, crossOrigin: [[index path], ...] }
+	 */
+	private static final String SEARCH_SCRIPT = "var xpath = arguments[0], frameXpath = arguments[1], crossOrigin = [];"
+			+ "function search(doc, path) {"
+			+ "  if (doc.evaluate(xpath, doc, null, XPathResult.FIRST_ORDERED_NODE_TYPE, null).singleNodeValue != null) { return path; }"
+			+ "  var frames = doc.evaluate(frameXpath, doc, null, XPathResult.ORDERED_NODE_SNAPSHOT_TYPE, null);"
+			+ "  for (var i = 0; i < frames.snapshotLength; i++) {"
+			+ "    var frame = frames.snapshotItem(i), child = null;"
+			+ "    if (frame.tagName.toLowerCase() == 'frameset') { continue; }"
+			+ "    try { child = frame.contentDocument; } catch (e) { child = null; }"
+			+ "    if (child == null) { crossOrigin.push(path.concat([i])); continue; }"
+			+ "    var found = search(child, path.concat([i]));"
+			+ "    if (found != null) { return found; }"
+			+ "  }"
+			+ "  return null;"
+			+ "}"
+			+ "return { found: search(document, []), crossOrigin: crossOrigin };";
+
+	private final Logger log = LoggerFactory.getLogger(ScriptFrameLocator.class);
+
+	/**
+	 * Searches the xpath from the default content through all frames
+	 *
+	 * @param webDriver
+	 * @param xpath
+	 * @return frame path of the xpath, null if not found or the driver can't run scripts. Driver is left in the default content
+	 */
+	public List<Integer> locate(final WebDriver webDriver, String xpath) {
+
+		if (!(webDriver instanceof JavascriptExecutor)) {
+			return null;
+		}
+		webDriver.switchTo().defaultContent();
+		try {
+			return locate(webDriver, xpath, new ArrayList<Integer>());
+		} catch (WebDriverException e) {
+			log.debug("Frame search script failed for " + xpath + ": " + e.getMessage());
+			return null;
+		} finally {
+			webDriver.switchTo().defaultContent();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<Integer> locate(final WebDriver webDriver, String xpath, List<Integer> prefix) {
+
+		Object result = ((JavascriptExecutor) webDriver).executeScript(SEARCH_SCRIPT, xpath, FrameLocationCache.FRAME_XPATH);
+		if (!(result instanceof Map)) {
+			return null;
+		}
+		Map<String, Object> searchResult = (Map<String, Object>) result;
+
+		Object found = searchResult.get("found");
+		if (found instanceof List) {
+			List<Integer> path = concat(prefix, (List<Object>) found);
+			log.debug(xpath + " found by script in frame path " + path);
+			return path;
+		}
+
+		// same-origin frames don't have it, search inside each cross-origin frame from the driver side
+		Object crossOrigin = searchResult.get("crossOrigin");
+		if (crossOrigin instanceof List) {
+			for (Object framePath : (List<Object>) crossOrigin) {
+				List<Integer> path = concat(prefix, (List<Object>) framePath);
+				if (!FrameLocationCache.switchToPath(webDriver, path)) {
+					continue;
+				}
+				log.debug("Searching " + xpath + " inside cross-origin frame " + path);
+				List<Integer> inner = locate(webDriver, xpath, path);
+				if (inner != null) {
+					return inner;
+				}
+			}
+		}
+		return null;
+	}
+
+	private static List<Integer> concat(List<Integer> prefix, List<Object> indexes) {
+
+		List<Integer> path = new ArrayList<Integer>(prefix);
+		for (Object index : indexes) {
+			path.add(((Number) index).intValue());
+		}
+		return path;
+	}
+}
@@ -1,24 +1,18 @@
 package selenium;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.FilenameFilter;
+import java.io.FileFilter;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.io.RandomAccessFile;
 import java.net.MalformedURLException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
 import org.openqa.selenium.By;
 import org.openqa.selenium.Cookie;
 import org.openqa.selenium.JavascriptExecutor;
@@ -33,7 +27,6 @@ import org.slf4j.LoggerFactory;
 
 import com.gargoylesoftware.htmlunit.CookieManager;
 import com.gargoylesoftware.htmlunit.FailingHttpStatusCodeException;
-import com.gargoylesoftware.htmlunit.Page;
 import com.gargoylesoftware.htmlunit.WebClient;
 import com.gargoylesoftware.htmlunit.html.HtmlElement;
 import com.gargoylesoftware.htmlunit.html.HtmlPage;
@@ -48,6 +41,26 @@ public class SeleniumUtils {
 
 	private static final SeleniumUtils onlyOne = new SeleniumUtils();
 	private final Logger log = LoggerFactory.getLogger(SeleniumUtils.class);
+	private final FrameLocationCache frameLocationCache = new FrameLocationCache(500);
+	private final ScriptFrameLocator scriptFrameLocator = new ScriptFrameLocator();
+	private final LocatorEvaluator locatorEvaluator = new LocatorEvaluator();
+	private final StreamingDownloader streamingDownloader = new StreamingDownloader();
+	private final PdfVerifier pdfVerifier = new PdfVerifier(1024, false);
+	private final OperationMetrics metrics = OperationMetrics.getInstance();
+	private volatile FrameSearchMode frameSearchMode = FrameSearchMode.SCRIPT;
+	private volatile boolean requestFiltering = true;
+	private volatile HttpDiskCache httpCache;
+	private volatile File homePageTopIndex;
+	private volatile Workspace workspace;
+
+	/**
+	 * How findFrameForGivenXpath searches the frames.
+	 * SCRIPT -> one injected script over all same-origin frames, driver-side search when it finds nothing.
+	 * DRIVER -> switches frame by frame up to three levels.
+	 */
+	public enum FrameSearchMode {
+		DRIVER, SCRIPT
+	}
 
 	public static SeleniumUtils getInstance() {
 
@@ -60,7 +73,8 @@ public class SeleniumUtils {
 	}
 	
 	/**
-	 * It will be used for logging the failure and success message in particular file
+	 * It will be used for logging the failure and success message in particular file. The line is queued and written by
+	 * AsyncFileAppender, call flushLogs() before reading the file
 	 * 
 	 * @param file
 	 * @param append
@@ -68,36 +82,68 @@ public class SeleniumUtils {
 	 */
 	public void logToFile( File file, boolean append, String message ) {
 
-		PrintWriter pwLog = null;
-		try {
-			pwLog = new PrintWriter(new BufferedWriter(new FileWriter(file, append)));
-			pwLog.println(message);
-		} catch (IOException e) {
-			log.error("(!)Failed while writing to file "+file.getAbsolutePath());
+		AsyncFileAppender.getInstance().append(file, append, message);
+	}
+
+	/**
+	 * Writes all lines queued by logToFile
+	 */
+	public void flushLogs() {
+
+		if (!AsyncFileAppender.getInstance().flush()) {
+			log.error("(!)Failed while flushing log files");
 		}
-		
-		finally {
-			IOUtils.closeQuietly(pwLog);
+	}
+	
+	/**
+	 * Moves the file to the target in one step, so readers never see a partly written target. Replaces an existing target.
+	 * Falls back to a plain move where the file system can't move atomically
+	 * 
+	 * @param source
+	 * @param target
+	 * @throws IOException
+	 */
+	public void moveAtomically(File source, File target) throws IOException {
+
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
 		}
 	}
 	
 	/**
-	 * Checks whether the given directory is present or not. If not it will creates the directory and returns the status
+	 * Creates a hidden temp file next to the target, to be moved onto it with moveAtomically. The fixed prefix keeps
+	 * File.createTempFile from rejecting target names shorter than 3 characters
+	 * 
+	 * @param target
+	 * @param suffix
+	 *            - e.g. ".temp"
+	 * @return new empty temp file in the directory of the target
+	 * @throws IOException
+	 */
+	public File createTempFileFor(File target, String suffix) throws IOException {
+
+		return File.createTempFile("." + target.getName() + "-", suffix, target.getAbsoluteFile().getParentFile());
+	}
+	
+	/**
+	 * Checks whether the given directory is present or not. If not it will creates the directory and returns the status.
+	 * A file in the way is left alone, the directory can't be created then
 	 * 
 	 * @param rootDir
-	 * @return
+	 * @return true if the directory exists
 	 */
 	public boolean createDir(File directory) {
 		
-		boolean status = false;
-		if (!directory.isDirectory() && directory.exists()) {
-			directory.delete();
-			status = directory.mkdirs();
-		} else if( !directory.exists() ) {
-			status = directory.mkdirs();
-		} else {
-			log.debug(directory + "is already exists");
+		long start = metrics.start();
+		if (directory.exists() && !directory.isDirectory()) {
+			log.error(directory + " is a file, not creating the directory");
+		} else if( !directory.exists() && !directory.mkdirs() && !directory.isDirectory() ) {
+			log.error("Failed creating " + directory);
 		}
+		boolean status = directory.isDirectory();
+		metrics.record("createDir", start, status);
 		return status;
 	}
 	
@@ -115,32 +161,160 @@ public class SeleniumUtils {
 	 */
 	
 	public boolean getLogin(WebDriver webDriver, String SITE_URL,String username, String password, String usernameXpath, String passwordXpath, String SubmitXpath, String logoutXpath, boolean isFrame) {
+
+		OperationMetrics.Timing timing = metrics.time("getLogin");
+		try {
+			log.info("Opening log in url: " + SITE_URL);
+			webDriver.get(SITE_URL);
+			log.info("Wating for login page to get loaded");
+			waitForXPaths(webDriver, 40000L, Arrays.asList(usernameXpath), true);
 		
-		log.info("Opening log in url: " + SITE_URL);
-		webDriver.get(SITE_URL);
-		log.info("Wating for login page to get loaded");
-		waitForXPaths(webDriver, 40000L, Arrays.asList(usernameXpath), true);
-		
-		if( isFrame ) {
-			if ( !findFrameForGivenXpath(webDriver, usernameXpath) ) {
-				log.error("!! Failed to find the frame.");
-				return false;
+			if( isFrame ) {
+				if ( !findFrameForGivenXpath(webDriver, usernameXpath) ) {
+					log.error("!! Failed to find the frame.");
+					return timing.result(false);
+				}
 			}
+			log.info("Entering Credentials : " + username);
+			webDriver.findElement(By.xpath(usernameXpath)).sendKeys(username);
+			webDriver.findElement(By.xpath(passwordXpath)).sendKeys(password);
+
+			log.info("Credentials Entered successfully");
+			webDriver.findElement(By.xpath(SubmitXpath)).click();
+			// the wait already tells whether the logout xpath matched, no second lookup
+			return timing.result(waitForXPaths(webDriver, 40000L, Arrays.asList(logoutXpath), LocatorEvaluator.Condition.ANY).isMatched(0));
+		} finally {
+			timing.stop();
 		}
-		log.info("Entering Credentials : " + username);
-		webDriver.findElement(By.xpath(usernameXpath)).sendKeys(username);
-		webDriver.findElement(By.xpath(passwordXpath)).sendKeys(password);
+	}
+	
+	/**
+	 * Frame paths remembered by findFrameForGivenXpath, exposes the hit/miss statistics
+	 * 
+	 * @return frame location cache
+	 */
+	public FrameLocationCache getFrameLocationCache() {
+		
+		return frameLocationCache;
+	}
+	
+	public void setFrameSearchMode( FrameSearchMode frameSearchMode ) {
+		
+		this.frameSearchMode = frameSearchMode;
+	}
+	
+	/**
+	 * WebClients passed to the save and download methods get a {@link FilteringWebConnection} for the call, which blocks
+	 * analytics and ads, and images, fonts and media of downloads; saved pages keep their images. On by default
+	 * 
+	 * @param requestFiltering
+	 */
+	public void setRequestFiltering( boolean requestFiltering ) {
+		
+		this.requestFiltering = requestFiltering;
+	}
+	
+	/**
+	 * WebClients passed to the save and download methods get a {@link CachingWebConnection} on the cache, so scripts,
+	 * stylesheets and fonts are downloaded once for all clients and runs. Off by default, null switches it off again for
+	 * clients prepared later
+	 * 
+	 * @param httpCache
+	 */
+	public void setHttpCache( HttpDiskCache httpCache ) {
+		
+		this.httpCache = httpCache;
+	}
+	
+	/**
+	 * cleanDir moves the files into the trash of the workspace, which deletes them in the background. Directories cleaned
+	 * should be on the file system of its root. Null, the default, deletes the files in place
+	 * 
+	 * @param workspace
+	 */
+	public void setWorkspace( Workspace workspace ) {
+		
+		this.workspace = workspace;
+	}
+	
+	/*
+	 * the cache is installed first, so the filter wrapping it blocks requests before they reach the cache
+	 */
+	private FilteringWebConnection.Call prepareWebClient( WebClient webClient, String url, boolean saving ) {
+		
+		HttpDiskCache cache = httpCache;
+		if( cache != null ) {
+			CachingWebConnection.install(webClient, cache);
+		}
+		return requestFiltering ? FilteringWebConnection.install(webClient, url, saving) : null;
+	}
+	
+	/*
+	 * the filter is for the call only, the caller may hand the client on
+	 */
+	private void releaseWebClient( WebClient webClient, FilteringWebConnection.Call filtered ) {
+		
+		FilteringWebConnection.uninstall(webClient, filtered);
+	}
+	
+	/**
+	 * Same as getLogin, but first tries the session stored in the vault. The stored cookies are restored and the logout xpath
+	 * is probed; the real login only runs when there is no stored session or it has expired. A successful login is stored.
+	 * 
+	 * @param sessionVault
+	 * @param webDriver
+	 * @param SITE_URL
+	 * @param username
+	 * @param password
+	 * @param usernameXpath
+	 * @param passwordXpath
+	 * @param SubmitXpath
+	 * @param logoutXpath
+	 * @param isFrame
+	 * @return status
+	 */
+	public boolean getLogin(SessionVault sessionVault, WebDriver webDriver, String SITE_URL, String username, String password, String usernameXpath, String passwordXpath, String SubmitXpath, String logoutXpath, boolean isFrame) {
 
-		log.info("Credentials Entered successfully");
-		webDriver.findElement(By.xpath(SubmitXpath)).click();
-		waitForXPaths(webDriver, 40000L, Arrays.asList(logoutXpath), true);
+		OperationMetrics.Timing timing = metrics.time("getLogin.vault");
+		try {
+			long probeStart = System.currentTimeMillis();
+			if( sessionVault.restore(SITE_URL, username, webDriver, SITE_URL) ) {
+			
+				if( isLoggedIn(webDriver, logoutXpath, isFrame, sessionVault.getProbeTime()) ) {
+					log.info("Reusing stored session of " + username);
+					sessionVault.recordHit(System.currentTimeMillis() - probeStart);
+					return timing.result(true);
+				}
+				log.info("Stored session of " + username + " expired, logging in");
+				sessionVault.invalidate(SITE_URL, username);
+				webDriver.manage().deleteAllCookies();
+			}
+			sessionVault.recordMiss();
 		
-		if ( webDriver.findElements(By.xpath(logoutXpath)).size() > 0 ) {
-			return true;
-		} else {
-			return false;
+			long loginStart = System.currentTimeMillis();
+			boolean status = getLogin(webDriver, SITE_URL, username, password, usernameXpath, passwordXpath, SubmitXpath, logoutXpath, isFrame);
+			if( status ) {
+				sessionVault.recordLogin(System.currentTimeMillis() - loginStart);
+				sessionVault.save(SITE_URL, username, webDriver);
+			}
+			return timing.result(status);
+		} finally {
+			timing.stop();
 		}
+	}
+	
+	/*
+	 * cheap check of a restored session. Frames are searched with the script locator only, no frame by frame walk
+	 */
+	private boolean isLoggedIn( WebDriver webDriver, String logoutXpath, boolean isFrame, long probeTime ) {
 		
+		if( isFrame ) {
+			List<Integer> path = scriptFrameLocator.locate(webDriver, logoutXpath);
+			if( path != null ) {
+				return FrameLocationCache.switchToPath(webDriver, path);
+			}
+		}
+		return waitForXPaths(webDriver, probeTime, Arrays.asList(logoutXpath), true);
 	}
 	
 	public Boolean findFrameForGivenXpath( WebDriver webDriver, String xpath ) {
@@ -185,6 +359,8 @@ public class SeleniumUtils {
 	 * 1. switch -> switch to particular frame where the xpath is present.
 	 * 2. click -> switch to particular frame and perform click.
 	 * 3. sendKeys -> switch to particular frame and perform sendKeys operation.
+	 * The frame path found is remembered in the {@link FrameLocationCache} and tried first on the next call for the same page.
+	 * In SCRIPT mode the {@link ScriptFrameLocator} is tried before switching frame by frame.
 	 * 
 	 * @param webDriver
 	 * @param xpath
@@ -195,78 +371,112 @@ public class SeleniumUtils {
 	 * 
 	 */
 	private Boolean findFrameForGivenXpath( WebDriver webDriver, String xpath, Boolean click, String sendKeys ) {
+
+		OperationMetrics.Timing timing = metrics.time("findFrameForGivenXpath");
+		try {
+			List<WebElement> grandFrameElement, parentFrameElement, childFrameElement = null;
 		
-		List<WebElement> grandFrameElement, parentFrameElement, childFrameElement = null;
+			waitForXPaths(webDriver, 45000, Arrays.asList("//html | //div | //xhtml"), true);
+			webDriver.switchTo().defaultContent();
+			waitForXPaths(webDriver, 45000, Arrays.asList(FrameLocationCache.FRAME_XPATH), true);
 		
-		waitForXPaths(webDriver, 45000, Arrays.asList("//html | //div | //xhtml"), true);
-		webDriver.switchTo().defaultContent();
+			// known page structure -> switch straight to the frame found last time. The key is taken once the frames are
+			// loaded, so lookups and records see the same signature
+			String cacheKey = frameLocationCache.keyFor(webDriver, xpath);
+			List<Integer> cachedPath = frameLocationCache.lookup(webDriver, cacheKey, xpath);
+			if( cachedPath != null ) {
+			
+				log.info(xpath + " Xpath found in cached frame path " + cachedPath);
+				return timing.result(frameEventHandler(webDriver, xpath, click, sendKeys ));
+			}
 		
-		waitForXPaths(webDriver, 45000, Arrays.asList("//frame | //frameset | //iframe"), true);
-		if( (grandFrameElement = webDriver.findElements(By.xpath("//frame | //frameset | //iframe"))).size() > 0 ) {
+			if( frameSearchMode == FrameSearchMode.SCRIPT ) {
 			
-			for (WebElement grandIframe : grandFrameElement) {
+				List<Integer> scriptPath = scriptFrameLocator.locate(webDriver, xpath);
+				if( scriptPath != null && FrameLocationCache.switchToPath(webDriver, scriptPath) ) {
 				
-				webDriver.switchTo().frame(grandIframe);
-				waitForTime(1500);
+					log.info(xpath + " Xpath found by frame search script in frame path " + scriptPath);
+					frameLocationCache.record(cacheKey, scriptPath);
+					return timing.result(frameEventHandler(webDriver, xpath, click, sendKeys ));
+				}
+				webDriver.switchTo().defaultContent();
+			}
+		
+			if( (grandFrameElement = webDriver.findElements(By.xpath(FrameLocationCache.FRAME_XPATH))).size() > 0 ) {
+			
+				for (int grand = 0; grand < grandFrameElement.size(); grand++) {
 				
-				if( webDriver.findElements(By.xpath(xpath)).size() > 0 ) {
+					WebElement grandIframe = grandFrameElement.get(grand);
+					webDriver.switchTo().frame(grandIframe);
+					waitForTime(1500);
+				
+					if( webDriver.findElements(By.xpath(xpath)).size() > 0 ) {
 					
-					log.info(xpath + " Xpath found in " + grandIframe);
-					return frameEventHandler(webDriver, xpath, click, sendKeys );
+						log.info(xpath + " Xpath found in " + grandIframe);
+						frameLocationCache.record(cacheKey, Arrays.asList(grand));
+						return timing.result(frameEventHandler(webDriver, xpath, click, sendKeys ));
 					
-				} else if( (parentFrameElement = webDriver.findElements(By.xpath("//frame | //frameset | //iframe"))).size() > 0 ) {
+					} else if( (parentFrameElement = webDriver.findElements(By.xpath(FrameLocationCache.FRAME_XPATH))).size() > 0 ) {
 					
-					for (WebElement parentIframe : parentFrameElement) {
+						for (int parent = 0; parent < parentFrameElement.size(); parent++) {
 						
-						webDriver.switchTo().frame(parentIframe);
-						waitForTime(1500);
+							WebElement parentIframe = parentFrameElement.get(parent);
+							webDriver.switchTo().frame(parentIframe);
+							waitForTime(1500);
 						
-						if( webDriver.findElements(By.xpath(xpath)).size() > 0 ) {
+							if( webDriver.findElements(By.xpath(xpath)).size() > 0 ) {
 							
-							log.info(xpath + " Xpath found inside the " + parentIframe + " which is under " + grandIframe);
-							return frameEventHandler(webDriver, xpath, click, sendKeys );
+								log.info(xpath + " Xpath found inside the " + parentIframe + " which is under " + grandIframe);
+								frameLocationCache.record(cacheKey, Arrays.asList(grand, parent));
+								return timing.result(frameEventHandler(webDriver, xpath, click, sendKeys ));
 							
-						} else if( (childFrameElement = webDriver.findElements(By.xpath("//frame | //frameset | //iframe"))).size() > 0 ) {
+							} else if( (childFrameElement = webDriver.findElements(By.xpath(FrameLocationCache.FRAME_XPATH))).size() > 0 ) {
 						
-							for ( WebElement childIframe : childFrameElement ) {
+								for (int child = 0; child < childFrameElement.size(); child++) {
 								
-								webDriver.switchTo().frame(childIframe);
-								waitForTime(1500);
+									WebElement childIframe = childFrameElement.get(child);
+									webDriver.switchTo().frame(childIframe);
+									waitForTime(1500);
 								
-								if( webDriver.findElements(By.xpath(xpath)).size() > 0 ) {
+									if( webDriver.findElements(By.xpath(xpath)).size() > 0 ) {
 									
-									log.info(xpath + " Xpath found inside the " + childIframe + " which is under " + parentIframe);
-									return frameEventHandler( webDriver, xpath, click, sendKeys );
-								} else {
-									log.info(xpath+" xpath found inside this three frame tag -> 'frame' 'frameset' 'iframe'.");
-									webDriver.switchTo().defaultContent();
+										log.info(xpath + " Xpath found inside the " + childIframe + " which is under " + parentIframe);
+										frameLocationCache.record(cacheKey, Arrays.asList(grand, parent, child));
+										return timing.result(frameEventHandler( webDriver, xpath, click, sendKeys ));
+									} else {
+										log.info(xpath+" xpath found inside this three frame tag -> 'frame' 'frameset' 'iframe'.");
+										webDriver.switchTo().defaultContent();
+									}
 								}
-							}
-						} else {
+							} else {
 							
-							webDriver.switchTo().parentFrame();
+								webDriver.switchTo().parentFrame();
+							}
 						}
-					}
-				} else {
+					} else {
 					
-					webDriver.switchTo().defaultContent();
-				}
-			} 
-		} else {
+						webDriver.switchTo().defaultContent();
+					}
+				} 
+			} else {
 			
-			waitForXPaths(webDriver, 30000, Arrays.asList(xpath), true);
-			if( webDriver.findElements(By.xpath(xpath)).size() > 0 ) {
+				waitForXPaths(webDriver, 30000, Arrays.asList(xpath), true);
+				if( webDriver.findElements(By.xpath(xpath)).size() > 0 ) {
 				
-				log.info(xpath + " Xpath found in default window itself.");
-				return frameEventHandler(webDriver, xpath, click, sendKeys );
-			} else {
+					log.info(xpath + " Xpath found in default window itself.");
+					frameLocationCache.record(cacheKey, Collections.<Integer> emptyList());
+					return timing.result(frameEventHandler(webDriver, xpath, click, sendKeys ));
+				} else {
 				
-				log.info("Apologize!! Unable to find the xpath.");
-				return false;
-			}
+					log.info("Apologize!! Unable to find the xpath.");
+					return timing.result(false);
+				}
 			
+			}
+			return timing.result(false);
+		} finally {
+			timing.stop();
 		}
-		return false;
 	}
 	
 	private Boolean frameEventHandler( WebDriver webDriver, String xpath, Boolean click, String sendKeys ) {
@@ -298,18 +508,22 @@ public class SeleniumUtils {
 	 */
 	 public void saveScreenShot(final WebDriver webDriver, File imageDirectory, String imageName)  {
 		 
-		 File tempFile = ((TakesScreenshot)webDriver).getScreenshotAs(OutputType.FILE);
-		 File imageFile =  new File(imageDirectory, imageName + ".png");
-		 FileUtils.deleteQuietly(imageFile);
+		 OperationMetrics.Timing timing = metrics.time("saveScreenShot");
 		 try {
-			FileUtils.moveFile(tempFile, imageFile);
+			 File tempFile = ((TakesScreenshot)webDriver).getScreenshotAs(OutputType.FILE);
+			 File imageFile =  new File(imageDirectory, imageName + ".png");
+			 FileUtils.deleteQuietly(imageFile);
+			 FileUtils.moveFile(tempFile, imageFile);
+			 timing.result(true);
 		} catch (IOException e) {
 			log.error("Failed to save screen shot for " + imageName);
+		} finally {
+			timing.stop();
 		}
      }
 	 
 	/**
-	 * Displays summary of the given user
+	 * Records the summary of the given user in {@link RunStatistics} and logs it in one line
 	 * 
 	 * @param userName
 	 * @param availableBillCount
@@ -320,24 +534,17 @@ public class SeleniumUtils {
 	 */
 	public void displayCredentialSummary(String userName, int accountCount, int availableBillCount, int newBillCount, int skippedCount, int successCount, int failedCount) {
 
-		final String TAB = "\t";
-		log.info("Credential Summary: " + userName);
-		log.info("Total account count in website" + accountCount);
+		RunStatistics.getInstance().recordCredential(userName, accountCount, availableBillCount, newBillCount, skippedCount, successCount, failedCount);
 		if (availableBillCount != (skippedCount + newBillCount)) {
 			log.error("There is a count miss match in available bill and processed bill");
 		}
-		log.info("Available bill(s): " + availableBillCount);
-		log.info("Already downloaded bill(s): " + skippedCount);
-		log.info("New bill(s): " + newBillCount);
-		if (newBillCount != 0) {
-			log.info(TAB + "Downloaded bill(s): " + successCount);
-			log.info(TAB + "Failed: " + failedCount);
-		}
-
+		log.info("Credential Summary: " + userName + ", accounts " + accountCount + ", available " + availableBillCount + ", already downloaded " + skippedCount + ", new " + newBillCount
+				+ ", downloaded " + successCount + ", failed " + failedCount);
 	}
 
 	/**
-	 * displays account summary
+	 * Records the account and its bills in {@link RunStatistics} and logs the counts in one line; bill names are logged
+	 * at debug level, failed ones at info
 	 * 
 	 * @param total
 	 * @param skipped
@@ -346,77 +553,106 @@ public class SeleniumUtils {
 	 */
 	public void displayAccountSummary(String accountNumber, int total, List<String> skipped, List<String> success, List<String> failed, boolean history) {
 
-		String TAB = "\t";
-		log.info("Account Summary for Account number: " + accountNumber);
-		if (!history) {
-			log.info("Downloaded recent bill");
-		} else {
-			log.info("Downloaded history bills");
+		RunStatistics statistics = RunStatistics.getInstance();
+		statistics.recordAccount(accountNumber, total);
+		for (String bill : skipped) {
+			statistics.recordBill(accountNumber, bill, RunStatistics.Outcome.SKIPPED);
 		}
-		log.info("Available bill(s): " + total);
-
-		log.info("Already downloaded bill(s): " + skipped.size());
-		for (int j = 0; j < skipped.size(); j++) {
-			log.info(TAB + skipped.get(j));
+		for (String bill : success) {
+			statistics.recordBill(accountNumber, bill, RunStatistics.Outcome.DOWNLOADED);
+		}
+		for (String bill : failed) {
+			statistics.recordBill(accountNumber, bill, RunStatistics.Outcome.FAILED);
 		}
 
-		log.info("Bill(s) available in site: " + (success.size() + failed.size()));
+		log.info("Account Summary: " + accountNumber + (history ? " history bills" : " recent bill") + ", available " + total + ", already downloaded " + skipped.size() + ", new "
+				+ (success.size() + failed.size()) + ", downloaded " + success.size() + ", failed " + failed.size());
+		if (log.isDebugEnabled()) {
+			log.debug("Account " + accountNumber + " already downloaded " + skipped + ", downloaded " + success);
+		}
+		if (!failed.isEmpty()) {
+			log.info("Account " + accountNumber + " failed " + failed);
+		}
+	}
 
-		if ((success.size() + failed.size()) != 0) {
+	/**
+	 * Writes the home page of an account linking its saved pages, see {@link HomePageIndexWriter}. When the home page
+	 * already links the first of the pages, in the same order, only the rest are appended; otherwise it is written
+	 * again. Large home pages are split into numbered pages
+	 * 
+	 * @param accountNumber
+	 * @param homePageFile
+	 * @param savedPagesFileName
+	 *            - all saved pages of the account
+	 * @return false if the home page couldn't be written
+	 */
+	public boolean writeHomePage(String accountNumber, File homePageFile, List<String> savedPagesFileName) {
 
-			log.info(TAB + "Downloaded bill(s): " + success.size());
-			for (int j = 0; j < success.size(); j++) {
-				log.info(TAB + TAB + success.get(j));
+		OperationMetrics.Timing timing = metrics.time("writeHomePage");
+		try {
+			try {
+				homePageWriter(accountNumber, homePageFile).writeAll(savedPagesFileName);
+			} catch (IOException e) {
+				log.error("Failed writing home page " + homePageFile.getAbsolutePath() + ": " + e.getMessage());
+				return timing.result(false);
 			}
+			return timing.result(true);
+		} finally {
+			timing.stop();
+		}
+	}
+
+	/**
+	 * Adds links to the home page of an account without comparing it with the pages it already links, for callers
+	 * saving pages one after another
+	 * 
+	 * @param accountNumber
+	 * @param homePageFile
+	 * @param newPagesFileName
+	 *            - pages saved since the last call
+	 * @return false if the home page couldn't be written
+	 */
+	public boolean appendToHomePage(String accountNumber, File homePageFile, List<String> newPagesFileName) {
 
-			log.info(TAB + "Failed: " + failed.size());
-			for (int j = 0; j < failed.size(); j++) {
-				log.info(TAB + TAB + failed.get(j));
+		OperationMetrics.Timing timing = metrics.time("appendToHomePage");
+		try {
+			try {
+				homePageWriter(accountNumber, homePageFile).append(newPagesFileName);
+			} catch (IOException e) {
+				log.error("Failed appending to home page " + homePageFile.getAbsolutePath() + ": " + e.getMessage());
+				return timing.result(false);
 			}
+			return timing.result(true);
+		} finally {
+			timing.stop();
 		}
 	}
 
 	/**
-	 * Copies Selenium WebDriver cookies to HtmlUnit WebClient cookies
+	 * Releases what is kept in memory for the home page, e.g. once all pages of the account are saved
 	 * 
-	 * @param webDriver
-	 * @param htmlUnitWebClient
-	 * @return
+	 * @param homePageFile
 	 */
-	public boolean writeHomePage(String accountNumber, File homePageFile, List<String> savedPagesFileName) {
+	public void closeHomePage(File homePageFile) {
 
-		// check whether directory is created. If not create one
-		if (!homePageFile.getParentFile().isDirectory()) {
-			log.debug("Creating home page directory");
-			homePageFile.getParentFile().mkdirs();
-		}
+		HomePageIndexWriter.close(homePageFile);
+	}
 
-		if (homePageFile.exists()) {
-			log.debug("Removing old home page");
-			homePageFile.delete();
-		}
+	private HomePageIndexWriter homePageWriter(String accountNumber, File homePageFile) throws IOException {
 
-		PrintWriter pwHomePage = null;
-		try {
-			pwHomePage = new PrintWriter(homePageFile);
-		} catch (FileNotFoundException e) {
-			log.error("Failed creating a home page");
-			e.printStackTrace();
-			return false;
-		}
-		pwHomePage.print("<html>");
-		pwHomePage.print("<body>");
-		pwHomePage.print("<title>" + "Home Page of " + accountNumber + "</title>");
-		for (String name : savedPagesFileName) {
-			pwHomePage.print("<p>");
-			pwHomePage.println(String.format("<a href='%s'>%s</a>", name, name));
-			pwHomePage.print("</p>");
-		}
-		pwHomePage.print("</body>");
-		pwHomePage.print("</html>");
-		pwHomePage.flush();
-		pwHomePage.close();
-		return true;
+		File topIndexFile = homePageTopIndex;
+		HomePageIndexWriter parent = topIndexFile == null ? null : HomePageIndexWriter.forFile(topIndexFile, "Home Pages");
+		return HomePageIndexWriter.forFile(homePageFile, "Home Page of " + accountNumber, 1000, parent);
+	}
+
+	/**
+	 * Home pages written by writeHomePage are listed in the given index, which links all accounts. Null for none
+	 * 
+	 * @param topIndexFile
+	 */
+	public void setHomePageTopIndex( File topIndexFile ) {
+		
+		this.homePageTopIndex = topIndexFile;
 	}
 
 	/**
@@ -428,6 +664,7 @@ public class SeleniumUtils {
 	 */
 	public boolean copyCookiesWebDriverToHtmlUnitWebClient(final WebDriver webDriver, WebClient htmlUnitWebClient) {
 
+		long start = metrics.start();
 		CookieManager cookieManager = new CookieManager();
 		// clearing cookies
 		htmlUnitWebClient.getCookieManager().clearCookies();
@@ -436,16 +673,28 @@ public class SeleniumUtils {
 		webDriver.switchTo().window("");
 		for (Cookie cookie : webDriver.manage().getCookies()) {
 
-			com.gargoylesoftware.htmlunit.util.Cookie htmlUnitCookie = new com.gargoylesoftware.htmlunit.util.Cookie(cookie.getDomain(), cookie.getName(), cookie.getValue(), cookie.getPath(), cookie.getExpiry(), cookie.isSecure());
-			cookieManager.addCookie(htmlUnitCookie);
+			cookieManager.addCookie(toHtmlUnitCookie(cookie));
 		}
 
 		htmlUnitWebClient.setCookieManager(cookieManager);
+		metrics.record("copyCookiesWebDriverToHtmlUnitWebClient", start, true);
 		return true;
 	}
 
 	/**
-	 * Get WebResponse as input stream. Reads the expected contentType and stores in the given file
+	 * Maps a Selenium WebDriver cookie to a HtmlUnit WebClient cookie
+	 * 
+	 * @param cookie
+	 * @return HtmlUnit cookie
+	 */
+	public com.gargoylesoftware.htmlunit.util.Cookie toHtmlUnitCookie(Cookie cookie) {
+
+		return new com.gargoylesoftware.htmlunit.util.Cookie(cookie.getDomain(), cookie.getName(), cookie.getValue(), cookie.getPath(), cookie.getExpiry(), cookie.isSecure());
+	}
+
+	/**
+	 * Get WebResponse as input stream. Reads the expected contentType and stores in the given file.
+	 * The body is streamed to disk, memory use doesn't grow with the file size, see {@link StreamingDownloader}
 	 * 
 	 * @param htmlUnitWebClient
 	 * @param url
@@ -455,40 +704,42 @@ public class SeleniumUtils {
 	 */
 	public boolean storeStreamInFile(WebClient htmlUnitWebClient, String url, File file, String contentType) {
 
+		OperationMetrics.Timing timing = metrics.time("storeStreamInFile");
+		FilteringWebConnection.Call filtered = prepareWebClient(htmlUnitWebClient, url, false);
 		try {
-			// Get the input stream
-			htmlUnitWebClient.getOptions().setThrowExceptionOnFailingStatusCode(false);
-			Page page = htmlUnitWebClient.getPage(url);
-			if (contentType.contains("pdf") && (!(page.getWebResponse().getContentType().contains("PDF") || page.getWebResponse().getContentType().contains("pdf") || (page.getWebResponse().getContentAsString().startsWith("%PDF-"))))) {
-				// if content is pdf extra checks are done the specified content type
-				log.error("Unexpected content type " + page.getWebResponse().getContentType() + ". Stopped download");
-				return false;
-			} else if (!page.getWebResponse().getContentType().contains(contentType)) {
-				log.info("Unexpected content type " + page.getWebResponse().getContentType() + ". Stopped download");
-				return false;
-			}
+			return timing.result(streamingDownloader.download(htmlUnitWebClient, url, file, contentType));
+		} finally {
+			releaseWebClient(htmlUnitWebClient, filtered);
+			timing.stop();
+		}
+	}
 
-			byte buffer[] = IOUtils.toByteArray(page.getWebResponse().getContentAsStream());
+	/**
+	 * Downloads a bill into the content addressed bill store. A bill already stored, under any url or file name, is not
+	 * written again; the given file is linked to the stored copy either way. The bill is streamed with the cookies of
+	 * the client, see {@link StreamingDownloader#downloadBill}
+	 * 
+	 * @param billStore
+	 * @param htmlUnitWebClient
+	 * @param url
+	 * @param file
+	 * @param contentType
+	 * @param site
+	 * @param account
+	 * @param billDate
+	 * @return store result, null if the download failed or the content type didn't match
+	 */
+	public BillStore.Result storeBillInStore(BillStore billStore, WebClient htmlUnitWebClient, String url, File file, String contentType, String site, String account, String billDate) {
 
-			OutputStream outputStream = null;
-			try {
-				outputStream = new FileOutputStream(file);
-			} catch (FileNotFoundException e) {
-				log.error("Failed creating output file " + file.getAbsolutePath());
-				e.printStackTrace();
-				file.delete();
-				return false;
-			}
-			outputStream.write(buffer);
-			outputStream.flush();
-			outputStream.close();
-		} catch (Exception e) {
-			log.error("Failed while reading from InputStream");
-			file.delete();
-			e.printStackTrace();
-			return false;
+		OperationMetrics.Timing timing = metrics.time("storeBillInStore");
+		FilteringWebConnection.Call filtered = prepareWebClient(htmlUnitWebClient, url, false);
+		try {
+			BillStore.Result result = streamingDownloader.downloadBill(htmlUnitWebClient, url, file, contentType, billStore, site, account, billDate);
+			return timing.result(result, result != null);
+		} finally {
+			releaseWebClient(htmlUnitWebClient, filtered);
+			timing.stop();
 		}
-		return true;
 	}
 
 	/**
@@ -500,6 +751,7 @@ public class SeleniumUtils {
 	 */
 	public String switchToNewWindowHandle(final WebDriver webDriver, List<String> existingWindows) {
 
+		long start = metrics.start();
 		String newHandle = null;
 		for (String handle : webDriver.getWindowHandles()) {
 			// getting new window handle
@@ -513,6 +765,7 @@ public class SeleniumUtils {
 				}
 			}
 		}
+		metrics.record("switchToNewWindowHandle", start, newHandle != null);
 		return newHandle;
 	}
 
@@ -554,6 +807,8 @@ public class SeleniumUtils {
 //	}
 
 	/**
+	 * Waits for the browser download through the shared {@link DownloadTracker} of the directory, no polling.
+	 * A download which stops growing for 10 seconds is considered failed and its partly downloaded files are removed.
 	 * 
 	 * @param lastModifiedTime
 	 *            - download directories last modified time
@@ -564,91 +819,65 @@ public class SeleniumUtils {
 	 */
 	public File getRecentFile(long lastModifiedTime, File downloadDir, String nameContains, final long DOWNLOAD_WAIT_TIME_LONG) {
 
-		// waiting for bill to download
-		File current = null;
-		long statusCheckInterval = 10000L;
-		long endTime = System.currentTimeMillis() + DOWNLOAD_WAIT_TIME_LONG;
-		long fileLastUpdatedTime = lastModifiedTime;
-		String TAB = "\t";
-		String LINE_FEED = "\n\r";
-
-		log.debug(TAB + "Waiting for download to start");
-		while (endTime > System.currentTimeMillis() && current == null) {
-
-			// search for any new .part files added to the directory
-//			for (File file : downloadDir.listFiles(onlyOne.new PartlyDownloadedFile())) {
-//				if (file.lastModified() > lastModifiedTime) {
-//					current = file;
-//					break;
-//				}
-//			}
-		}
-
-		if (current != null) {
-
-			log.debug(TAB + "Download started");
-			while (current.exists()) {
-				// part file exists. Wait for part file to get a little
-				// downloaded
-				log.debug("Waiting for " + (statusCheckInterval / 1000) + " more seconds for the file to get downloaded");
-				endTime += statusCheckInterval;
-				while (endTime >= System.currentTimeMillis()) {
-					if (!current.exists()) { // checking if the file exists while waiting for next status file size check
-						break;
-					}
-				}
+		OperationMetrics.Timing timing = metrics.time("getRecentFile");
+		try {
+			long statusCheckInterval = 10000L;
+			String TAB = "\t";
+			String LINE_FEED = "\n\r";
 
-				/*
-				 * checking for .part file last modified time. If it is 0, part file removed. (i.e) download completed while waiting for update status if it is same, it is considered to be stopped downloading
-				 */
-				if (fileLastUpdatedTime == current.lastModified()) {
+			log.debug(TAB + "Waiting for download to start");
+			try {
+				File current = DownloadTracker.forDirectory(downloadDir).expect(nameContains, lastModifiedTime, DOWNLOAD_WAIT_TIME_LONG, statusCheckInterval).get();
+				log.debug(TAB + "Download completed " + current.getAbsolutePath());
+				return timing.result(current, true);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof DownloadTracker.DownloadStalledException) {
+					File partFile = ((DownloadTracker.DownloadStalledException) e.getCause()).getPartFile();
 					log.debug(TAB + "Failed while downloading bill due to network problem.");
-					File temp = new File(current.getAbsolutePath().replaceAll(".part|.crdownload", ""));
-					log.debug("Removing partly downloaded file(s)" + LINE_FEED + current.getAbsolutePath() + TAB + (temp.exists() ? temp.getAbsolutePath() : ""));
-					current.delete();
+					File temp = new File(partFile.getAbsolutePath().replaceAll(".part|.crdownload", ""));
+					log.debug("Removing partly downloaded file(s)" + LINE_FEED + partFile.getAbsolutePath() + TAB + (temp.exists() ? temp.getAbsolutePath() : ""));
+					partFile.delete();
 					if (temp.exists()) {
 						temp.delete();
 					}
-					current = null;
-					break;
 				} else {
-					fileLastUpdatedTime = current.lastModified();
+					log.debug(TAB + "No bill downloaded: " + e.getCause().getMessage());
 				}
+			} catch (IOException e) {
+				log.error("Failed watching download directory " + downloadDir.getAbsolutePath());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
 			}
-		} else {
-			// if file completed downloading before getting a part file
-//			for (File file : downloadDir.listFiles(onlyOne.new DownloadedFile(nameContains))) {
-//				if (file.lastModified() > lastModifiedTime) {
-//					current = file;
-//					break;
-//				}
-//			}
-		}
-
-		/*
-		 * AFTER SUCCESSFUL DOWNLOAD .part will be removed from the file name So, changing the file description to reflect the name change
-		 */
-		if (current != null) {
-			return new File(current.getAbsolutePath().replaceAll(".part|.crdownload", ""));
-		} else {
-			return null;
+			return timing.result(null, false);
+		} finally {
+			timing.stop();
 		}
 	}
 
 	/**
-	 * This waits for given milliseconds to proceed with next line
+	 * Stops following downloads to the directory, e.g. once the session downloading to it is done. See
+	 * {@link DownloadTracker#release(File)}
 	 * 
+	 * @param downloadDir
+	 */
+	public void releaseDownloadDir(File downloadDir) {
+
+		DownloadTracker.release(downloadDir);
+	}
+
+	/**
+	 * This waits for given milliseconds to proceed with next line. The thread is parked, not spinning, see {@link WaitManager}
+	 *
 	 * @param timeInMilliSec
 	 */
 	public void waitForTime(long timeInMilliSec) {
 
-		long waitTime = System.currentTimeMillis() + timeInMilliSec;
-		while (waitTime > System.currentTimeMillis())
-			;
+		long start = metrics.start();
+		metrics.record("waitForTime", start, WaitManager.getInstance().waitFor(timeInMilliSec));
 	}
 
 	/**
-	 * waits for a given time and checks for xpath to appear or disappear
+	 * waits for a given time and checks for xpath to appear or disappear. Polling or MutationObserver based, see {@link XPathWaiter}
 	 * 
 	 * @param webDriver
 	 * @param timeInMilliSec
@@ -659,43 +888,75 @@ public class SeleniumUtils {
 	 */
 	public boolean waitForXPaths(final WebDriver webDriver, long timeInMilliSec, List<String> XPathList, boolean toAppear) {
 
-		StringBuilder completeXpath = new StringBuilder();
+		return waitForXPathsWithResult(webDriver, timeInMilliSec, XPathList, toAppear).isSatisfied();
+	}
 
-		for (int i = 0; i < XPathList.size(); i++) {
+	/**
+	 * Same as waitForXPaths, but also reports the number of driver round trips and the time the wait took
+	 * 
+	 * @param webDriver
+	 * @param timeInMilliSec
+	 * @param XPathList
+	 * @param toAppear
+	 *            => true - appear; false - disappear;
+	 * @return wait result
+	 */
+	public XPathWaiter.Result waitForXPathsWithResult(final WebDriver webDriver, long timeInMilliSec, List<String> XPathList, boolean toAppear) {
 
-			if (i == 0) {
-				// to avoid leading '|' symbol
-				completeXpath.append(XPathList.get(i));
-			} else {
-				completeXpath.append("|").append(XPathList.get(i));
-			}
+		OperationMetrics.Timing timing = metrics.time(toAppear ? "waitForXPaths.appear" : "waitForXPaths.disappear");
+		try {
+			XPathWaiter.Result result = XPathWaiter.getDefault().await(webDriver, timeInMilliSec, XPathList, toAppear);
+			return timing.result(result, result.isSatisfied());
+		} finally {
+			timing.stop();
 		}
+	}
 
-		long waitTime = System.currentTimeMillis() + timeInMilliSec;
+	/**
+	 * Evaluates the xpaths in one round trip and tells which of them matched, see {@link LocatorEvaluator}
+	 * 
+	 * @param webDriver
+	 * @param XPathList
+	 * @return match count and first element of every xpath
+	 */
+	public LocatorEvaluator.Evaluation evaluateXPaths(final WebDriver webDriver, List<String> XPathList) {
 
-		if (toAppear) {
-			// appears
-			boolean notLoaded = false;
-			while (waitTime > System.currentTimeMillis() && (notLoaded = webDriver.findElements(By.xpath(completeXpath.toString())).size() == 0))
-				;
-			if (!notLoaded) {
-				return true;
-			} else {
-				return false;
-			}
-		} else {
-			// disappears
-			boolean notPresent = false;
-			while (waitTime > System.currentTimeMillis() && (notPresent = webDriver.findElements(By.xpath(completeXpath.toString())).size() > 0))
-				;
-			if (!notPresent) {
-				return true;
-			} else {
-				return false;
-			}
+		OperationMetrics.Timing timing = metrics.time("evaluateXPaths");
+		try {
+			LocatorEvaluator.Evaluation evaluation = locatorEvaluator.evaluate(webDriver, XPathList);
+			return timing.result(evaluation, evaluation.isSatisfied());
+		} finally {
+			timing.stop();
 		}
 	}
 
+	/**
+	 * Waits until any, all or none of the xpaths match, e.g. logged in vs. error banner vs. captcha, and reports the result
+	 * of each xpath
+	 * 
+	 * @param webDriver
+	 * @param timeInMilliSec
+	 * @param XPathList
+	 * @param condition
+	 *            => ANY - one xpath matches; ALL - every xpath matches; NONE - no xpath matches;
+	 * @return last evaluation, check isSatisfied
+	 */
+	public LocatorEvaluator.Evaluation waitForXPaths(final WebDriver webDriver, long timeInMilliSec, List<String> XPathList, LocatorEvaluator.Condition condition) {
+
+		OperationMetrics.Timing timing = metrics.time("waitForXPaths." + condition.name().toLowerCase());
+		try {
+			LocatorEvaluator.Evaluation evaluation = locatorEvaluator.await(webDriver, timeInMilliSec, XPathList, condition);
+			return timing.result(evaluation, evaluation.isSatisfied());
+		} finally {
+			timing.stop();
+		}
+	}
+
+	public LocatorEvaluator getLocatorEvaluator() {
+		
+		return locatorEvaluator;
+	}
+
 	/**
 	 * Executes the scripts to Scroll pageup and pagedown
 	 * @param webDriver
@@ -704,64 +965,84 @@ public class SeleniumUtils {
 	 */
 	public void javaScriptScroll(final WebDriver webDriver,int startRange,int endRange) { 
 		
-		JavascriptExecutor executor = (JavascriptExecutor)webDriver;
-		executor.executeScript("scroll("+startRange+","+endRange+");");
+		OperationMetrics.Timing timing = metrics.time("javaScriptScroll");
+		try {
+			JavascriptExecutor executor = (JavascriptExecutor)webDriver;
+			executor.executeScript("scroll("+startRange+","+endRange+");");
+			timing.result(true);
+		} finally {
+			timing.stop();
+		}
 	}
 	
 	/**
 	 * Executes an script of an element instead of clicking
 	 */
 	public void javaScriptClick(final WebDriver webDriver , String xpath) {
-		WebElement element = webDriver.findElement(By.xpath(xpath));
-		JavascriptExecutor executor = (JavascriptExecutor)webDriver;
-		executor.executeScript("arguments[0].click();", element);		
+		OperationMetrics.Timing timing = metrics.time("javaScriptClick");
+		try {
+			WebElement element = webDriver.findElement(By.xpath(xpath));
+			JavascriptExecutor executor = (JavascriptExecutor)webDriver;
+			executor.executeScript("arguments[0].click();", element);
+			timing.result(true);
+		} finally {
+			timing.stop();
+		}
 	}
 	
 	/**
-	 * prints a HtmlPage source in a file with file's name
+	 * prints a HtmlPage source in a file with file's name. For many pages, e.g. all statements of an account, see
+	 * {@link PageArchiver}, which overlaps loading and saving and stores shared resources once
 	 */
 	public boolean savePageSource(WebClient webClient, String url, File file) {
 
-		HtmlPage page = null;
+		OperationMetrics.Timing timing = metrics.time("savePageSource");
+		FilteringWebConnection.Call filtered = prepareWebClient(webClient, url, true);
 		try {
-			webClient.getOptions().setThrowExceptionOnFailingStatusCode(false);
-			webClient.getOptions().setThrowExceptionOnScriptError(false);
+			HtmlPage page = null;
+			try {
+				webClient.getOptions().setThrowExceptionOnFailingStatusCode(false);
+				webClient.getOptions().setThrowExceptionOnScriptError(false);
 
-			page = webClient.getPage(url);
+				page = webClient.getPage(url);
 
-		} catch (FailingHttpStatusCodeException e) {
-			log.error("Failed with status code: " + e.getStatusCode());
-			e.printStackTrace();
-			return false;
-		} catch (MalformedURLException e) {
-			log.error("Failed parsing url : [" + url + "]");
-			e.printStackTrace();
-			return false;
-		} catch (IOException e) {
-			log.error("Failed due to input output exception");
-			e.printStackTrace();
-			return false;
-		}
+			} catch (FailingHttpStatusCodeException e) {
+				log.error("Failed with status code: " + e.getStatusCode());
+				e.printStackTrace();
+				return timing.result(false);
+			} catch (MalformedURLException e) {
+				log.error("Failed parsing url : [" + url + "]");
+				e.printStackTrace();
+				return timing.result(false);
+			} catch (IOException e) {
+				log.error("Failed due to input output exception");
+				e.printStackTrace();
+				return timing.result(false);
+			}
 
-		// main source file
-		if (file.exists()) {
-			file.delete();
-		}
-		// support files dir
-		File fileDir = new File(file.getParentFile(), file.getName());
-		if (fileDir.exists()) {
-			fileDir.delete();
-		}
+			// main source file
+			if (file.exists()) {
+				file.delete();
+			}
+			// support files dir
+			File fileDir = new File(file.getParentFile(), file.getName());
+			if (fileDir.exists()) {
+				fileDir.delete();
+			}
 
-		try {
-			page.save(file);
-		} catch (IOException e) {
-			log.equals("Failed while saving page " + page.getUrl() + " to " + file.getAbsolutePath());
-			e.printStackTrace();
-			return false;
+			try {
+				page.save(file);
+			} catch (IOException e) {
+				log.equals("Failed while saving page " + page.getUrl() + " to " + file.getAbsolutePath());
+				e.printStackTrace();
+				return timing.result(false);
+			}
+			log.info("Page saved in " + file.getAbsolutePath());
+			return timing.result(true);
+		} finally {
+			releaseWebClient(webClient, filtered);
+			timing.stop();
 		}
-		log.info("Page saved in " + file.getAbsolutePath());
-		return true;
 	}
 
 	/**
@@ -769,145 +1050,161 @@ public class SeleniumUtils {
 	 */
 	public boolean clickAndSavePageSource(WebClient webClient, String url, File file, String xPath) {
 
-		HtmlPage page = null;
+		OperationMetrics.Timing timing = metrics.time("clickAndSavePageSource");
+		FilteringWebConnection.Call filtered = prepareWebClient(webClient, url, true);
 		try {
-			webClient.getOptions().setThrowExceptionOnFailingStatusCode(false);
-			page = webClient.getPage(url);
-
-		} catch (FailingHttpStatusCodeException e) {
-			log.error("Failed with status code: " + e.getStatusCode());
-			e.printStackTrace();
-			return false;
-		} catch (MalformedURLException e) {
-			log.error("Failed parsing url : [" + url + "]");
-			e.printStackTrace();
-			return false;
-		} catch (IOException e) {
-			log.error("Failed due to input output exception");
-			e.printStackTrace();
-			return false;
-		}
-		log.debug("Clicking before saving the page");
-		HtmlElement toClick = page.getFirstByXPath(xPath);
-		if (toClick != null) {
+			HtmlPage page = null;
 			try {
-				page = toClick.click();
+				webClient.getOptions().setThrowExceptionOnFailingStatusCode(false);
+				page = webClient.getPage(url);
+
+			} catch (FailingHttpStatusCodeException e) {
+				log.error("Failed with status code: " + e.getStatusCode());
+				e.printStackTrace();
+				return timing.result(false);
+			} catch (MalformedURLException e) {
+				log.error("Failed parsing url : [" + url + "]");
+				e.printStackTrace();
+				return timing.result(false);
 			} catch (IOException e) {
-				log.error("Failed clicking given xpath");
+				log.error("Failed due to input output exception");
 				e.printStackTrace();
-				return false;
+				return timing.result(false);
+			}
+			log.debug("Clicking before saving the page");
+			HtmlElement toClick = page.getFirstByXPath(xPath);
+			if (toClick != null) {
+				try {
+					page = toClick.click();
+				} catch (IOException e) {
+					log.error("Failed clicking given xpath");
+					e.printStackTrace();
+					return timing.result(false);
+				}
+				onlyOne.waitForTime(2000L);
+			}
+			// main source file
+			if (file.exists()) {
+				file.delete();
+			}
+			// support files dir
+			File fileDir = new File(file.getParentFile(), file.getName());
+			if (fileDir.exists()) {
+				fileDir.delete();
 			}
-			onlyOne.waitForTime(2000L);
-		}
-		// main source file
-		if (file.exists()) {
-			file.delete();
-		}
-		// support files dir
-		File fileDir = new File(file.getParentFile(), file.getName());
-		if (fileDir.exists()) {
-			fileDir.delete();
-		}
 
-		try {
-			page.save(file);
-		} catch (IOException e) {
-			log.equals("Failed while saving page " + page.getUrl() + " to " + file.getAbsolutePath());
-			e.printStackTrace();
-			return false;
+			try {
+				page.save(file);
+			} catch (IOException e) {
+				log.equals("Failed while saving page " + page.getUrl() + " to " + file.getAbsolutePath());
+				e.printStackTrace();
+				return timing.result(false);
+			}
+			log.info("Page saved in " + file.getAbsolutePath());
+			return timing.result(true);
+		} finally {
+			releaseWebClient(webClient, filtered);
+			timing.stop();
 		}
-		log.info("Page saved in " + file.getAbsolutePath());
-		return true;
 	}
 
 	/*
-	 * checks whether the given file is a pdf file
+	 * checks whether the given file is a pdf file. Header and %%EOF trailer are checked by the {@link PdfVerifier},
+	 * whitespace after %%EOF is accepted
 	 */
 	public boolean isPdfCorrupted(File file) {
 
-		boolean isPdfCorrupted = true;
-		if (null == file) {
-			log.debug("File is null");
-			return isPdfCorrupted;
-		} else if (file.isDirectory()) {
-			log.debug("Expected a file but got directory");
-			return isPdfCorrupted;
-		}
-		// *.pdf extension is not checked because the extension may vary for different site
-
-		RandomAccessFile randomAccess = null;
+		// a corrupted file counts as a failure
+		OperationMetrics.Timing timing = metrics.time("isPdfCorrupted");
 		try {
-			randomAccess = new RandomAccessFile(file, "r");
-			byte[] content = new byte[10];
-			if (-1 != randomAccess.read(content, 0, 10) && new String(content).contains("%PDF-")) { // checking whether the content starts with pdf
-				// seek to file end
-				randomAccess.seek(randomAccess.length() - 10);
-				if (-1 != randomAccess.read(content, 0, 10) && new String(content).contains("%%EOF")) { // checking whether the file ends with %%EOF
-					isPdfCorrupted = false;
-				}
+			boolean isPdfCorrupted = true;
+			if (null == file) {
+				log.debug("File is null");
+				return isPdfCorrupted;
+			} else if (file.isDirectory()) {
+				log.debug("Expected a file but got directory");
+				return isPdfCorrupted;
 			}
-
-		} catch (FileNotFoundException e) {
-			log.error("Can't open file: " + file.getAbsolutePath());
-		} catch (IOException e) {
-			log.error("Can't read from file: " + file.getAbsolutePath());
-		} finally {
-			if (null != randomAccess) {
-				try {
-					randomAccess.close();
-				} catch (IOException e) {
-				}
+			// *.pdf extension is not checked because the extension may vary for different site
+			String reason = pdfVerifier.verify(file);
+			if (reason != null) {
+				log.debug("Corrupted pdf " + file.getAbsolutePath() + ": " + reason);
+			} else {
+				isPdfCorrupted = false;
 			}
+			timing.result(!isPdfCorrupted);
+			return isPdfCorrupted;
+		} finally {
+			timing.stop();
 		}
-
-		return isPdfCorrupted;
 	}
 
 	/**
-	 * Deletes all files and directories in the given directory
+	 * Empties the given directory in place, it isn't removed, so a download tracker watching it keeps working. With a
+	 * {@link Workspace} set the files are renamed into its trash and deleted in the background, so this doesn't depend on
+	 * how many files the last run left; without one they are deleted here
 	 * 
-	 * @return
+	 * @return true if the directory is empty
 	 */
 	public boolean cleanDir(File directory) {
 
-		log.info("Removing all files in " + directory.getAbsolutePath() + " directory");
-		for (File file : directory.listFiles()) {
-			if (FileUtils.deleteQuietly(file)) {
-				log.info("Deleted file " + file);
-			} else {
-				log.error("Unable to delete file " + file);
+		long start = metrics.start();
+		boolean status;
+		Workspace current = workspace;
+		if (current != null) {
+			status = current.retireContents(directory);
+		} else {
+			File[] files = directory.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					if (!FileUtils.deleteQuietly(file)) {
+						log.error("Unable to delete file " + file);
+					}
+				}
 			}
+			String[] left = directory.list();
+			status = left != null && left.length == 0;
+		}
+		if (status) {
+			log.info("Removed all files in " + directory.getAbsolutePath() + " directory");
+		} else {
+			log.error("Unable to remove all files in " + directory.getAbsolutePath() + " directory");
 		}
-		return directory.listFiles().length == 0 ? false : true;
+		metrics.record("cleanDir", start, status);
+		return status;
 	}
 
 	/**
-	 * Checks and replaces string with regex patten in all htmlFile in directory
+	 * Checks and replaces string with regex patten in all html files in directory, files are rewritten in parallel
 	 * 
 	 * @param htmlSourceDir
 	 * @param regex
 	 * @param replaceWith
-	 * @return
+	 * @return false if the directory couldn't be read
 	 */
-//	public boolean replaceInSourceDir(File htmlSourceDir, String regex, String replaceWith) {
-//
-//		File[] sources = htmlSourceDir.listFiles(new FilenameFilter() {
-//
-////			@Override
-////			public boolean accept(File dir, String name) {
-////
-////				if (name.endsWith(".html"))
-////					return true;
-////				else
-////					return false;
-////			}
-//		});
-
-//		for (File source : sources) {
-//			replaceInSource(source, regex, replaceWith);
-//		}
-//		return true;
-//	}
+	public boolean replaceInSourceDir(File htmlSourceDir, String regex, String replaceWith) {
+
+		OperationMetrics.Timing timing = metrics.time("replaceInSourceDir");
+		boolean status = false;
+		HtmlRewriter rewriter = new HtmlRewriter().addRegex(regex, replaceWith);
+		try {
+			rewriter.rewriteDir(htmlSourceDir, new FileFilter() {
+
+				@Override
+				public boolean accept(File file) {
+
+					return file.isFile() && file.getName().endsWith(".html");
+				}
+			}, Runtime.getRuntime().availableProcessors());
+			status = timing.result(true);
+		} catch (IOException e) {
+			log.error("Failed replacing in source directory: " + htmlSourceDir.getAbsolutePath());
+			e.printStackTrace();
+		} finally {
+			timing.stop();
+		}
+		return status;
+	}
 
 	/**
 	 * Checks and replaces string with regex patten in htmlFile
@@ -915,74 +1212,26 @@ public class SeleniumUtils {
 	 * @param htmlSource
 	 * @param regex
 	 * @param replaceWith
-	 * @return
+	 *            - may refer to groups of the regex as $1
+	 * @return true if something was replaced
 	 */
 	public boolean replaceInSource(File htmlSource, String regex, String replaceWith) {
 
-		Pattern pattern = Pattern.compile(regex);
-		Boolean isReplaced = false;
-		int matchCount = 0;
-		File temp = new File(htmlSource.getAbsoluteFile() + ".temp");
-
-		BufferedReader br = null;
-		try {
-			br = new BufferedReader(new FileReader(htmlSource));
-		} catch (FileNotFoundException e) {
-			log.error("Failed opening source file: " + htmlSource.getAbsolutePath());
-			e.printStackTrace();
-		}
-
-		PrintWriter pw = null;
+		OperationMetrics.Timing timing = metrics.time("replaceInSource");
 		try {
-			pw = new PrintWriter(temp);
-		} catch (FileNotFoundException e) {
-			log.error("Failed opening new file to write the modified source: " + temp.getAbsolutePath());
-			e.printStackTrace();
-		}
-
-		String line = null;
-		try {
-			while ((line = br.readLine()) != null) {
-				if (pattern.matcher(line).find()) {
-					log.debug("Pattern match line: " + line);
-					line = line.replaceAll(regex, "");
-					log.debug("Replaced line: " + line);
-					isReplaced = true;
-					matchCount++;
-				}
-
-				pw.write(line);
-				pw.flush();
+			int matchCount = new HtmlRewriter().addRegex(regex, replaceWith).rewrite(htmlSource);
+			// no match is not a failure
+			timing.result(true);
+			if (matchCount > 0) {
+				log.info("Replaced " + matchCount + " match(es) in " + htmlSource.getAbsolutePath());
 			}
+			return matchCount > 0;
 		} catch (IOException e) {
-			log.error("Failed while reading source file: " + htmlSource.getAbsolutePath());
+			log.error("Failed while rewriting source file: " + htmlSource.getAbsolutePath());
 			e.printStackTrace();
-			try {
-				br.close();
-			} catch (IOException e1) {
-				e1.printStackTrace();
-			}
-			pw.close();
-		}
-
-		try {
-			br.close();
-		} catch (IOException e) {
-			log.error("Failed while closing source file: " + htmlSource.getAbsolutePath());
-			e.printStackTrace();
-		}
-		pw.close();
-
-		log.debug("Matched and replaced: " + matchCount);
-		if (matchCount > 0) { // match found replace the original source with updated source
-			htmlSource.delete();
-			log.info("Replacing modified source " + temp.getAbsolutePath() + ">>" + htmlSource.getAbsolutePath());
-			temp.renameTo(htmlSource);
+			return false;
+		} finally {
+			timing.stop();
 		}
-		// remove the temp file
-		if (temp.exists())
-			temp.delete();
-
-		return isReplaced;
 	}
 }
\ No newline at end of file
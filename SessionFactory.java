@@ -0,0 +1,37 @@
+package selenium;
+
+/**
+ * Creates, checks, cleans and destroys the sessions held by a {@link SessionPool}
+ * 
+ * @author naveenc
+ * 
+ * @param <T>
+ *            - session type, WebDriver or WebClient
+ */
+public interface SessionFactory<T> {
+
+	/**
+	 * @return new session, ready to use
+	 * @throws Exception
+	 */
+	T create() throws Exception;
+
+	/**
+	 * Health check done before a session is handed out
+	 * 
+	 * @param session
+	 * @return false if the session must be destroyed
+	 */
+	boolean validate(T session);
+
+	/**
+	 * Clears everything a borrower left behind, like cookies, extra windows and the selected frame
+	 * 
+	 * @param session
+	 * @throws Exception
+	 *             if the session can't be reused
+	 */
+	void reset(T session) throws Exception;
+
+	void destroy(T session);
+}
@@ -0,0 +1,307 @@
+package selenium;
+
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps WebDriver / WebClient sessions alive between jobs, so browser start up is paid once instead of per run.
+ * 1. warm up -> creates the minimum number of sessions up front.
+ * 2. borrow -> hands out an idle session after a health check, creates one if none is idle and the maximum is not reached.
+ * 3. release -> resets cookies of all domains, windows and frames before the next borrower gets it, a session that
+ * can't be reset is destroyed.
+ * 4. recycle -> destroys sessions after the given number of uses or when the heap is above the given threshold.
+ *
+ * @author naveenc
+ *
+ * @param <T>
+ */
+public class SessionPool<T> {
+
+	private final Logger log = LoggerFactory.getLogger(SessionPool.class);
+
+	private final SessionFactory<T> factory;
+	private final int minSize;
+	private final int maxSize;
+	private final Semaphore permits;
+	private final LinkedBlockingDeque<PooledSession<T>> idle = new LinkedBlockingDeque<PooledSession<T>>();
+	private final AtomicInteger liveCount = new AtomicInteger();
+	private volatile int maxUses = Integer.MAX_VALUE;
+	private volatile double memoryThreshold = 1d;
+	private volatile boolean shutdown;
+
+	private final AtomicLong createdCount = new AtomicLong();
+	private final AtomicLong destroyedCount = new AtomicLong();
+	private final AtomicLong borrowCount = new AtomicLong();
+
+	/**
+	 * @param factory
+	 * @param minSize
+	 *            - sessions kept alive even when idle
+	 * @param maxSize
+	 *            - sessions alive at most, borrowers wait above it
+	 */
+	public SessionPool(SessionFactory<T> factory, int minSize, int maxSize) {
+
+		if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+			throw new IllegalArgumentException("Invalid pool size min: " + minSize + " max: " + maxSize);
+		}
+		this.factory = factory;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.permits = new Semaphore(maxSize, true);
+	}
+
+	/**
+	 * A session is destroyed after it was borrowed this many times
+	 *
+	 * @param maxUses
+	 */
+	public void setMaxUses(int maxUses) {
+
+		this.maxUses = maxUses;
+	}
+
+	/**
+	 * Returned sessions are destroyed while the used heap is above this fraction of the max heap
+	 *
+	 * @param memoryThreshold
+	 *            - 0 to 1
+	 */
+	public void setMemoryThreshold(double memoryThreshold) {
+
+		this.memoryThreshold = memoryThreshold;
+	}
+
+	/**
+	 * Creates sessions until the minimum size is reached
+	 *
+	 * @return number of sessions created
+	 */
+	public int warmUp() {
+
+		int created = 0;
+		while (!shutdown && reserve(minSize)) {
+			try {
+				idle.offerLast(newSession());
+				created++;
+			} catch (Exception e) {
+				liveCount.decrementAndGet();
+				log.error("Failed creating session while warming up the pool", e);
+				break;
+			}
+		}
+		log.info("Session pool warmed up with " + created + " new session(s), " + liveCount.get() + " alive");
+		return created;
+	}
+
+	/**
+	 * Borrows a healthy session. Close the returned session to give it back
+	 *
+	 * @param timeoutInMilliSec
+	 *            - time to wait for a free session when the pool is at its maximum
+	 * @return session
+	 * @throws TimeoutException
+	 *             no session became free in time
+	 * @throws Exception
+	 *             creating a new session failed
+	 */
+	public PooledSession<T> borrow(long timeoutInMilliSec) throws Exception {
+
+		if (shutdown) {
+			throw new IllegalStateException("Session pool is shut down");
+		}
+		if (!permits.tryAcquire(timeoutInMilliSec, TimeUnit.MILLISECONDS)) {
+			throw new TimeoutException("No session free after " + timeoutInMilliSec + " ms, pool size " + maxSize);
+		}
+
+		try {
+			PooledSession<T> pooled = null;
+			while (pooled == null) {
+				pooled = idle.pollFirst();
+				if (pooled == null) {
+					if (reserve(maxSize)) {
+						try {
+							pooled = newSession();
+						} catch (Exception e) {
+							liveCount.decrementAndGet();
+							throw e;
+						}
+						break;
+					}
+					// all sessions are alive while this borrower holds a permit, a warm up is still starting one
+					if (shutdown) {
+						throw new IllegalStateException("Session pool is shut down");
+					}
+					pooled = idle.pollFirst(100L, TimeUnit.MILLISECONDS);
+					if (pooled == null) {
+						continue;
+					}
+				}
+				boolean healthy = false;
+				try {
+					healthy = factory.validate(pooled.get());
+				} catch (RuntimeException e) {
+					log.debug("Health check failed: " + e.getMessage());
+				}
+				if (!healthy) {
+					log.info("Destroying session which failed the health check");
+					destroy(pooled);
+					pooled = null;
+				}
+			}
+			pooled.markBorrowed();
+			borrowCount.incrementAndGet();
+			return pooled;
+		} catch (Exception e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Gives the session back. It is reset for the next borrower or destroyed when it is broken, used up or memory is short
+	 *
+	 * @param pooled
+	 */
+	void release(PooledSession<T> pooled) {
+
+		if (!pooled.markReturned()) {
+			log.debug("Session already returned to the pool");
+			return;
+		}
+		try {
+			if (shutdown || pooled.isBroken()) {
+				destroy(pooled);
+			} else if (pooled.getUseCount() >= maxUses) {
+				log.debug("Recycling session after " + pooled.getUseCount() + " uses");
+				destroy(pooled);
+			} else if (isMemoryAboveThreshold()) {
+				log.info("Recycling session, heap usage is above " + memoryThreshold);
+				destroy(pooled);
+			} else {
+				try {
+					factory.reset(pooled.get());
+					idle.offerFirst(pooled);
+				} catch (Exception e) {
+					log.error("Failed resetting session, destroying it", e);
+					destroy(pooled);
+				}
+			}
+		} finally {
+			permits.release();
+		}
+		refill();
+	}
+
+	/**
+	 * Destroys all idle sessions. Borrowed sessions are destroyed when they are returned
+	 */
+	public void shutdown() {
+
+		shutdown = true;
+		PooledSession<T> pooled;
+		while ((pooled = idle.pollFirst()) != null) {
+			destroy(pooled);
+		}
+		log.info("Session pool shut down. Created: " + createdCount.get() + " Destroyed: " + destroyedCount.get() + " Borrowed: " + borrowCount.get());
+	}
+
+	public int getIdleCount() {
+
+		return idle.size();
+	}
+
+	public int getLiveCount() {
+
+		return liveCount.get();
+	}
+
+	public int getActiveCount() {
+
+		return maxSize - permits.availablePermits();
+	}
+
+	public long getCreatedCount() {
+
+		return createdCount.get();
+	}
+
+	public long getDestroyedCount() {
+
+		return destroyedCount.get();
+	}
+
+	public long getBorrowCount() {
+
+		return borrowCount.get();
+	}
+
+	/*
+	 * takes a slot for a new session, false when the limit is reached
+	 */
+	private boolean reserve(int limit) {
+
+		int live;
+		do {
+			live = liveCount.get();
+			if (live >= limit) {
+				return false;
+			}
+		} while (!liveCount.compareAndSet(live, live + 1));
+		return true;
+	}
+
+	private PooledSession<T> newSession() throws Exception {
+
+		PooledSession<T> pooled = new PooledSession<T>(this, factory.create());
+		createdCount.incrementAndGet();
+		return pooled;
+	}
+
+	private void destroy(PooledSession<T> pooled) {
+
+		destroyedCount.incrementAndGet();
+		try {
+			factory.destroy(pooled.get());
+		} catch (RuntimeException e) {
+			log.error("Failed destroying session", e);
+		} finally {
+			// the slot is free once the old session is gone
+			liveCount.decrementAndGet();
+		}
+	}
+
+	/*
+	 * keeps the minimum alive without making the returning thread wait for a browser start
+	 */
+	private void refill() {
+
+		if (!shutdown && liveCount.get() < minSize) {
+			WaitManager.getInstance().schedule(new Runnable() {
+
+				@Override
+				public void run() {
+
+					warmUp();
+				}
+			}, 0L);
+		}
+	}
+
+	private boolean isMemoryAboveThreshold() {
+
+		if (memoryThreshold >= 1d) {
+			return false;
+		}
+		Runtime runtime = Runtime.getRuntime();
+		long used = runtime.totalMemory() - runtime.freeMemory();
+		return used > runtime.maxMemory() * memoryThreshold;
+	}
+}
@@ -0,0 +1,78 @@
+package selenium;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.gargoylesoftware.htmlunit.WebClient;
+
+public class SessionPoolTest {
+
+	public static void main(String[] a) throws Exception {
+
+		final AtomicInteger resets = new AtomicInteger();
+		final AtomicInteger destroyed = new AtomicInteger();
+		final AtomicInteger failingChecks = new AtomicInteger();
+		final WebClientSessionFactory htmlUnit = new WebClientSessionFactory(false);
+		SessionPool<WebClient> pool = new SessionPool<WebClient>(new SessionFactory<WebClient>() {
+
+			@Override
+			public WebClient create() {
+
+				return htmlUnit.create();
+			}
+
+			@Override
+			public boolean validate(WebClient webClient) {
+
+				if (failingChecks.getAndDecrement() > 0) {
+					throw new IllegalStateException("health check failed");
+				}
+				return htmlUnit.validate(webClient);
+			}
+
+			@Override
+			public void reset(WebClient webClient) {
+
+				resets.incrementAndGet();
+				htmlUnit.reset(webClient);
+			}
+
+			@Override
+			public void destroy(WebClient webClient) {
+
+				destroyed.incrementAndGet();
+				htmlUnit.destroy(webClient);
+			}
+		}, 1, 2);
+
+		//warm-up
+		check("warm-up creates the minimum", pool.warmUp() == 1 && pool.getIdleCount() == 1 && pool.getLiveCount() == 1);
+
+		//borrow and release
+		PooledSession<WebClient> session = pool.borrow(1000L);
+		WebClient warmClient = session.get();
+		check("borrow hands out the warm session", pool.getIdleCount() == 0 && pool.getActiveCount() == 1);
+		session.close();
+		check("release resets the session", resets.get() == 1 && pool.getIdleCount() == 1 && pool.getActiveCount() == 0);
+		session = pool.borrow(1000L);
+		check("released session is reused", session.get() == warmClient && pool.getCreatedCount() == 1);
+		session.close();
+
+		//health check throwing
+		failingChecks.set(1);
+		session = pool.borrow(1000L);
+		check("session failing the health check is destroyed", destroyed.get() == 1 && session.get() != warmClient && pool.getLiveCount() == 1);
+		session.close();
+
+		pool.shutdown();
+		check("shutdown destroys idle sessions", pool.getLiveCount() == 0 && destroyed.get() == 2);
+		System.out.println("All session pool checks passed...");
+	}
+
+	private static void check(String name, boolean passed) {
+
+		System.out.println(name + ": " + (passed ? "passed" : "FAILED"));
+		if (!passed) {
+			throw new AssertionError(name);
+		}
+	}
+}
@@ -0,0 +1,383 @@
+package selenium;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openqa.selenium.Cookie;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gargoylesoftware.htmlunit.WebClient;
+
+/**
+ * Keeps the cookie jar of a logged in session on local disk, per site and user name, so the next run can skip getLogin
+ * while the session is still valid. Files are encrypted with AES-GCM using a key derived from the vault passphrase.
+ * Tracks how often a stored session could be reused and how much login time that saved.
+ *
+ * @author naveenc
+ *
+ */
+public class SessionVault {
+
+	private static final int FORMAT_VERSION = 1;
+	private static final int KEY_ITERATIONS = 65536;
+	private static final int IV_LENGTH = 12;
+	private static final int TAG_LENGTH = 128;
+
+	private final Logger log = LoggerFactory.getLogger(SessionVault.class);
+	private final File directory;
+	private final SecretKey key;
+	private final SecureRandom random = new SecureRandom();
+	private long probeTimeInMilliSec = 5000L;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong hitProbeMillis = new AtomicLong();
+	private final AtomicLong logins = new AtomicLong();
+	private final AtomicLong loginMillis = new AtomicLong();
+
+	/**
+	 * @param directory
+	 *            - where the session files are kept
+	 * @param passphrase
+	 *            - used to derive the encryption key
+	 * @throws IOException
+	 *             vault directory or salt can't be created
+	 * @throws GeneralSecurityException
+	 *             key can't be derived
+	 */
+	public SessionVault(File directory, char[] passphrase) throws IOException, GeneralSecurityException {
+
+		this.directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Failed creating session vault directory " + directory.getAbsolutePath());
+		}
+
+		File saltFile = new File(directory, "vault.salt");
+		byte[] salt;
+		if (saltFile.exists()) {
+			salt = Files.readAllBytes(saltFile.toPath());
+		} else {
+			salt = new byte[16];
+			random.nextBytes(salt);
+			Files.write(saltFile.toPath(), salt);
+		}
+		SecretKeyFactory keyFactory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+		byte[] encoded = keyFactory.generateSecret(new PBEKeySpec(passphrase, salt, KEY_ITERATIONS, 256)).getEncoded();
+		key = new SecretKeySpec(encoded, "AES");
+	}
+
+	/**
+	 * Time the logout xpath is waited for when checking a restored session
+	 *
+	 * @param probeTimeInMilliSec
+	 */
+	public void setProbeTime(long probeTimeInMilliSec) {
+
+		this.probeTimeInMilliSec = probeTimeInMilliSec;
+	}
+
+	public long getProbeTime() {
+
+		return probeTimeInMilliSec;
+	}
+
+	/**
+	 * Stores the cookies of the logged in driver
+	 *
+	 * @param site
+	 * @param username
+	 * @param webDriver
+	 * @return false if the session couldn't be written
+	 */
+	public boolean save(String site, String username, final WebDriver webDriver) {
+
+		return write(site, username, new ArrayList<Cookie>(webDriver.manage().getCookies()));
+	}
+
+	/**
+	 * Stores the cookies of the logged in web client
+	 *
+	 * @param site
+	 * @param username
+	 * @param webClient
+	 * @return false if the session couldn't be written
+	 */
+	public boolean save(String site, String username, WebClient webClient) {
+
+		List<Cookie> cookies = new ArrayList<Cookie>();
+		for (com.gargoylesoftware.htmlunit.util.Cookie cookie : webClient.getCookieManager().getCookies()) {
+			cookies.add(new Cookie(cookie.getName(), cookie.getValue(), cookie.getDomain(), cookie.getPath(), cookie.getExpires(), cookie.isSecure(), cookie.isHttpOnly()));
+		}
+		return write(site, username, cookies);
+	}
+
+	/**
+	 * Opens the site url and adds the stored cookies to the driver. Caller still has to check the session is alive
+	 *
+	 * @param site
+	 * @param username
+	 * @param webDriver
+	 * @param siteUrl
+	 *            - page opened so that the cookies belong to the right domain
+	 * @return false if there is no unexpired stored session
+	 */
+	public boolean restore(String site, String username, final WebDriver webDriver, String siteUrl) {
+
+		List<Cookie> cookies = read(site, username);
+		if (cookies.isEmpty()) {
+			return false;
+		}
+		webDriver.get(siteUrl);
+		for (Cookie cookie : cookies) {
+			try {
+				webDriver.manage().addCookie(cookie);
+			} catch (WebDriverException e) {
+				log.debug("Skipped stored cookie " + cookie.getName() + ": " + e.getMessage());
+			}
+		}
+		webDriver.navigate().refresh();
+		return true;
+	}
+
+	/**
+	 * Adds the stored cookies to the web client, using the same mapping as copyCookiesWebDriverToHtmlUnitWebClient
+	 *
+	 * @param site
+	 * @param username
+	 * @param webClient
+	 * @return false if there is no unexpired stored session
+	 */
+	public boolean restore(String site, String username, WebClient webClient) {
+
+		List<Cookie> cookies = read(site, username);
+		for (Cookie cookie : cookies) {
+			webClient.getCookieManager().addCookie(SeleniumUtils.getInstance().toHtmlUnitCookie(cookie));
+		}
+		return !cookies.isEmpty();
+	}
+
+	/**
+	 * Removes the stored session, e.g. after it was found expired
+	 *
+	 * @param site
+	 * @param username
+	 */
+	public void invalidate(String site, String username) {
+
+		File file = sessionFile(site, username);
+		if (file.exists() && !file.delete()) {
+			log.error("Failed removing expired session " + file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * A restored session was still logged in
+	 *
+	 * @param probeMillis
+	 *            - time taken to restore and check it
+	 */
+	public void recordHit(long probeMillis) {
+
+		hits.incrementAndGet();
+		hitProbeMillis.addAndGet(probeMillis);
+	}
+
+	/**
+	 * No session stored or it was expired, the real login is needed
+	 */
+	public void recordMiss() {
+
+		misses.incrementAndGet();
+	}
+
+	/**
+	 * @param millis
+	 *            - time taken by a real login
+	 */
+	public void recordLogin(long millis) {
+
+		logins.incrementAndGet();
+		loginMillis.addAndGet(millis);
+	}
+
+	public double getHitRatio() {
+
+		long total = hits.get() + misses.get();
+		return total == 0 ? 0d : (double) hits.get() / total;
+	}
+
+	/**
+	 * @return average real login time times the hits, minus the time spent restoring those sessions
+	 */
+	public long getLoginMillisSaved() {
+
+		long loginCount = logins.get();
+		if (loginCount == 0) {
+			return 0L;
+		}
+		return Math.max(0L, hits.get() * (loginMillis.get() / loginCount) - hitProbeMillis.get());
+	}
+
+	public long getHits() {
+
+		return hits.get();
+	}
+
+	public long getMisses() {
+
+		return misses.get();
+	}
+
+	private boolean write(String site, String username, List<Cookie> cookies) {
+
+		File file = sessionFile(site, username);
+		File temp = null;
+		try {
+			// own temp file per save, concurrent saves of the same user don't write into each other
+			temp = SeleniumUtils.getInstance().createTempFileFor(file, ".temp");
+			ByteArrayOutputStream plain = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(plain);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(cookies.size());
+			for (Cookie cookie : cookies) {
+				out.writeUTF(cookie.getName());
+				out.writeUTF(cookie.getValue());
+				writeNullable(out, cookie.getDomain());
+				writeNullable(out, cookie.getPath());
+				out.writeLong(cookie.getExpiry() == null ? -1L : cookie.getExpiry().getTime());
+				out.writeBoolean(cookie.isSecure());
+				out.writeBoolean(cookie.isHttpOnly());
+			}
+			out.flush();
+
+			byte[] iv = new byte[IV_LENGTH];
+			random.nextBytes(iv);
+			Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+			cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, iv));
+			byte[] encrypted = cipher.doFinal(plain.toByteArray());
+
+			ByteArrayOutputStream content = new ByteArrayOutputStream(IV_LENGTH + encrypted.length);
+			content.write(iv);
+			content.write(encrypted);
+			Files.write(temp.toPath(), content.toByteArray());
+			SeleniumUtils.getInstance().moveAtomically(temp, file);
+			log.debug("Stored " + cookies.size() + " cookie(s) of " + username + " for " + site);
+			return true;
+		} catch (IOException e) {
+			log.error("Failed storing session of " + username + " in " + file.getAbsolutePath());
+		} catch (GeneralSecurityException e) {
+			log.error("Failed encrypting session of " + username + ": " + e.getMessage());
+		}
+		if (temp != null) {
+			temp.delete();
+		}
+		return false;
+	}
+
+	private List<Cookie> read(String site, String username) {
+
+		List<Cookie> cookies = new ArrayList<Cookie>();
+		File file = sessionFile(site, username);
+		if (!file.exists()) {
+			return cookies;
+		}
+		try {
+			byte[] content = Files.readAllBytes(file.toPath());
+			if (content.length < IV_LENGTH + TAG_LENGTH / 8) {
+				// truncated write, same as no stored session
+				log.info("Ignoring truncated session file " + file.getAbsolutePath());
+				return cookies;
+			}
+			Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+			cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, Arrays.copyOf(content, IV_LENGTH)));
+			byte[] plain = cipher.doFinal(content, IV_LENGTH, content.length - IV_LENGTH);
+
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain));
+			if (in.readInt() != FORMAT_VERSION) {
+				log.info("Ignoring session file of unknown version " + file.getAbsolutePath());
+				return cookies;
+			}
+			long now = System.currentTimeMillis();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String name = in.readUTF();
+				String value = in.readUTF();
+				String domain = readNullable(in);
+				String path = readNullable(in);
+				long expiry = in.readLong();
+				boolean secure = in.readBoolean();
+				boolean httpOnly = in.readBoolean();
+				if (expiry != -1L && expiry < now) {
+					continue;
+				}
+				cookies.add(new Cookie(name, value, domain, path, expiry == -1L ? null : new Date(expiry), secure, httpOnly));
+			}
+		} catch (IOException e) {
+			log.error("Failed reading session file " + file.getAbsolutePath());
+		} catch (GeneralSecurityException e) {
+			// wrong passphrase or tampered file
+			log.error("Failed decrypting session file " + file.getAbsolutePath());
+		}
+		return cookies;
+	}
+
+	private File sessionFile(String site, String username) {
+
+		String siteKey = site;
+		try {
+			siteKey = new URL(site).getHost();
+		} catch (MalformedURLException e) {
+			// already a site name
+		}
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] hash = digest.digest((siteKey.toLowerCase() + "\n" + username).getBytes(StandardCharsets.UTF_8));
+			StringBuilder name = new StringBuilder();
+			for (byte b : hash) {
+				name.append(String.format("%02x", b));
+			}
+			return new File(directory, name.append(".session").toString());
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+
+	private static void writeNullable(DataOutputStream out, String value) throws IOException {
+
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readNullable(DataInputStream in) throws IOException {
+
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
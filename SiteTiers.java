@@ -0,0 +1,268 @@
+package selenium;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per site settings and the remembered tier of {@link TieredDriver}, shared by all sessions.
+ * A site escalated to the browser once stays there, so later sessions skip the HtmlUnit attempt. The remembered tiers
+ * can be saved and loaded, so the next run starts with them.
+ *
+ * @author naveenc
+ *
+ */
+public class SiteTiers {
+
+	private static final SiteTiers onlyOne = new SiteTiers();
+	private static final SiteProfile DEFAULT_PROFILE = new SiteProfile(true, false, false);
+
+	/**
+	 * Driver a site runs on
+	 */
+	public enum Tier {
+		HTMLUNIT, BROWSER
+	}
+
+	private final Logger log = LoggerFactory.getLogger(SiteTiers.class);
+	private final Map<String, SiteProfile> profiles = new ConcurrentHashMap<String, SiteProfile>();
+	private final Map<String, Tier> tiers = new ConcurrentHashMap<String, Tier>();
+	private final AtomicLong fastPageCount = new AtomicLong();
+	private final AtomicLong browserPageCount = new AtomicLong();
+	private final AtomicLong escalationCount = new AtomicLong();
+
+	public static SiteTiers getInstance() {
+
+		return onlyOne;
+	}
+
+	// singleton class
+	private SiteTiers() {
+
+	}
+
+	/**
+	 * @param site
+	 *            - host name of the site
+	 * @param profile
+	 */
+	public void setProfile(String site, SiteProfile profile) {
+
+		profiles.put(site.toLowerCase(), profile);
+	}
+
+	/**
+	 * @param site
+	 * @return profile of the site, javascript on and css off if none set
+	 */
+	public SiteProfile getProfile(String site) {
+
+		SiteProfile profile = profiles.get(site.toLowerCase());
+		return profile == null ? DEFAULT_PROFILE : profile;
+	}
+
+	/**
+	 * @param site
+	 * @return remembered tier, otherwise BROWSER for sites flagged to need one and HTMLUNIT for the rest
+	 */
+	public Tier getTier(String site) {
+
+		Tier tier = tiers.get(site.toLowerCase());
+		if (tier != null) {
+			return tier;
+		}
+		return getProfile(site).isBrowserRequired() ? Tier.BROWSER : Tier.HTMLUNIT;
+	}
+
+	/**
+	 * Remembers the site needs a real browser
+	 *
+	 * @param site
+	 * @param reason
+	 */
+	public void escalate(String site, String reason) {
+
+		if (tiers.put(site.toLowerCase(), Tier.BROWSER) != Tier.BROWSER) {
+			log.info("Site " + site + " moved to the browser tier: " + reason);
+		}
+		escalationCount.incrementAndGet();
+	}
+
+	/**
+	 * Forgets the remembered tier, the next page of the site tries HtmlUnit again
+	 *
+	 * @param site
+	 */
+	public void forget(String site) {
+
+		tiers.remove(site.toLowerCase());
+	}
+
+	void recordPage(Tier tier) {
+
+		(tier == Tier.HTMLUNIT ? fastPageCount : browserPageCount).incrementAndGet();
+	}
+
+	/**
+	 * @return pages loaded by HtmlUnit without escalation
+	 */
+	public long getFastPageCount() {
+
+		return fastPageCount.get();
+	}
+
+	public long getBrowserPageCount() {
+
+		return browserPageCount.get();
+	}
+
+	public long getEscalationCount() {
+
+		return escalationCount.get();
+	}
+
+	/**
+	 * Loads tiers saved by a previous run, site=TIER per line
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void load(File file) throws IOException {
+
+		if (!file.exists()) {
+			return;
+		}
+		Properties saved = new Properties();
+		InputStream in = Files.newInputStream(file.toPath());
+		try {
+			saved.load(in);
+		} finally {
+			in.close();
+		}
+		for (String site : saved.stringPropertyNames()) {
+			try {
+				tiers.put(site.toLowerCase(), Tier.valueOf(saved.getProperty(site).trim()));
+			} catch (IllegalArgumentException e) {
+				log.error("Unknown tier " + saved.getProperty(site) + " of site " + site + " in " + file.getAbsolutePath());
+			}
+		}
+		log.debug("Loaded " + saved.size() + " site tier(s) from " + file.getAbsolutePath());
+	}
+
+	/**
+	 * Saves the remembered tiers, replacing the file atomically
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void save(File file) throws IOException {
+
+		Properties saved = new Properties();
+		for (Map.Entry<String, Tier> entry : tiers.entrySet()) {
+			saved.setProperty(entry.getKey(), entry.getValue().name());
+		}
+		File temp = SeleniumUtils.getInstance().createTempFileFor(file, ".temp");
+		try {
+			OutputStream out = Files.newOutputStream(temp.toPath());
+			try {
+				saved.store(out, "site tiers of TieredDriver");
+			} finally {
+				out.close();
+			}
+			SeleniumUtils.getInstance().moveAtomically(temp, file);
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * How the HtmlUnit tier loads a site and when it gives up on it
+	 */
+	public static class SiteProfile {
+
+		// HtmlUnit reports errors for scripts real browsers run fine, a few of them don't mean the page is broken
+		public static final int DEFAULT_MAX_SCRIPT_ERRORS = 10;
+
+		private final boolean javascript;
+		private final boolean css;
+		private final boolean browserRequired;
+		private List<String> expectedXPaths = Collections.emptyList();
+		private long expectedWaitInMilliSec = 5000L;
+		private int maxScriptErrors = DEFAULT_MAX_SCRIPT_ERRORS;
+
+		/**
+		 * @param javascript
+		 * @param css
+		 * @param browserRequired
+		 *            - site flag, never try HtmlUnit
+		 */
+		public SiteProfile(boolean javascript, boolean css, boolean browserRequired) {
+
+			this.javascript = javascript;
+			this.css = css;
+			this.browserRequired = browserRequired;
+		}
+
+		/**
+		 * XPaths the pages of the site must show in HtmlUnit, any one of them is enough
+		 *
+		 * @param expectedXPaths
+		 * @param expectedWaitInMilliSec
+		 */
+		public void setExpectedXPaths(List<String> expectedXPaths, long expectedWaitInMilliSec) {
+
+			this.expectedXPaths = expectedXPaths;
+			this.expectedWaitInMilliSec = expectedWaitInMilliSec;
+		}
+
+		/**
+		 * @param maxScriptErrors
+		 *            - script errors a page may have before the site is escalated, default {@link #DEFAULT_MAX_SCRIPT_ERRORS}
+		 */
+		public void setMaxScriptErrors(int maxScriptErrors) {
+
+			this.maxScriptErrors = maxScriptErrors;
+		}
+
+		public boolean isJavascript() {
+
+			return javascript;
+		}
+
+		public boolean isCss() {
+
+			return css;
+		}
+
+		public boolean isBrowserRequired() {
+
+			return browserRequired;
+		}
+
+		public List<String> getExpectedXPaths() {
+
+			return expectedXPaths;
+		}
+
+		public long getExpectedWait() {
+
+			return expectedWaitInMilliSec;
+		}
+
+		public int getMaxScriptErrors() {
+
+			return maxScriptErrors;
+		}
+	}
+}
@@ -0,0 +1,434 @@
+package selenium;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gargoylesoftware.htmlunit.ProxyConfig;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebClientOptions;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+import com.gargoylesoftware.htmlunit.util.Cookie;
+
+/**
+ * Streams a response body to disk with constant memory, whatever the size of the file.
+ * 1. sniff -> the first bytes confirm the content type, a pdf without a content type or sent as plain binary is taken on
+ * its first bytes, no getContentAsString.
+ * 2. stream -> the body goes to a temp file next to the target through a FileChannel, zero-copy when HtmlUnit already
+ * spooled the body to disk, otherwise through a reusable direct buffer.
+ * 3. commit -> pdf trailer is checked and the temp file is renamed to the target atomically.
+ * Bills for the bill store are streamed over HttpClient with the session of the web client, HtmlUnit reads the whole
+ * body before handing it over, so a bill the store recognizes early couldn't be stopped.
+ *
+ * @author naveenc
+ *
+ */
+public class StreamingDownloader {
+
+	public static final int SNIFF_LENGTH = 1024;
+	private static final int BUFFER_SIZE = 256 * 1024;
+
+	private static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<ByteBuffer>() {
+
+		@Override
+		protected ByteBuffer initialValue() {
+
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+	};
+
+	/**
+	 * Content recognized from the first bytes of a body
+	 */
+	public enum SniffedType {
+		PDF, HTML, ZIP, PNG, JPEG, GIF, UNKNOWN
+	}
+
+	private final Logger log = LoggerFactory.getLogger(StreamingDownloader.class);
+	private CloseableHttpClient httpClient;
+
+	/**
+	 * Downloads the url without building a page and stores the body in the given file when the content type matches
+	 *
+	 * @param webClient
+	 * @param url
+	 * @param file
+	 * @param contentType
+	 *            - expected content type
+	 * @return false if the content type didn't match or the download failed
+	 */
+	public boolean download(WebClient webClient, String url, final File file, final String contentType) {
+
+		Boolean stored = load(webClient, url, new BodyHandler<Boolean>() {
+
+			@Override
+			public Boolean handle(InputStream in, String responseContentType, long contentLength) throws IOException {
+
+				return store(in, responseContentType, contentType, file);
+			}
+		});
+		return Boolean.TRUE.equals(stored);
+	}
+
+	/**
+	 * Downloads the url into the bill store, which drops bills already stored, and links the file to the stored bill.
+	 * The body is streamed over HttpClient with the cookies, user agent, proxy and time out of the web client; when the
+	 * store recognizes the bill from its first bytes the connection is dropped instead of reading the rest. Through a
+	 * socks proxy the web client loads the bill, the store then only skips writing it
+	 *
+	 * @param webClient
+	 * @param url
+	 * @param file
+	 * @param contentType
+	 *            - expected content type
+	 * @param billStore
+	 * @param site
+	 * @param account
+	 * @param billDate
+	 * @return store result, null if the content type didn't match or the download failed
+	 */
+	public BillStore.Result downloadBill(WebClient webClient, String url, File file, String contentType, BillStore billStore, String site, String account, String billDate) {
+
+		BodyHandler<BillStore.Result> handler = billHandler(file, contentType, billStore, site, account, billDate);
+		ProxyConfig proxy = webClient.getOptions().getProxyConfig();
+		if (proxy != null && proxy.getProxyHost() != null && proxy.isSocksProxy()) {
+			return load(webClient, url, handler);
+		}
+
+		HttpGet get = new HttpGet(url);
+		get.setConfig(requestConfig(webClient.getOptions()));
+		String userAgent = webClient.getBrowserVersion().getUserAgent();
+		if (userAgent != null) {
+			get.setHeader("User-Agent", userAgent);
+		}
+		HttpClientContext context = HttpClientContext.create();
+		context.setCookieStore(toCookieStore(webClient));
+		CloseableHttpResponse response = null;
+		try {
+			response = getHttpClient().execute(get, context);
+			int statusCode = response.getStatusLine().getStatusCode();
+			HttpEntity entity = response.getEntity();
+			if (statusCode >= 400 || entity == null) {
+				EntityUtils.consumeQuietly(entity);
+				log.error("Failed with status code: " + statusCode + ". Stopped download");
+				return null;
+			}
+			Header type = entity.getContentType();
+			InputStream in = entity.getContent();
+			try {
+				BillStore.Result result = handler.handle(in, type == null ? null : type.getValue(), entity.getContentLength());
+				if (result == null || result.isEarlyAborted()) {
+					// closing the stream would read the rest of the body, drop the connection
+					get.abort();
+				}
+				return result;
+			} finally {
+				IOUtils.closeQuietly(in);
+			}
+		} catch (IOException e) {
+			get.abort();
+			log.error("Failed while reading from InputStream of " + url);
+			e.printStackTrace();
+			return null;
+		} finally {
+			IOUtils.closeQuietly(response);
+		}
+	}
+
+	private BodyHandler<BillStore.Result> billHandler(final File file, final String contentType, final BillStore billStore, final String site, final String account, final String billDate) {
+
+		return new BodyHandler<BillStore.Result>() {
+
+			@Override
+			public BillStore.Result handle(InputStream in, String responseContentType, long contentLength) throws IOException {
+
+				byte[] head = new byte[SNIFF_LENGTH];
+				int headLength = readFully(in, head);
+				if (!isExpected(responseContentType, contentType, sniff(head, headLength))) {
+					return null;
+				}
+				InputStream body = new SequenceInputStream(new ByteArrayInputStream(head, 0, headLength), in);
+				return billStore.store(site, account, billDate, body, contentLength, file);
+			}
+		};
+	}
+
+	private synchronized CloseableHttpClient getHttpClient() {
+
+		if (httpClient == null) {
+			// bills of several sessions of one portal are downloaded at the same time
+			httpClient = HttpClients.custom().setMaxConnTotal(64).setMaxConnPerRoute(8).evictIdleConnections(30, TimeUnit.SECONDS).build();
+		}
+		return httpClient;
+	}
+
+	private static RequestConfig requestConfig(WebClientOptions options) {
+
+		RequestConfig.Builder config = RequestConfig.custom().setConnectTimeout(options.getTimeout()).setSocketTimeout(options.getTimeout()).setCookieSpec(CookieSpecs.STANDARD);
+		ProxyConfig proxy = options.getProxyConfig();
+		if (proxy != null && proxy.getProxyHost() != null) {
+			config.setProxy(new HttpHost(proxy.getProxyHost(), proxy.getProxyPort()));
+		}
+		return config.build();
+	}
+
+	private static CookieStore toCookieStore(WebClient webClient) {
+
+		CookieStore cookieStore = new BasicCookieStore();
+		for (Cookie cookie : webClient.getCookieManager().getCookies()) {
+			cookieStore.addCookie(cookie.toHttpClient());
+		}
+		return cookieStore;
+	}
+
+	private <T> T load(WebClient webClient, String url, BodyHandler<T> handler) {
+
+		WebResponse response = null;
+		InputStream in = null;
+		try {
+			webClient.getOptions().setThrowExceptionOnFailingStatusCode(false);
+			response = webClient.loadWebResponse(new WebRequest(new URL(url)));
+			if (response.getStatusCode() >= 400) {
+				log.error("Failed with status code: " + response.getStatusCode() + ". Stopped download");
+				return null;
+			}
+			in = response.getContentAsStream();
+			return handler.handle(in, response.getContentType(), declaredLength(response));
+		} catch (IOException e) {
+			log.error("Failed while reading from InputStream of " + url);
+			e.printStackTrace();
+			return null;
+		} finally {
+			IOUtils.closeQuietly(in);
+			if (response != null) {
+				response.cleanUp();
+			}
+		}
+	}
+
+	/**
+	 * Checks the content type and streams the body to the file
+	 *
+	 * @param in
+	 *            - body, not closed
+	 * @param responseContentType
+	 *            - content type header, may be null
+	 * @param contentType
+	 *            - expected content type
+	 * @param file
+	 * @return false if the content type didn't match or the pdf is incomplete; file is left untouched then
+	 * @throws IOException
+	 */
+	public boolean store(InputStream in, String responseContentType, String contentType, File file) throws IOException {
+
+		byte[] head = new byte[SNIFF_LENGTH];
+		int headLength = readFully(in, head);
+		SniffedType sniffed = sniff(head, headLength);
+		if (!isExpected(responseContentType, contentType, sniffed)) {
+			return false;
+		}
+
+		File temp = SeleniumUtils.getInstance().createTempFileFor(file, ".download");
+		boolean committed = false;
+		try {
+			long size;
+			// read back for the pdf trailer check
+			FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				out.write(ByteBuffer.wrap(head, 0, headLength));
+				size = headLength + copy(in, out, headLength);
+				if (sniffed == SniffedType.PDF && !hasPdfTrailer(out, size)) {
+					log.error("Downloaded pdf has no %%EOF trailer, " + size + " bytes. Stopped download");
+					return false;
+				}
+			} finally {
+				out.close();
+			}
+			SeleniumUtils.getInstance().moveAtomically(temp, file);
+			committed = true;
+			log.debug("Stored " + size + " bytes in " + file.getAbsolutePath());
+			return true;
+		} finally {
+			if (!committed) {
+				temp.delete();
+			}
+		}
+	}
+
+	/**
+	 * The declared content type has to contain the expected one, for a pdf also the body has to look like one. Only a pdf
+	 * served without a content type or as plain binary (octet-stream, force-download) is taken on its first bytes alone
+	 *
+	 * @param responseContentType
+	 *            - content type header, may be null
+	 * @param contentType
+	 *            - expected content type
+	 * @param sniffed
+	 *            - type recognized from the first bytes
+	 * @return false if the body isn't what was asked for
+	 */
+	boolean isExpected(String responseContentType, String contentType, SniffedType sniffed) {
+
+		String declared = responseContentType == null ? "" : responseContentType;
+		boolean pdf = contentType.contains("pdf");
+		if (pdf && !(declared.toLowerCase().contains("pdf") || sniffed == SniffedType.PDF)) {
+			// if content is pdf extra checks are done the specified content type
+			log.error("Unexpected content type " + declared + " (" + sniffed + "). Stopped download");
+			return false;
+		} else if (!declared.contains(contentType) && !(pdf && sniffed == SniffedType.PDF && isBinary(declared))) {
+			log.info("Unexpected content type " + declared + " (" + sniffed + "). Stopped download");
+			return false;
+		}
+		return true;
+	}
+
+	/*
+	 * content types that don't say what the body is
+	 */
+	private static boolean isBinary(String declared) {
+
+		String type = declared.toLowerCase().trim();
+		return type.isEmpty() || type.startsWith("application/octet-stream") || type.startsWith("binary/octet-stream") || type.startsWith("application/force-download")
+				|| type.startsWith("application/x-download") || type.startsWith("application/download");
+	}
+
+	/**
+	 * Recognizes the content from its magic bytes. A pdf header may follow some junk, so the whole head is searched for it
+	 *
+	 * @param head
+	 * @param length
+	 * @return sniffed type
+	 */
+	public static SniffedType sniff(byte[] head, int length) {
+
+		if (startsWith(head, length, new byte[] { 0x50, 0x4B, 0x03, 0x04 })) {
+			return SniffedType.ZIP;
+		} else if (startsWith(head, length, new byte[] { (byte) 0x89, 0x50, 0x4E, 0x47 })) {
+			return SniffedType.PNG;
+		} else if (startsWith(head, length, new byte[] { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF })) {
+			return SniffedType.JPEG;
+		} else if (startsWith(head, length, "GIF8".getBytes(StandardCharsets.US_ASCII))) {
+			return SniffedType.GIF;
+		}
+		String text = new String(head, 0, length, StandardCharsets.ISO_8859_1);
+		if (text.contains("%PDF-")) {
+			return SniffedType.PDF;
+		}
+		String lower = text.trim().toLowerCase();
+		if (lower.startsWith("<!doctype html") || lower.startsWith("<html") || lower.contains("<head") || lower.contains("<body")) {
+			return SniffedType.HTML;
+		}
+		return SniffedType.UNKNOWN;
+	}
+
+	private long copy(InputStream in, FileChannel out, long position) throws IOException {
+
+		long copied = 0;
+		if (in instanceof FileInputStream) {
+			// body spooled to a temp file by HtmlUnit, let the kernel copy it
+			FileChannel source = ((FileInputStream) in).getChannel();
+			long count;
+			while ((count = out.transferFrom(source, position + copied, BUFFER_SIZE * 64L)) > 0) {
+				copied += count;
+			}
+			return copied;
+		}
+
+		ReadableByteChannel source = Channels.newChannel(in);
+		ByteBuffer buffer = BUFFER.get();
+		buffer.clear();
+		while (source.read(buffer) != -1) {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				copied += out.write(buffer);
+			}
+			buffer.clear();
+		}
+		return copied;
+	}
+
+	private boolean hasPdfTrailer(FileChannel channel, long size) throws IOException {
+
+		int window = (int) Math.min(SNIFF_LENGTH, size);
+		ByteBuffer tail = ByteBuffer.allocate(window);
+		long position = size - window;
+		while (tail.hasRemaining() && channel.read(tail, position + tail.position()) > 0) {
+			;
+		}
+		return new String(tail.array(), 0, tail.position(), StandardCharsets.ISO_8859_1).contains("%%EOF");
+	}
+
+	private static int readFully(InputStream in, byte[] buffer) throws IOException {
+
+		int total = 0;
+		int count;
+		while (total < buffer.length && (count = in.read(buffer, total, buffer.length - total)) != -1) {
+			total += count;
+		}
+		return total;
+	}
+
+	/*
+	 * Content-Length header, -1 if missing or the body is encoded
+	 */
+	private static long declaredLength(WebResponse response) {
+
+		String length = response.getResponseHeaderValue("Content-Length");
+		String encoding = response.getResponseHeaderValue("Content-Encoding");
+		if (length == null || (encoding != null && !encoding.equalsIgnoreCase("identity"))) {
+			return -1L;
+		}
+		try {
+			return Long.parseLong(length.trim());
+		} catch (NumberFormatException e) {
+			return -1L;
+		}
+	}
+
+	private interface BodyHandler<T> {
+
+		T handle(InputStream in, String responseContentType, long contentLength) throws IOException;
+	}
+
+	private static boolean startsWith(byte[] head, int length, byte[] magic) {
+
+		if (length < magic.length) {
+			return false;
+		}
+		for (int i = 0; i < magic.length; i++) {
+			if (head[i] != magic[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,322 @@
+package selenium;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.List;
+import java.util.Set;
+
+import org.openqa.selenium.By;
+import org.openqa.selenium.Cookie;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.OutputType;
+import org.openqa.selenium.TakesScreenshot;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.WebElement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * WebDriver which loads pages with HtmlUnit first and moves to a real browser only when a site needs one.
+ * 1. fast tier -> {@link TunedHtmlUnitDriver}, javascript and css per {@link SiteTiers.SiteProfile}.
+ * 2. check -> the page had more script errors than the profile allows, failed to load or shows none of the expected
+ * XPaths.
+ * 3. escalate -> a browser session is started, the cookies of the HtmlUnit session are carried over, the page is loaded
+ * again and the site is remembered in {@link SiteTiers} so its next sessions start on the browser.
+ * Sites flagged as browser-only start on the browser. Everything else is delegated to the driver of the current tier, so
+ * the facade can be passed to SeleniumUtils like any WebDriver. HtmlUnit can't take screenshots, a screenshot moves the
+ * session to the browser without flagging the site. A session never goes back from the browser.
+ *
+ * @author naveenc
+ *
+ */
+public class TieredDriver implements WebDriver, JavascriptExecutor, TakesScreenshot {
+
+	private final Logger log = LoggerFactory.getLogger(TieredDriver.class);
+	private final SessionFactory<WebDriver> fastFactory;
+	private final SessionFactory<WebDriver> browserFactory;
+	private final SiteTiers siteTiers;
+	private WebDriver current;
+	private SiteTiers.Tier tier;
+
+	/**
+	 * HtmlUnit fast tier, shared site tiers
+	 *
+	 * @param browserFactory
+	 *            - starts the real browser
+	 */
+	public TieredDriver(SessionFactory<WebDriver> browserFactory) {
+
+		this(WebDriverSessionFactory.tunedHtmlUnit(), browserFactory, SiteTiers.getInstance());
+	}
+
+	/**
+	 * @param fastFactory
+	 *            - starts the fast tier, tuned per site when it creates {@link TunedHtmlUnitDriver}
+	 * @param browserFactory
+	 *            - starts the real browser
+	 * @param siteTiers
+	 */
+	public TieredDriver(SessionFactory<WebDriver> fastFactory, SessionFactory<WebDriver> browserFactory, SiteTiers siteTiers) {
+
+		this.fastFactory = fastFactory;
+		this.browserFactory = browserFactory;
+		this.siteTiers = siteTiers;
+	}
+
+	/**
+	 * Loads the url on the tier of its site, escalating to the browser when HtmlUnit can't handle the page
+	 */
+	@Override
+	public void get(String url) {
+
+		String site = siteOf(url);
+		if (tier == SiteTiers.Tier.BROWSER) {
+			current.get(url);
+			siteTiers.recordPage(SiteTiers.Tier.BROWSER);
+			return;
+		}
+		if (siteTiers.getTier(site) == SiteTiers.Tier.BROWSER) {
+			escalate(url);
+			siteTiers.recordPage(SiteTiers.Tier.BROWSER);
+			return;
+		}
+
+		SiteTiers.SiteProfile profile = siteTiers.getProfile(site);
+		WebDriver fast = fastDriver();
+		String reason = null;
+		if (fast instanceof TunedHtmlUnitDriver) {
+			((TunedHtmlUnitDriver) fast).tune(profile.isJavascript(), profile.isCss());
+			((TunedHtmlUnitDriver) fast).resetScriptErrorCount();
+		}
+		try {
+			fast.get(url);
+		} catch (WebDriverException e) {
+			reason = "page failed to load, " + e.getMessage();
+		}
+		if (reason == null && fast instanceof TunedHtmlUnitDriver && ((TunedHtmlUnitDriver) fast).getScriptErrorCount() > profile.getMaxScriptErrors()) {
+			reason = ((TunedHtmlUnitDriver) fast).getScriptErrorCount() + " script error(s)";
+		}
+		if (reason == null && !profile.getExpectedXPaths().isEmpty() && !SeleniumUtils.getInstance().waitForXPaths(fast, profile.getExpectedWait(), profile.getExpectedXPaths(), true)) {
+			reason = "expected XPaths missing " + profile.getExpectedXPaths();
+		}
+
+		if (reason == null) {
+			siteTiers.recordPage(SiteTiers.Tier.HTMLUNIT);
+			return;
+		}
+		siteTiers.escalate(site, reason);
+		escalate(url);
+		siteTiers.recordPage(SiteTiers.Tier.BROWSER);
+	}
+
+	/**
+	 * Moves this session to the browser now, e.g. when a later step finds the page incomplete. The current url is loaded
+	 * again with the cookies of the HtmlUnit session
+	 */
+	public void escalate() {
+
+		if (tier != SiteTiers.Tier.BROWSER) {
+			String url = current == null ? null : current.getCurrentUrl();
+			if (url != null) {
+				siteTiers.escalate(siteOf(url), "escalated by caller");
+			}
+			escalate(url);
+		}
+	}
+
+	/**
+	 * @return tier of this session, null before the first page
+	 */
+	public SiteTiers.Tier getTier() {
+
+		return tier;
+	}
+
+	/**
+	 * @return driver of the current tier
+	 */
+	public WebDriver getActiveDriver() {
+
+		return current;
+	}
+
+	/*
+	 * starts the browser, carries the cookies over and loads the url, if any
+	 */
+	private void escalate(String url) {
+
+		WebDriver browser;
+		try {
+			browser = browserFactory.create();
+		} catch (Exception e) {
+			throw new WebDriverException("Failed starting the browser tier", e);
+		}
+
+		Set<Cookie> cookies = null;
+		if (current != null) {
+			try {
+				cookies = current.manage().getCookies();
+			} catch (WebDriverException e) {
+				log.debug("Failed reading cookies of the HtmlUnit session: " + e.getMessage());
+			}
+			fastFactory.destroy(current);
+		}
+		current = browser;
+		tier = SiteTiers.Tier.BROWSER;
+		if (url == null) {
+			return;
+		}
+
+		browser.get(url);
+		if (cookies != null && !cookies.isEmpty()) {
+			// cookies can only be added for the domain of the loaded page
+			int copied = 0;
+			for (Cookie cookie : cookies) {
+				try {
+					browser.manage().addCookie(cookie);
+					copied++;
+				} catch (WebDriverException e) {
+					log.debug("Cookie " + cookie.getName() + " not carried over: " + e.getMessage());
+				}
+			}
+			log.debug("Carried " + copied + " cookie(s) over to the browser");
+			if (copied > 0) {
+				browser.navigate().refresh();
+			}
+		}
+	}
+
+	private WebDriver fastDriver() {
+
+		if (current == null) {
+			try {
+				current = fastFactory.create();
+			} catch (Exception e) {
+				throw new WebDriverException("Failed starting the HtmlUnit tier", e);
+			}
+			tier = SiteTiers.Tier.HTMLUNIT;
+		}
+		return current;
+	}
+
+	private WebDriver active() {
+
+		return current == null ? fastDriver() : current;
+	}
+
+	private static String siteOf(String url) {
+
+		try {
+			return new URL(url).getHost().toLowerCase();
+		} catch (MalformedURLException e) {
+			return url;
+		}
+	}
+
+	@Override
+	public String getCurrentUrl() {
+
+		return active().getCurrentUrl();
+	}
+
+	@Override
+	public String getTitle() {
+
+		return active().getTitle();
+	}
+
+	@Override
+	public List<WebElement> findElements(By by) {
+
+		return active().findElements(by);
+	}
+
+	@Override
+	public WebElement findElement(By by) {
+
+		return active().findElement(by);
+	}
+
+	@Override
+	public String getPageSource() {
+
+		return active().getPageSource();
+	}
+
+	@Override
+	public void close() {
+
+		active().close();
+	}
+
+	@Override
+	public void quit() {
+
+		if (current != null) {
+			(tier == SiteTiers.Tier.BROWSER ? browserFactory : fastFactory).destroy(current);
+			current = null;
+			tier = null;
+		}
+	}
+
+	@Override
+	public Set<String> getWindowHandles() {
+
+		return active().getWindowHandles();
+	}
+
+	@Override
+	public String getWindowHandle() {
+
+		return active().getWindowHandle();
+	}
+
+	@Override
+	public TargetLocator switchTo() {
+
+		return active().switchTo();
+	}
+
+	@Override
+	public Navigation navigate() {
+
+		return active().navigate();
+	}
+
+	@Override
+	public Options manage() {
+
+		return active().manage();
+	}
+
+	@Override
+	public Object executeScript(String script, Object... args) {
+
+		return ((JavascriptExecutor) active()).executeScript(script, args);
+	}
+
+	@Override
+	public Object executeAsyncScript(String script, Object... args) {
+
+		return ((JavascriptExecutor) active()).executeAsyncScript(script, args);
+	}
+
+	/**
+	 * Screenshot of the current tier; a HtmlUnit session is moved to the browser first and the current url loaded again
+	 */
+	@Override
+	public <X> X getScreenshotAs(OutputType<X> target) {
+
+		WebDriver driver = active();
+		if (!(driver instanceof TakesScreenshot) && tier != SiteTiers.Tier.BROWSER) {
+			log.debug("HtmlUnit can't take screenshots, moving the session to the browser");
+			escalate(driver.getCurrentUrl());
+			driver = current;
+		}
+		if (!(driver instanceof TakesScreenshot)) {
+			throw new WebDriverException("Driver of the " + tier + " tier can't take screenshots");
+		}
+		return ((TakesScreenshot) driver).getScreenshotAs(target);
+	}
+}
@@ -2,13 +2,15 @@ package selenium;
 
 import org.openqa.selenium.By;
 import org.openqa.selenium.WebDriver;
-import org.openqa.selenium.htmlunit.HtmlUnitDriver;
 
 public class TitleTest {
-	public static void main(String []a) {
+	public static void main(String []a) throws Exception {
 		//initialization
 //		System.setProperty("webdriver.gecko.driver", "/Users/naveenchakar/Downloads/geckodriver");
-		WebDriver firefox = new HtmlUnitDriver();
+		SessionPool<WebDriver> pool = new SessionPool<WebDriver>(WebDriverSessionFactory.htmlUnit(false), 1, 2);
+		pool.warmUp();
+		PooledSession<WebDriver> session = pool.borrow(60000L);
+		WebDriver firefox = session.get();
 		//test-1
 		firefox.get("https://www.amazon.in/");
 		String title = "Shop Online";
@@ -18,9 +20,10 @@ public class TitleTest {
 		} else {
 			System.out.println("Test Failed...");
 		}
-		
+
 		System.out.println(firefox.findElements(By.id("courses")).size());
 		//termination
-		firefox.close();
+		session.close();
+		pool.shutdown();
 	}
 }
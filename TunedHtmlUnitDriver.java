@@ -0,0 +1,107 @@
+package selenium;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openqa.selenium.htmlunit.HtmlUnitDriver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gargoylesoftware.htmlunit.ScriptException;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import com.gargoylesoftware.htmlunit.javascript.JavaScriptErrorListener;
+
+/**
+ * HtmlUnitDriver with javascript and css switched per site and its script errors counted, used as the fast tier of
+ * {@link TieredDriver}. Images are never downloaded and script errors don't throw, they are only counted so that the
+ * caller can decide the page needs a real browser.
+ *
+ * @author naveenc
+ *
+ */
+public class TunedHtmlUnitDriver extends HtmlUnitDriver {
+
+	private final Logger log = LoggerFactory.getLogger(TunedHtmlUnitDriver.class);
+	private final AtomicInteger scriptErrors = new AtomicInteger();
+
+	/**
+	 * @param javascript
+	 * @param css
+	 */
+	public TunedHtmlUnitDriver(boolean javascript, boolean css) {
+
+		super(javascript);
+		// modifyWebClient runs inside the super constructor before the fields exist, so the client is tuned here
+		WebClient webClient = getWebClient();
+		webClient.getOptions().setThrowExceptionOnScriptError(false);
+		webClient.getOptions().setDownloadImages(false);
+		webClient.setJavaScriptErrorListener(new CountingErrorListener());
+		tune(javascript, css);
+	}
+
+	/**
+	 * Switches javascript and css for the next page
+	 *
+	 * @param javascript
+	 * @param css
+	 */
+	public void tune(boolean javascript, boolean css) {
+
+		setJavascriptEnabled(javascript);
+		getWebClient().getOptions().setCssEnabled(css);
+	}
+
+	/**
+	 * Deletes the cookies of all domains, deleteAllCookies only deletes the ones of the current page
+	 */
+	public void clearCookies() {
+
+		getWebClient().getCookieManager().clearCookies();
+	}
+
+	/**
+	 * @return script errors since the last reset
+	 */
+	public int getScriptErrorCount() {
+
+		return scriptErrors.get();
+	}
+
+	public void resetScriptErrorCount() {
+
+		scriptErrors.set(0);
+	}
+
+	private final class CountingErrorListener implements JavaScriptErrorListener {
+
+		@Override
+		public void scriptException(HtmlPage page, ScriptException scriptException) {
+
+			scriptErrors.incrementAndGet();
+			log.debug("Script error on " + page.getUrl() + ": " + scriptException.getMessage());
+		}
+
+		@Override
+		public void timeoutError(HtmlPage page, long allowedTime, long executionTime) {
+
+			scriptErrors.incrementAndGet();
+			log.debug("Script timeout on " + page.getUrl() + " after " + executionTime + " ms");
+		}
+
+		@Override
+		public void malformedScriptURL(HtmlPage page, String url, MalformedURLException malformedURLException) {
+
+			scriptErrors.incrementAndGet();
+			log.debug("Malformed script url on " + page.getUrl() + ": " + url);
+		}
+
+		@Override
+		public void loadScriptError(HtmlPage page, URL scriptUrl, Exception exception) {
+
+			scriptErrors.incrementAndGet();
+			log.debug("Failed loading script " + scriptUrl + " on " + page.getUrl());
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package selenium;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Parks the calling thread instead of spinning on System.currentTimeMillis(), so a waiting session does not hold a core.
+ * Waits can be cancelled from another thread, respect interruption and are tracked so that the number of parked threads and
+ * the time they have been parked can be read at any moment. Only LockSupport is used for parking, which keeps the waits
+ * cheap for virtual threads as well.
+ *
+ * @author naveenc
+ *
+ */
+public class WaitManager {
+
+	private static final WaitManager onlyOne = new WaitManager();
+	private final Logger log = LoggerFactory.getLogger(WaitManager.class);
+
+	private final Map<Thread, ParkedWait> parked = new ConcurrentHashMap<Thread, ParkedWait>();
+	private final AtomicLong totalParkedNanos = new AtomicLong();
+	private final AtomicLong completedWaits = new AtomicLong();
+	private final AtomicLong cancelledWaits = new AtomicLong();
+	private volatile ScheduledExecutorService scheduler;
+
+	public static WaitManager getInstance() {
+
+		return onlyOne;
+	}
+
+	// singleton class
+	private WaitManager() {
+
+	}
+
+	/**
+	 * Parks the current thread for the given milliseconds.
+	 *
+	 * @param timeInMilliSec
+	 * @return true - full time elapsed; false - wait was cancelled or the thread was interrupted (interrupt status is kept)
+	 */
+	public boolean waitFor(long timeInMilliSec) {
+
+		if (timeInMilliSec <= 0) {
+			return !Thread.currentThread().isInterrupted();
+		}
+
+		Thread current = Thread.currentThread();
+		ParkedWait wait = new ParkedWait(System.nanoTime());
+		long deadline = wait.startNanos + TimeUnit.MILLISECONDS.toNanos(timeInMilliSec);
+		parked.put(current, wait);
+		try {
+			long remaining;
+			while ((remaining = deadline - System.nanoTime()) > 0) {
+				if (wait.cancelled || current.isInterrupted()) {
+					break;
+				}
+				LockSupport.parkNanos(this, remaining);
+			}
+		} finally {
+			parked.remove(current);
+			totalParkedNanos.addAndGet(System.nanoTime() - wait.startNanos);
+		}
+
+		if (wait.cancelled || current.isInterrupted()) {
+			cancelledWaits.incrementAndGet();
+			return false;
+		}
+		completedWaits.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Cancels the wait of the given thread, if it is parked here
+	 *
+	 * @param thread
+	 * @return true if the thread was waiting
+	 */
+	public boolean cancel(Thread thread) {
+
+		ParkedWait wait = parked.get(thread);
+		if (wait == null) {
+			return false;
+		}
+		wait.cancelled = true;
+		LockSupport.unpark(thread);
+		return true;
+	}
+
+	/**
+	 * Cancels every wait currently parked
+	 *
+	 * @return number of cancelled waits
+	 */
+	public int cancelAll() {
+
+		int count = 0;
+		for (Thread thread : parked.keySet()) {
+			if (cancel(thread)) {
+				count++;
+			}
+		}
+		log.debug("Cancelled " + count + " parked wait(s)");
+		return count;
+	}
+
+	/**
+	 * Runs the task after the given delay on a shared daemon scheduler, for callers which should not block at all
+	 *
+	 * @param task
+	 * @param delayInMilliSec
+	 * @return handle to cancel the task
+	 */
+	public ScheduledFuture<?> schedule(Runnable task, long delayInMilliSec) {
+
+		return getScheduler().schedule(task, delayInMilliSec, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs the task repeatedly with the given period on the shared daemon scheduler
+	 *
+	 * @param task
+	 * @param periodInMilliSec
+	 * @return handle to cancel the task
+	 */
+	public ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long periodInMilliSec) {
+
+		return getScheduler().scheduleAtFixedRate(task, periodInMilliSec, periodInMilliSec, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return number of threads parked right now
+	 */
+	public int getParkedCount() {
+
+		return parked.size();
+	}
+
+	/**
+	 * @return thread name and the milliseconds it has been parked so far, for every parked thread
+	 */
+	public Map<String, Long> getParkedTimes() {
+
+		long now = System.nanoTime();
+		Map<String, Long> times = new LinkedHashMap<String, Long>();
+		for (Map.Entry<Thread, ParkedWait> entry : parked.entrySet()) {
+			times.put(entry.getKey().getName(), TimeUnit.NANOSECONDS.toMillis(now - entry.getValue().startNanos));
+		}
+		return times;
+	}
+
+	/**
+	 * @return milliseconds of the longest wait that is still parked, 0 if none
+	 */
+	public long getLongestParkedMillis() {
+
+		long now = System.nanoTime();
+		long longest = 0;
+		for (ParkedWait wait : parked.values()) {
+			longest = Math.max(longest, now - wait.startNanos);
+		}
+		return TimeUnit.NANOSECONDS.toMillis(longest);
+	}
+
+	/**
+	 * @return total milliseconds spent parked by finished waits
+	 */
+	public long getTotalParkedMillis() {
+
+		return TimeUnit.NANOSECONDS.toMillis(totalParkedNanos.get());
+	}
+
+	public long getCompletedCount() {
+
+		return completedWaits.get();
+	}
+
+	public long getCancelledCount() {
+
+		return cancelledWaits.get();
+	}
+
+	private ScheduledExecutorService getScheduler() {
+
+		ScheduledExecutorService current = scheduler;
+		if (current == null) {
+			synchronized (this) {
+				current = scheduler;
+				if (current == null) {
+					ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+						@Override
+						public Thread newThread(Runnable runnable) {
+
+							Thread thread = new Thread(runnable, "selenium-wait-scheduler");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+					executor.setRemoveOnCancelPolicy(true);
+					scheduler = current = executor;
+				}
+			}
+		}
+		return current;
+	}
+
+	private static final class ParkedWait {
+
+		private final long startNanos;
+		private volatile boolean cancelled;
+
+		private ParkedWait(long startNanos) {
+
+			this.startNanos = startNanos;
+		}
+	}
+}
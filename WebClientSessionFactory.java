@@ -0,0 +1,64 @@
+package selenium;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gargoylesoftware.htmlunit.TopLevelWindow;
+import com.gargoylesoftware.htmlunit.WebClient;
+
+/**
+ * {@link SessionFactory} for HtmlUnit WebClient sessions
+ * 
+ * @author naveenc
+ * 
+ */
+public class WebClientSessionFactory implements SessionFactory<WebClient> {
+
+	private final Logger log = LoggerFactory.getLogger(WebClientSessionFactory.class);
+	private final boolean enableJavascript;
+
+	public WebClientSessionFactory(boolean enableJavascript) {
+
+		this.enableJavascript = enableJavascript;
+	}
+
+	@Override
+	public WebClient create() {
+
+		WebClient webClient = new WebClient();
+		webClient.getOptions().setJavaScriptEnabled(enableJavascript);
+		webClient.getOptions().setThrowExceptionOnFailingStatusCode(false);
+		webClient.getOptions().setThrowExceptionOnScriptError(false);
+		return webClient;
+	}
+
+	@Override
+	public boolean validate(WebClient webClient) {
+
+		return webClient.getCurrentWindow() != null;
+	}
+
+	@Override
+	public void reset(WebClient webClient) {
+
+		List<TopLevelWindow> windows = webClient.getTopLevelWindows();
+		// keep the first window, close the ones opened by the borrower
+		for (int i = windows.size() - 1; i > 0; i--) {
+			windows.get(i).close();
+		}
+		webClient.getCookieManager().clearCookies();
+		webClient.getOptions().setJavaScriptEnabled(enableJavascript);
+	}
+
+	@Override
+	public void destroy(WebClient webClient) {
+
+		try {
+			webClient.close();
+		} catch (RuntimeException e) {
+			log.debug("WebClient session failed while closing: " + e.getMessage());
+		}
+	}
+}
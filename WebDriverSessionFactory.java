@@ -0,0 +1,150 @@
+package selenium;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.htmlunit.HtmlUnitDriver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link SessionFactory} for WebDriver sessions. Subclasses only decide which browser is started
+ * 
+ * @author naveenc
+ * 
+ */
+public abstract class WebDriverSessionFactory implements SessionFactory<WebDriver> {
+
+	private final Logger log = LoggerFactory.getLogger(WebDriverSessionFactory.class);
+
+	/**
+	 * @return newly started browser
+	 */
+	protected abstract WebDriver newDriver();
+
+	/**
+	 * Local HtmlUnitDriver sessions, no browser installation needed
+	 * 
+	 * @param enableJavascript
+	 * @return factory
+	 */
+	public static WebDriverSessionFactory htmlUnit(final boolean enableJavascript) {
+
+		return new WebDriverSessionFactory() {
+
+			@Override
+			protected WebDriver newDriver() {
+
+				return new SessionHtmlUnitDriver(enableJavascript);
+			}
+
+			@Override
+			protected boolean clearCookies(WebDriver webDriver) {
+
+				((SessionHtmlUnitDriver) webDriver).clearCookies();
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * {@link TunedHtmlUnitDriver} sessions, javascript on and css off until tuned for a site
+	 * 
+	 * @return factory
+	 */
+	public static WebDriverSessionFactory tunedHtmlUnit() {
+
+		return new WebDriverSessionFactory() {
+
+			@Override
+			protected WebDriver newDriver() {
+
+				return new TunedHtmlUnitDriver(true, false);
+			}
+
+			@Override
+			protected boolean clearCookies(WebDriver webDriver) {
+
+				((TunedHtmlUnitDriver) webDriver).clearCookies();
+				return true;
+			}
+		};
+	}
+
+	@Override
+	public WebDriver create() {
+
+		WebDriver webDriver = newDriver();
+		log.debug("Started new WebDriver session " + webDriver);
+		return webDriver;
+	}
+
+	@Override
+	public boolean validate(WebDriver webDriver) {
+
+		try {
+			return !webDriver.getWindowHandles().isEmpty();
+		} catch (WebDriverException e) {
+			log.debug("WebDriver session failed health check: " + e.getMessage());
+			return false;
+		}
+	}
+
+	@Override
+	public void reset(WebDriver webDriver) {
+
+		List<String> handles = new ArrayList<String>(webDriver.getWindowHandles());
+		// keep the first window, close the ones opened by the borrower
+		for (int i = 1; i < handles.size(); i++) {
+			webDriver.switchTo().window(handles.get(i));
+			webDriver.close();
+		}
+		webDriver.switchTo().window(handles.get(0));
+		webDriver.switchTo().defaultContent();
+		webDriver.get("about:blank");
+		// deleteAllCookies only reaches the domain of the current page, the next borrower may log in as someone else
+		if (!clearCookies(webDriver)) {
+			throw new WebDriverException("Cookies of all domains can't be cleared for " + webDriver + ", session is not reused");
+		}
+	}
+
+	/**
+	 * Deletes the cookies of every domain the session visited. WebDriver itself only reaches the cookies of the current
+	 * page, so by default nothing is cleared and the pool destroys the session instead of resetting it
+	 *
+	 * @param webDriver
+	 * @return false if the cookies can't be cleared
+	 */
+	protected boolean clearCookies(WebDriver webDriver) {
+
+		return false;
+	}
+
+	@Override
+	public void destroy(WebDriver webDriver) {
+
+		try {
+			webDriver.quit();
+		} catch (WebDriverException e) {
+			log.debug("WebDriver session already gone: " + e.getMessage());
+		}
+	}
+
+	/*
+	 * HtmlUnitDriver keeps its web client protected, the cookie manager holds the cookies of all domains
+	 */
+	private static final class SessionHtmlUnitDriver extends HtmlUnitDriver {
+
+		private SessionHtmlUnitDriver(boolean enableJavascript) {
+
+			super(enableJavascript);
+		}
+
+		private void clearCookies() {
+
+			getWebClient().getCookieManager().clearCookies();
+		}
+	}
+}
@@ -0,0 +1,413 @@
+package selenium;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scratch directories of the sessions of a run, published results and the clean up of what runs leave behind.
+ * 1. session -> every session gets its own directory under sessions/, no session sees the files of another.
+ * 2. publish -> a finished file or directory is renamed to its target in one step, readers never see it half written.
+ * 3. retire -> directories no longer needed are renamed into .trash/ of the workspace, which takes the same time for
+ * one file or a hundred thousand; the trash is deleted by low priority background threads, directories in parallel.
+ * A directory others still use, e.g. one a DownloadTracker watches, is emptied in place by retiring its entries.
+ * 4. quota -> the size of the sessions is scanned in the background, opening a session fails once it is above the quota.
+ * Trash left by a crashed run is deleted when the workspace is opened again. Renames only work within one file system,
+ * so directories retired into a workspace should live on the file system of its root.
+ *
+ * @author naveenc
+ *
+ */
+public class Workspace {
+
+	private static final String SESSIONS_DIR = "sessions";
+	private static final String TRASH_DIR = ".trash";
+	private static final int SPLIT_THRESHOLD = 32;
+	private static final Map<String, Workspace> workspaces = new ConcurrentHashMap<String, Workspace>();
+
+	private final Logger log = LoggerFactory.getLogger(Workspace.class);
+	private final File rootDir;
+	private final File sessionsDir;
+	private final File trashDir;
+	private final ForkJoinPool deleter;
+	private final AtomicLong sequence = new AtomicLong();
+	private volatile long quota = Long.MAX_VALUE;
+	private volatile long usage;
+
+	private final AtomicInteger pendingCount = new AtomicInteger();
+	private final AtomicLong retiredCount = new AtomicLong();
+	private final AtomicLong deletedFiles = new AtomicLong();
+	private final AtomicLong deletedBytes = new AtomicLong();
+	private final AtomicLong publishedCount = new AtomicLong();
+
+	/**
+	 * @param rootDir
+	 * @return the workspace of the directory, shared by all callers; trash of an earlier run is queued for deletion
+	 * @throws IOException
+	 */
+	public static Workspace forDirectory(File rootDir) throws IOException {
+
+		String key = rootDir.getAbsoluteFile().toPath().normalize().toString();
+		Workspace workspace = workspaces.get(key);
+		if (workspace == null) {
+			synchronized (workspaces) {
+				workspace = workspaces.get(key);
+				if (workspace == null) {
+					workspace = new Workspace(rootDir.getAbsoluteFile());
+					workspaces.put(key, workspace);
+				}
+			}
+		}
+		return workspace;
+	}
+
+	private Workspace(File rootDir) throws IOException {
+
+		this.rootDir = rootDir;
+		sessionsDir = new File(rootDir, SESSIONS_DIR);
+		trashDir = new File(rootDir, TRASH_DIR);
+		if (!(trashDir.isDirectory() || trashDir.mkdirs())) {
+			throw new IOException("Failed creating workspace " + rootDir.getAbsolutePath());
+		}
+		final AtomicInteger count = new AtomicInteger();
+		deleter = new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors() / 2), new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+
+			@Override
+			public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+
+				ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+				thread.setName("workspace-deleter-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		}, null, false);
+
+		File[] leftovers = trashDir.listFiles();
+		if (leftovers != null && leftovers.length > 0) {
+			log.debug("Deleting " + leftovers.length + " trash entries of an earlier run in " + trashDir.getAbsolutePath());
+			for (File leftover : leftovers) {
+				delete(leftover);
+			}
+		}
+	}
+
+	/**
+	 * Sessions can't be opened above it; checked against the last background scan
+	 *
+	 * @param quota
+	 *            - bytes of all session directories
+	 */
+	public void setQuota(long quota) {
+
+		this.quota = quota;
+		scanUsage();
+	}
+
+	/**
+	 * Creates the scratch directory of a session
+	 *
+	 * @param label
+	 *            - start of the directory name, e.g. site and account
+	 * @return new empty directory
+	 * @throws IOException
+	 *             - above the quota, or the directory can't be created
+	 */
+	public File openSession(String label) throws IOException {
+
+		if (usage > quota) {
+			throw new IOException("Workspace " + rootDir.getAbsolutePath() + " above its quota, " + usage + " of " + quota + " bytes used");
+		}
+		String name = label.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + System.currentTimeMillis() + "-" + sequence.incrementAndGet();
+		File sessionDir = new File(sessionsDir, name);
+		if (!sessionDir.mkdirs()) {
+			throw new IOException("Failed creating session directory " + sessionDir.getAbsolutePath());
+		}
+		return sessionDir;
+	}
+
+	/**
+	 * Retires the scratch directory of a finished session
+	 *
+	 * @param sessionDir
+	 */
+	public void closeSession(File sessionDir) {
+
+		retire(sessionDir);
+		scanUsage();
+	}
+
+	/**
+	 * Retires sessions not modified for the given time, e.g. the ones a crashed run left open
+	 *
+	 * @param ageInMilliSec
+	 * @return retired session directories
+	 */
+	public int closeSessionsOlderThan(long ageInMilliSec) {
+
+		File[] sessions = sessionsDir.listFiles();
+		int closed = 0;
+		if (sessions != null) {
+			long limit = System.currentTimeMillis() - ageInMilliSec;
+			for (File session : sessions) {
+				if (session.lastModified() < limit && retire(session)) {
+					closed++;
+				}
+			}
+		}
+		scanUsage();
+		return closed;
+	}
+
+	/**
+	 * Renames a finished file or directory to its target. A directory already at the target is retired first, so there
+	 * is a moment where the target is missing but never one where it is half written
+	 *
+	 * @param source
+	 * @param target
+	 * @throws IOException
+	 */
+	public void publish(File source, File target) throws IOException {
+
+		String[] existing = target.isDirectory() ? target.list() : null;
+		if (existing != null && existing.length > 0 && !retire(target)) {
+			throw new IOException("Failed retiring " + target.getAbsolutePath() + " before publishing " + source.getAbsolutePath());
+		}
+		target.getAbsoluteFile().getParentFile().mkdirs();
+		SeleniumUtils.getInstance().moveAtomically(source, target);
+		publishedCount.incrementAndGet();
+	}
+
+	/**
+	 * Moves the file or directory into the trash and returns; it is deleted in the background
+	 *
+	 * @param file
+	 * @return false if it couldn't be renamed, e.g. it is on another file system; it is left untouched then
+	 */
+	public boolean retire(File file) {
+
+		if (!file.exists()) {
+			return true;
+		}
+		File trash = new File(trashDir, file.getName() + "-" + System.nanoTime());
+		try {
+			Files.move(file.toPath(), trash.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			log.debug("Can't rename " + file.getAbsolutePath() + " into the trash, other file system");
+			return false;
+		} catch (IOException e) {
+			log.debug("Can't rename " + file.getAbsolutePath() + " into the trash: " + e.getMessage());
+			return false;
+		}
+		retiredCount.incrementAndGet();
+		delete(trash);
+		return true;
+	}
+
+	/**
+	 * Empties the directory in place by renaming its entries into the trash, the directory itself stays, so watches and
+	 * handles on it stay valid. Entries which can't be renamed are deleted in place
+	 *
+	 * @param directory
+	 * @return true if the directory exists and is empty
+	 */
+	public boolean retireContents(File directory) {
+
+		File[] files = directory.listFiles();
+		int deleted = 0;
+		if (files != null) {
+			for (File file : files) {
+				if (!retire(file) && FileUtils.deleteQuietly(file)) {
+					deleted++;
+				}
+			}
+		}
+		if (deleted > 0) {
+			log.debug("Deleted " + deleted + " entries of " + directory.getAbsolutePath() + " in place");
+		}
+		String[] left = directory.list();
+		return left != null && left.length == 0;
+	}
+
+	/**
+	 * Waits until the trash queued so far is deleted
+	 *
+	 * @param timeoutInMilliSec
+	 * @return true if nothing is left to delete
+	 */
+	public boolean awaitTrash(long timeoutInMilliSec) {
+
+		deleter.awaitQuiescence(timeoutInMilliSec, TimeUnit.MILLISECONDS);
+		return pendingCount.get() == 0;
+	}
+
+	public File getRootDir() {
+
+		return rootDir;
+	}
+
+	/**
+	 * @return bytes of all session directories at the last scan
+	 */
+	public long getUsage() {
+
+		return usage;
+	}
+
+	/**
+	 * @return bytes left on the file system of the workspace
+	 */
+	public long getFreeSpace() {
+
+		return rootDir.getUsableSpace();
+	}
+
+	/**
+	 * @return retired files and directories not deleted yet
+	 */
+	public int getPendingCount() {
+
+		return pendingCount.get();
+	}
+
+	public long getRetiredCount() {
+
+		return retiredCount.get();
+	}
+
+	public long getDeletedFiles() {
+
+		return deletedFiles.get();
+	}
+
+	public long getDeletedBytes() {
+
+		return deletedBytes.get();
+	}
+
+	public long getPublishedCount() {
+
+		return publishedCount.get();
+	}
+
+	private void delete(final File trash) {
+
+		pendingCount.incrementAndGet();
+		deleter.execute(new RecursiveAction() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() {
+
+				try {
+					new DeleteTree(trash).invoke();
+				} finally {
+					pendingCount.decrementAndGet();
+				}
+			}
+		});
+	}
+
+	/*
+	 * sums up the session directories on the deleter pool, the caller doesn't wait for it
+	 */
+	private void scanUsage() {
+
+		if (quota == Long.MAX_VALUE) {
+			return;
+		}
+		deleter.execute(new Runnable() {
+
+			@Override
+			public void run() {
+
+				usage = sessionsDir.isDirectory() ? FileUtils.sizeOfDirectory(sessionsDir) : 0L;
+			}
+		});
+	}
+
+	/**
+	 * Deletes a file, or a directory after its entries; large directories are split over the pool
+	 */
+	private final class DeleteTree extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+		private final File file;
+
+		private DeleteTree(File file) {
+
+			this.file = file;
+		}
+
+		@Override
+		protected void compute() {
+
+			if (Files.isDirectory(file.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+				File[] files = file.listFiles();
+				if (files != null) {
+					new DeleteFiles(files, 0, files.length).invoke();
+				}
+			} else {
+				deletedBytes.addAndGet(file.length());
+			}
+			if (file.delete()) {
+				deletedFiles.incrementAndGet();
+			} else if (file.exists()) {
+				log.error("Unable to delete file " + file);
+			}
+		}
+	}
+
+	private final class DeleteFiles extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+		private final File[] files;
+		private final int from;
+		private final int to;
+
+		private DeleteFiles(File[] files, int from, int to) {
+
+			this.files = files;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+
+			if (to - from > SPLIT_THRESHOLD) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new DeleteFiles(files, from, middle), new DeleteFiles(files, middle, to));
+				return;
+			}
+			List<DeleteTree> directories = new ArrayList<DeleteTree>();
+			for (int i = from; i < to; i++) {
+				DeleteTree tree = new DeleteTree(files[i]);
+				if (files[i].isDirectory()) {
+					directories.add(tree);
+				} else {
+					tree.compute();
+				}
+			}
+			invokeAll(directories);
+		}
+	}
+}
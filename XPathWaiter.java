@@ -0,0 +1,293 @@
+package selenium;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openqa.selenium.By;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Wait engine behind {@link SeleniumUtils#waitForXPaths(WebDriver, long, List, boolean)}. Instead of calling findElements
+ * back to back it either
+ * 1. POLLING -> polls with a growing interval between floor and ceiling, dropping back to the floor when the page changes.
+ * 2. MUTATION_OBSERVER -> injects a MutationObserver so the browser itself reports when the union xpath appears or disappears.
+ * Falls back to polling when the driver can't run async scripts.
+ *
+ * @author naveenc
+ *
+ */
+public class XPathWaiter {
+
+	public enum Mode {
+		POLLING, MUTATION_OBSERVER
+	}
+
+	/*
+	 * arguments: xpath, toAppear, timeout. Resolves with true once the condition holds, or with the last state when timed out
+	 */
+	private static final String OBSERVER_SCRIPT = "var xpath = arguments[0], toAppear = arguments[1], timeout = arguments[2], done = arguments[arguments.length - 1];"
+			+ "function satisfied() { return (document.evaluate(xpath, document, null, XPathResult.FIRST_ORDERED_NODE_TYPE, null).singleNodeValue != null) === toAppear; }"
+			+ "if (satisfied()) { done(true); return; }"
+			+ "var finished = false, timer = null;"
+			+ "var observer = new MutationObserver(function() { if (!finished && satisfied()) { finish(true); } });"
+			+ "function finish(result) { finished = true; observer.disconnect(); clearTimeout(timer); done(result); }"
+			+ "timer = setTimeout(function() { finish(satisfied()); }, timeout);"
+			+ "observer.observe(document, { childList: true, subtree: true, attributes: true, characterData: true });";
+
+	private static volatile XPathWaiter defaultWaiter = new XPathWaiter(Mode.POLLING, 50L, 1000L, 1.5d);
+
+	private final Logger log = LoggerFactory.getLogger(XPathWaiter.class);
+	private final Mode mode;
+	private final long floorMillis;
+	private final long ceilingMillis;
+	private final double backoff;
+	private long observerSliceMillis = 10000L;
+	private long scriptTimeoutMillis = 30000L;
+
+	private final AtomicLong totalWaits = new AtomicLong();
+	private final AtomicLong totalRoundTrips = new AtomicLong();
+	private final AtomicLong totalWaitMillis = new AtomicLong();
+
+	/**
+	 * @param mode
+	 * @param floorMillis
+	 *            - first (and smallest) interval between two polls
+	 * @param ceilingMillis
+	 *            - largest interval between two polls
+	 * @param backoff
+	 *            - factor the interval grows by after every unchanged poll
+	 */
+	public XPathWaiter(Mode mode, long floorMillis, long ceilingMillis, double backoff) {
+
+		if (floorMillis <= 0 || ceilingMillis < floorMillis || backoff < 1d) {
+			throw new IllegalArgumentException("Invalid polling interval floor: " + floorMillis + " ceiling: " + ceilingMillis + " backoff: " + backoff);
+		}
+		this.mode = mode;
+		this.floorMillis = floorMillis;
+		this.ceilingMillis = ceilingMillis;
+		this.backoff = backoff;
+	}
+
+	public static XPathWaiter getDefault() {
+
+		return defaultWaiter;
+	}
+
+	/**
+	 * Changes the waiter used by SeleniumUtils for all xpath waits
+	 *
+	 * @param waiter
+	 */
+	public static void setDefault(XPathWaiter waiter) {
+
+		defaultWaiter = waiter;
+	}
+
+	/**
+	 * Longest single observer script call. Long waits are split in slices, so a page navigation only costs one slice
+	 *
+	 * @param observerSliceMillis
+	 */
+	public void setObserverSliceMillis(long observerSliceMillis) {
+
+		this.observerSliceMillis = observerSliceMillis;
+	}
+
+	/**
+	 * Script timeout of the driver outside the observer waits. The driver can't report its current timeout, so an observer
+	 * wait raises it for its slices and sets it back to this value when done; 30 seconds, the WebDriver default, unless set
+	 *
+	 * @param scriptTimeoutMillis
+	 */
+	public void setScriptTimeoutMillis(long scriptTimeoutMillis) {
+
+		this.scriptTimeoutMillis = scriptTimeoutMillis;
+	}
+
+	/**
+	 * Joins the xpaths with '|' to one union xpath
+	 *
+	 * @param XPathList
+	 * @return union xpath
+	 */
+	public static String joinXPaths(List<String> XPathList) {
+
+		StringBuilder completeXpath = new StringBuilder();
+		for (int i = 0; i < XPathList.size(); i++) {
+			if (i == 0) {
+				// to avoid leading '|' symbol
+				completeXpath.append(XPathList.get(i));
+			} else {
+				completeXpath.append("|").append(XPathList.get(i));
+			}
+		}
+		return completeXpath.toString();
+	}
+
+	/**
+	 * waits for a given time and checks for xpath to appear or disappear
+	 *
+	 * @param webDriver
+	 * @param timeInMilliSec
+	 * @param XPathList
+	 * @param toAppear
+	 *            => true - appear; false - disappear;
+	 * @return result with the status, the number of driver round trips and the time taken
+	 */
+	public Result await(final WebDriver webDriver, long timeInMilliSec, List<String> XPathList, boolean toAppear) {
+
+		String completeXpath = joinXPaths(XPathList);
+		long start = System.currentTimeMillis();
+		long waitTime = start + timeInMilliSec;
+		Result result = new Result();
+
+		if (mode == Mode.MUTATION_OBSERVER && webDriver instanceof JavascriptExecutor) {
+			observe((JavascriptExecutor) webDriver, completeXpath, toAppear, waitTime, result);
+		}
+		if (!result.satisfied && !result.observed) {
+			poll(webDriver, completeXpath, toAppear, waitTime, result);
+		}
+
+		result.elapsedMillis = System.currentTimeMillis() - start;
+		totalWaits.incrementAndGet();
+		totalRoundTrips.addAndGet(result.roundTrips);
+		totalWaitMillis.addAndGet(result.elapsedMillis);
+		log.debug("Waited " + result.elapsedMillis + " ms with " + result.roundTrips + " round trip(s) for " + completeXpath + " to " + (toAppear ? "appear" : "disappear") + ": " + result.satisfied);
+		return result;
+	}
+
+	private void poll(final WebDriver webDriver, String completeXpath, boolean toAppear, long waitTime, Result result) {
+
+		long interval = floorMillis;
+		int lastCount = -1;
+		while (true) {
+			int count = webDriver.findElements(By.xpath(completeXpath)).size();
+			result.roundTrips++;
+			if (toAppear ? count > 0 : count == 0) {
+				result.satisfied = true;
+				return;
+			}
+
+			long remaining = waitTime - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return;
+			}
+			// page is still changing, keep polling fast
+			interval = (lastCount != -1 && count != lastCount) ? floorMillis : interval;
+			lastCount = count;
+			if (!WaitManager.getInstance().waitFor(Math.min(interval, remaining))) {
+				return;
+			}
+			interval = Math.min(ceilingMillis, (long) (interval * backoff));
+		}
+	}
+
+	private void observe(JavascriptExecutor executor, String completeXpath, boolean toAppear, long waitTime, Result result) {
+
+		long remaining;
+		try {
+			while ((remaining = waitTime - System.currentTimeMillis()) > 0) {
+				long slice = Math.min(remaining, observerSliceMillis);
+				try {
+					((WebDriver) executor).manage().timeouts().setScriptTimeout(slice + 5000L, TimeUnit.MILLISECONDS);
+					Object status = executor.executeAsyncScript(OBSERVER_SCRIPT, completeXpath, toAppear, slice);
+					result.roundTrips++;
+					result.observed = true;
+					if (Boolean.TRUE.equals(status)) {
+						result.satisfied = true;
+						return;
+					}
+				} catch (WebDriverException e) {
+					// navigation or no script support; polling takes the rest of the time
+					result.roundTrips++;
+					result.observed = false;
+					log.debug("MutationObserver wait failed, falling back to polling: " + e.getMessage());
+					return;
+				}
+			}
+		} finally {
+			restoreScriptTimeout((WebDriver) executor);
+		}
+	}
+
+	private void restoreScriptTimeout(WebDriver webDriver) {
+
+		try {
+			webDriver.manage().timeouts().setScriptTimeout(scriptTimeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (WebDriverException e) {
+			log.debug("Failed restoring the script timeout: " + e.getMessage());
+		}
+	}
+
+	public Mode getMode() {
+
+		return mode;
+	}
+
+	public long getFloorMillis() {
+
+		return floorMillis;
+	}
+
+	public long getCeilingMillis() {
+
+		return ceilingMillis;
+	}
+
+	public double getBackoff() {
+
+		return backoff;
+	}
+
+	public long getTotalWaits() {
+
+		return totalWaits.get();
+	}
+
+	public long getTotalRoundTrips() {
+
+		return totalRoundTrips.get();
+	}
+
+	public long getTotalWaitMillis() {
+
+		return totalWaitMillis.get();
+	}
+
+	/**
+	 * Outcome of one xpath wait
+	 */
+	public static final class Result {
+
+		private boolean satisfied;
+		private boolean observed;
+		private int roundTrips;
+		private long elapsedMillis;
+
+		public boolean isSatisfied() {
+
+			return satisfied;
+		}
+
+		public int getRoundTrips() {
+
+			return roundTrips;
+		}
+
+		public long getElapsedMillis() {
+
+			return elapsedMillis;
+		}
+
+		@Override
+		public String toString() {
+
+			return "satisfied=" + satisfied + ", roundTrips=" + roundTrips + ", elapsedMillis=" + elapsedMillis;
+		}
+	}
+}
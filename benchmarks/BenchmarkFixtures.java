@@ -0,0 +1,208 @@
+package selenium;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Offline fixtures of the benchmarks: an embedded http server on the loopback interface and generated files.
+ * Server paths:
+ * /delayed?ms=n -> page which adds div id=late n milliseconds after load.
+ * /frames?depth=n -> n nested iframes, the innermost holds input id=target.
+ * /payload?kb=n -> n kilobytes of a complete pdf, served as application/pdf.
+ * Generated content is seeded, so every run and every commit measures the same bytes.
+ *
+ * @author naveenc
+ *
+ */
+public class BenchmarkFixtures {
+
+	private static final long SEED = 20160101L;
+
+	private final HttpServer server;
+	// generated once per size, so a download measures the transfer and not the generation
+	private final Map<Integer, byte[]> payloads = new ConcurrentHashMap<Integer, byte[]>();
+
+	/**
+	 * Starts the server on a free port of 127.0.0.1
+	 *
+	 * @throws IOException
+	 */
+	public BenchmarkFixtures() throws IOException {
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/delayed", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+
+				int delay = intParam(exchange, "ms", 200);
+				respond(exchange, "text/html", ("<html><head><title>delayed</title></head><body><div id='early'>early</div><script>"
+						+ "setTimeout(function() { var d = document.createElement('div'); d.id = 'late'; d.textContent = 'late'; document.body.appendChild(d); }, " + delay + ");"
+						+ "</script></body></html>").getBytes(StandardCharsets.UTF_8));
+			}
+		});
+		server.createContext("/frames", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+
+				int depth = intParam(exchange, "depth", 3);
+				String body = depth <= 0 ? "<input id='target' type='text'/>" : "<p>level " + depth + "</p><iframe src='/frames?depth=" + (depth - 1) + "'></iframe>";
+				respond(exchange, "text/html", ("<html><head><title>frames " + depth + "</title></head><body>" + body + "</body></html>").getBytes(StandardCharsets.UTF_8));
+			}
+		});
+		server.createContext("/payload", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+
+				int kb = intParam(exchange, "kb", 64);
+				byte[] payload = payloads.get(kb);
+				if (payload == null) {
+					payload = pdf(kb * 1024);
+					payloads.put(kb, payload);
+				}
+				respond(exchange, "application/pdf", payload);
+			}
+		});
+		server.start();
+	}
+
+	/**
+	 * @param pathAndQuery
+	 *            - e.g. /frames?depth=3
+	 * @return url of the fixture
+	 */
+	public String url(String pathAndQuery) {
+
+		return "http://127.0.0.1:" + server.getAddress().getPort() + pathAndQuery;
+	}
+
+	public void stop() {
+
+		server.stop(0);
+	}
+
+	/**
+	 * Complete pdf of about the given size with a valid xref table
+	 *
+	 * @param size
+	 * @return pdf bytes
+	 */
+	public static byte[] pdf(int size) {
+
+		StringBuilder pdf = new StringBuilder("%PDF-1.4\n");
+		List<Integer> offsets = new ArrayList<Integer>();
+		offsets.add(pdf.length());
+		pdf.append("1 0 obj\n<< /Type /Catalog /Pages 2 0 R >>\nendobj\n");
+		offsets.add(pdf.length());
+		pdf.append("2 0 obj\n<< /Type /Pages /Kids [] /Count 0 >>\nendobj\n");
+		offsets.add(pdf.length());
+		int padding = Math.max(0, size - 512);
+		pdf.append("3 0 obj\n<< /Length ").append(padding).append(" >>\nstream\n");
+		Random random = new Random(SEED);
+		for (int i = 0; i < padding; i++) {
+			pdf.append((char) ('a' + random.nextInt(26)));
+		}
+		pdf.append("\nendstream\nendobj\n");
+		int xref = pdf.length();
+		pdf.append("xref\n0 ").append(offsets.size() + 1).append("\n0000000000 65535 f \n");
+		for (int offset : offsets) {
+			pdf.append(String.format("%010d 00000 n \n", offset));
+		}
+		pdf.append("trailer\n<< /Size ").append(offsets.size() + 1).append(" /Root 1 0 R >>\nstartxref\n").append(xref).append("\n%%EOF\n");
+		return pdf.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Saved page of about the given size with session tokens, scripts and tracking pixels to strip
+	 *
+	 * @param file
+	 * @param size
+	 * @throws IOException
+	 */
+	public static void largeHtml(File file, long size) throws IOException {
+
+		Random random = new Random(SEED);
+		Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8);
+		try {
+			writer.write("<html><head><title>statement</title></head><body>\n");
+			long written = 0;
+			for (int row = 0; written < size; row++) {
+				String line = "<tr><td>" + row + "</td><td><a href='/bill?token=" + Long.toHexString(random.nextLong()) + "'>bill " + row + "</a></td>"
+						+ (row % 20 == 0 ? "<script src='/track.js?id=" + random.nextInt() + "'></script><img src='/pixel.gif' width='1' height='1'/>" : "") + "</tr>\n";
+				writer.write(line);
+				written += line.length();
+			}
+			writer.write("</body></html>\n");
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * @param count
+	 * @return file names of saved pages
+	 */
+	public static List<String> pageNames(int count) {
+
+		List<String> names = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			names.add("statement_" + i + ".html");
+		}
+		return names;
+	}
+
+	/**
+	 * @param prefix
+	 * @return new empty directory below java.io.tmpdir
+	 * @throws IOException
+	 */
+	public static File tempDir(String prefix) throws IOException {
+
+		return Files.createTempDirectory(prefix).toFile();
+	}
+
+	private static void respond(HttpExchange exchange, String contentType, byte[] body) throws IOException {
+
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(200, body.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(body);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static int intParam(HttpExchange exchange, String name, int defaultValue) {
+
+		Map<String, String> params = new HashMap<String, String>();
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query != null) {
+			for (String pair : query.split("&")) {
+				int equals = pair.indexOf('=');
+				if (equals > 0) {
+					params.put(pair.substring(0, equals), pair.substring(equals + 1));
+				}
+			}
+		}
+		String value = params.get(name);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+}
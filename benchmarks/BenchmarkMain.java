@@ -0,0 +1,91 @@
+package selenium;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks and compares results of two commits.
+ * run [label] [include regex] -> writes benchmarks/results/label.json, label defaults to "current".
+ * compare base.json new.json [threshold %] -> lists every benchmark slower than the threshold (default 10%) and exits with
+ * 1 if there is one, so a regression can fail a build step.
+ *
+ * @author naveenc
+ *
+ */
+public class BenchmarkMain {
+
+	private static final Pattern BENCHMARK = Pattern.compile("\"benchmark\"\\s*:\\s*\"([^\"]+)\"");
+	private static final Pattern PARAMS = Pattern.compile("\"params\"\\s*:\\s*\\{([^}]*)\\}");
+	private static final Pattern SCORE = Pattern.compile("\"primaryMetric\"\\s*:\\s*\\{\\s*\"score\"\\s*:\\s*([-0-9.eE]+)");
+
+	public static void main(String[] args) throws IOException, RunnerException {
+
+		if (args.length >= 3 && "compare".equals(args[0])) {
+			double threshold = args.length > 3 ? Double.parseDouble(args[3]) : 10d;
+			System.exit(compare(new File(args[1]), new File(args[2]), threshold) > 0 ? 1 : 0);
+		}
+
+		String label = args.length > 1 ? args[1] : "current";
+		String include = args.length > 2 ? args[2] : "selenium\\..*Benchmark.*";
+		File results = new File("benchmarks/results");
+		results.mkdirs();
+		new Runner(new OptionsBuilder().include(include).resultFormat(ResultFormatType.JSON).result(new File(results, label + ".json").getPath()).shouldFailOnError(true).build()).run();
+	}
+
+	/**
+	 * @param baseFile
+	 * @param newFile
+	 * @param thresholdPercent
+	 * @return number of regressions; average time scores, so higher is slower
+	 * @throws IOException
+	 */
+	public static int compare(File baseFile, File newFile, double thresholdPercent) throws IOException {
+
+		Map<String, Double> base = read(baseFile);
+		Map<String, Double> current = read(newFile);
+		int regressions = 0;
+		for (Map.Entry<String, Double> entry : current.entrySet()) {
+			Double before = base.get(entry.getKey());
+			if (before == null || before <= 0) {
+				System.out.println("NEW        " + entry.getKey() + " " + entry.getValue());
+				continue;
+			}
+			double change = (entry.getValue() - before) * 100 / before;
+			boolean regression = change > thresholdPercent;
+			regressions += regression ? 1 : 0;
+			System.out.println(String.format("%-10s %s %.3f -> %.3f (%+.1f%%)", regression ? "SLOWER" : "OK", entry.getKey(), before, entry.getValue(), change));
+		}
+		return regressions;
+	}
+
+	/*
+	 * benchmark name with its parameters -> score, from the JMH json result
+	 */
+	private static Map<String, Double> read(File resultFile) throws IOException {
+
+		String json = new String(Files.readAllBytes(resultFile.toPath()), StandardCharsets.UTF_8);
+		Map<String, Double> scores = new LinkedHashMap<String, Double>();
+		for (String result : json.split("\"jmhVersion\"")) {
+			Matcher benchmark = BENCHMARK.matcher(result);
+			Matcher score = SCORE.matcher(result);
+			if (!benchmark.find() || !score.find()) {
+				continue;
+			}
+			Matcher params = PARAMS.matcher(result);
+			String key = benchmark.group(1) + (params.find() ? "{" + params.group(1).replaceAll("\\s+", "") + "}" : "");
+			scores.put(key, Double.parseDouble(score.group(1)));
+		}
+		return scores;
+	}
+}
@@ -0,0 +1,158 @@
+package selenium;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * File level hot paths of SeleniumUtils: replaceInSource, isPdfCorrupted and writeHomePage, no browser needed.
+ * Every benchmark has its own state, so the parameters don't multiply across benchmarks.
+ *
+ * @author naveenc
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileBenchmark {
+
+	private static final SeleniumUtils utils = SeleniumUtils.getInstance();
+	private static final String ACCOUNT = "1234567890";
+
+	@State(Scope.Benchmark)
+	public static class HtmlState {
+
+		@Param({ "1024", "16384" })
+		public int htmlKb;
+
+		private File dir;
+		private File html;
+
+		@Setup
+		public void setUp() throws IOException {
+
+			dir = BenchmarkFixtures.tempDir("html-benchmark");
+			html = new File(dir, "statement.html");
+			BenchmarkFixtures.largeHtml(html, htmlKb * 1024L);
+		}
+
+		@TearDown
+		public void tearDown() {
+
+			FileUtils.deleteQuietly(dir);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class PdfState {
+
+		@Param({ "64", "4096" })
+		public int pdfKb;
+
+		private File dir;
+		private File pdf;
+		private File truncatedPdf;
+
+		@Setup
+		public void setUp() throws IOException {
+
+			dir = BenchmarkFixtures.tempDir("pdf-benchmark");
+			byte[] content = BenchmarkFixtures.pdf(pdfKb * 1024);
+			pdf = new File(dir, "bill.pdf");
+			Files.write(pdf.toPath(), content);
+			truncatedPdf = new File(dir, "truncated.pdf");
+			Files.write(truncatedPdf.toPath(), Arrays.copyOf(content, content.length / 2));
+		}
+
+		@TearDown
+		public void tearDown() {
+
+			FileUtils.deleteQuietly(dir);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class HomePageState {
+
+		@Param({ "1000", "10000" })
+		public int links;
+
+		private File dir;
+		private File homePage;
+		private List<String> pageNames;
+
+		@Setup
+		public void setUp() throws IOException {
+
+			dir = BenchmarkFixtures.tempDir("home-page-benchmark");
+			homePage = new File(dir, "home.html");
+			pageNames = BenchmarkFixtures.pageNames(links);
+		}
+
+		/*
+		 * a home page listing the names already is left as it is, so every invocation starts without one, like a run
+		 * after cleanDir
+		 */
+		@Setup(Level.Invocation)
+		public void reset() {
+
+			for (File file : dir.listFiles()) {
+				FileUtils.deleteQuietly(file);
+			}
+		}
+
+		@TearDown
+		public void tearDown() {
+
+			FileUtils.deleteQuietly(dir);
+		}
+	}
+
+	/*
+	 * the replacement writes back what it matched, so the file stays the same for every invocation while the whole
+	 * rewrite, including the atomic replace, runs
+	 */
+	@Benchmark
+	public boolean replaceInSource(HtmlState state) {
+
+		return utils.replaceInSource(state.html, "token=([0-9a-f]+)", "token=$1");
+	}
+
+	@Benchmark
+	public boolean isPdfCorrupted(PdfState state) {
+
+		return utils.isPdfCorrupted(state.pdf);
+	}
+
+	@Benchmark
+	public boolean isPdfCorruptedTruncated(PdfState state) {
+
+		return utils.isPdfCorrupted(state.truncatedPdf);
+	}
+
+	@Benchmark
+	public boolean writeHomePage(HomePageState state) {
+
+		return utils.writeHomePage(ACCOUNT, state.homePage, state.pageNames);
+	}
+}
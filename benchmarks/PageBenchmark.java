@@ -0,0 +1,174 @@
+package selenium;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.htmlunit.HtmlUnitDriver;
+
+import com.gargoylesoftware.htmlunit.WebClient;
+
+/**
+ * Browser level hot paths of SeleniumUtils against the embedded server of {@link BenchmarkFixtures}: waitForXPaths,
+ * findFrameForGivenXpath and storeStreamInFile. HtmlUnitDriver and WebClient keep the suite offline and headless.
+ * Pages are loaded in the invocation setup, so only the utility itself is measured.
+ *
+ * @author naveenc
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PageBenchmark {
+
+	private static final SeleniumUtils utils = SeleniumUtils.getInstance();
+
+	@State(Scope.Benchmark)
+	public static class Server {
+
+		private BenchmarkFixtures fixtures;
+
+		@Setup
+		public void setUp() throws IOException {
+
+			fixtures = new BenchmarkFixtures();
+		}
+
+		@TearDown
+		public void tearDown() {
+
+			fixtures.stop();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class WaitState {
+
+		@Param({ "POLLING", "MUTATION_OBSERVER" })
+		public XPathWaiter.Mode mode;
+
+		@Param({ "200" })
+		public int delayMillis;
+
+		private WebDriver webDriver;
+
+		@Setup
+		public void setUp() {
+
+			XPathWaiter.setDefault(new XPathWaiter(mode, 50, 1000, 1.5));
+			webDriver = new HtmlUnitDriver(true);
+		}
+
+		@Setup(Level.Invocation)
+		public void load(Server server) {
+
+			webDriver.get(server.fixtures.url("/delayed?ms=" + delayMillis));
+		}
+
+		@TearDown
+		public void tearDown() {
+
+			webDriver.quit();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class FrameState {
+
+		@Param({ "SCRIPT", "DRIVER" })
+		public SeleniumUtils.FrameSearchMode mode;
+
+		@Param({ "1", "3" })
+		public int depth;
+
+		@Param({ "false", "true" })
+		public boolean cached;
+
+		private WebDriver webDriver;
+
+		@Setup
+		public void setUp() {
+
+			utils.setFrameSearchMode(mode);
+			webDriver = new HtmlUnitDriver(true);
+		}
+
+		@Setup(Level.Invocation)
+		public void load(Server server) {
+
+			if (!cached) {
+				utils.getFrameLocationCache().clear();
+			}
+			webDriver.get(server.fixtures.url("/frames?depth=" + depth));
+		}
+
+		@TearDown
+		public void tearDown() {
+
+			webDriver.quit();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class DownloadState {
+
+		@Param({ "64", "1024", "16384" })
+		public int payloadKb;
+
+		private WebClient webClient;
+		private File dir;
+
+		@Setup
+		public void setUp() throws IOException {
+
+			webClient = new WebClient();
+			dir = BenchmarkFixtures.tempDir("download-benchmark");
+		}
+
+		@TearDown
+		public void tearDown() {
+
+			webClient.close();
+			FileUtils.deleteQuietly(dir);
+		}
+	}
+
+	/*
+	 * time above delayMillis is the cost of the wait itself
+	 */
+	@Benchmark
+	public boolean waitForXPaths(WaitState state) {
+
+		return utils.waitForXPaths(state.webDriver, 5000L, Arrays.asList("//div[@id='late']"), true);
+	}
+
+	@Benchmark
+	public Boolean findFrameForGivenXpath(FrameState state) {
+
+		return utils.findFrameForGivenXpath(state.webDriver, "//input[@id='target']");
+	}
+
+	@Benchmark
+	public boolean storeStreamInFile(Server server, DownloadState state) {
+
+		return utils.storeStreamInFile(state.webClient, server.fixtures.url("/payload?kb=" + state.payloadKb), new File(state.dir, "bill.pdf"), "application/pdf");
+	}
+}